@@ -37,6 +37,11 @@ public class Main
 
             server_object = null;
             e.printStackTrace();
+        } catch (IllegalArgumentException e)
+        {
+            Macros.ERR("Invalid configuration: %s", e.getMessage());
+
+            server_object = null;
         } catch (IOException e)
         {
             Macros.ERR("Cannot resolve the given host.");
@@ -59,27 +64,13 @@ public class Main
         Macros.LOG("IP Address: %s", server_object.getIp());
         Macros.LOG("Port: %s", server_object.getPort());
 
-        while (!server_object.getSocket().isClosed())
+        try
         {
-            long time_s = System.nanoTime();
-
-            server_object.updateConnections();
-            server_object.updateChannels();
-
-            long time_e = System.nanoTime();
-            int time_d = (int) ((time_e - time_s) / 1000000);
-
-            server_object.setDeltaTime(time_d);
-
-            try
-            {
-                Thread.sleep(Math.max(100 - time_d, 10));
-            } catch (InterruptedException e)
-            {
-                e.printStackTrace();
-            }
+            server_thread.join();
+        } catch (InterruptedException e)
+        {
+            e.printStackTrace();
         }
-
     }
 
 }
@@ -4,11 +4,18 @@ public class CMDs
 {
 
     /* Replies */
+    public static final String RPL_ISUPPORT         = "005";
+    public static final String RPL_ENDOFSTATS       = "219";
+    public static final String RPL_STATSUPTIME      = "242";
+    public static final String RPL_STATSDEBUG       = "249";
+    public static final String RPL_STATSCONN        = "250";
     public static final String RPL_LUSERCLIENT      = "251";
     public static final String RPL_LUSEROP          = "252";
     public static final String RPL_LUSERUNKNOWN     = "253";
     public static final String RPL_LUSERCHANNELS    = "254";
     public static final String RPL_LUSERME          = "255";
+    public static final String RPL_LOCALUSERS       = "265";
+    public static final String RPL_GLOBALUSERS      = "266";
     public static final String RPL_NONE             = "300";
     public static final String RPL_USERHOST         = "302";
     public static final String RPL_ISON             = "303";
@@ -61,7 +68,10 @@ public class CMDs
     public static final String ERR_USERONCHANNEL    = "443";
     public static final String ERR_NOTONCHANNEL     = "442";
     public static final String ERR_USERNOTINCHANNEL = "441";
+    public static final String ERR_NONICKNAMEGIVEN  = "431";
+    public static final String ERR_ERRONEUSNICKNAME = "432";
     public static final String ERR_NICKNAMEINUSE    = "433";
     public static final String ERR_NICKCOLLISION    = "436";
+    public static final String ERR_NOPRIVILEGES     = "481";
 
 }
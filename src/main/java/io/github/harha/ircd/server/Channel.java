@@ -1,97 +1,309 @@
 package io.github.harha.ircd.server;
 
-import io.github.harha.ircd.util.CaseIMap;
+import io.github.harha.ircd.util.Consts;
+import io.github.harha.ircd.util.IdTable;
+import io.github.harha.ircd.util.RefCounts;
+import io.github.harha.ircd.util.SerialExecutor;
 
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class Channel
 {
 
-    private IRCServer           m_ircserver;
-    private String              m_name;
-    private String              m_key;
-    private String              m_topic;
-    private ChanState           m_state;
-    private Map<String, Client> m_clients;
+    private IRCServer         m_ircserver;
+    private int               m_id;
+    private String            m_name;
+    private String            m_key;
+    private volatile String   m_topic;
+    private volatile long     m_ts;
+    private volatile ChanState m_state;
+    private volatile Members  m_members;
+    private volatile RefCounts<Server> m_routes;
+    private NameList          m_names;
+    private volatile Fanout   m_fanout;
+    private SerialExecutor    m_executor;
 
     public Channel(IRCServer ircserver, String name, String key, String topic)
     {
         m_ircserver = ircserver;
+        m_id = -1;
         m_name = name;
         m_key = key;
         m_topic = "";
+        m_ts = System.currentTimeMillis() / 1000;
         m_state = ChanState.PUBLIC;
-        m_clients = Collections.synchronizedMap(new CaseIMap<>());
+        m_members = Members.EMPTY;
+        m_routes = RefCounts.empty();
+        m_fanout = null;
+        m_executor = new SerialExecutor(ircserver.getContinuationExecutor());
+
+        /* What is left of a line after ":<server> 353 <nick> = <channel> :" and CRLF, for the longest possible nick */
+        int overhead = 1 + ircserver.getPrefixBytes().length + 5 + Consts.NICKLEN + 3 + name.getBytes(StandardCharsets.UTF_8).length + 4;
+        m_names = new NameList(Consts.LINELEN - overhead);
     }
 
     public void sendMsg(ServMessage message)
     {
-        Iterator<Entry<String, Client>> i = m_clients.entrySet().iterator();
+        sendMsg(null, message, false);
+    }
+
+    public void sendMsgAndFlush(ServMessage message)
+    {
+        sendMsg(null, message, true);
+    }
+
+    public void sendMsg(Client client, ServMessage message)
+    {
+        sendMsg(client, message, false);
+    }
+
+    public void sendMsgAndFlush(Client client, ServMessage message)
+    {
+        sendMsg(client, message, true);
+    }
+
+    private void sendMsg(Client except, ServMessage message, boolean flush)
+    {
+        /* Walk a snapshot of the member ids, joins and parts meanwhile publish a new one */
+        long time = System.nanoTime();
+        Members members = m_members;
+        int skip = except != null ? except.getId() : -1;
 
-        while (i.hasNext())
+        if (members.size() >= m_ircserver.getConfig().getFanout())
         {
-            Entry<String, Client> e = i.next();
-            Client c = (Client) e.getValue();
-            c.getConnection().sendMsg(message);
+            sendMsgParallel(members, skip, message, flush, time);
+            return;
         }
+
+        deliver(members, 0, members.size(), skip, message, flush);
+        m_ircserver.recordFanout(members.size(), System.nanoTime() - time);
     }
 
-    public void sendMsgAndFlush(ServMessage message)
+    /*
+     * Big channels are delivered by the event loops that own the members, in parallel. Each loop gets one task
+     * with its share of the members through its mailbox. The share of the current loop runs right away, a write
+     * on a loop that still has posted tasks queues behind them (Connection.sendMsg), so neither share overtakes
+     * an earlier message of the channel and the order per recipient is kept.
+     */
+    private void sendMsgParallel(Members members, int skip, ServMessage message, boolean flush, long time)
     {
-        Iterator<Entry<String, Client>> i = m_clients.entrySet().iterator();
+        Fanout fanout = m_fanout;
 
-        while (i.hasNext())
+        if (fanout == null || fanout.m_members != members)
         {
-            Entry<String, Client> e = i.next();
-            Client c = (Client) e.getValue();
-            c.getConnection().sendMsgAndFlush(message);
+            m_fanout = fanout = new Fanout(m_ircserver, members);
+        }
+
+        EventLoop[] loops = m_ircserver.getEventLoops();
+        AtomicInteger remaining = new AtomicInteger(loops.length);
+
+        for (int l = 0; l < loops.length; l++)
+        {
+            int[] ids = fanout.m_ids[l];
+            Runnable task = () ->
+            {
+                deliver(ids, skip, message, flush);
+
+                /* The last loop to finish records how long the whole fan-out took */
+                if (remaining.decrementAndGet() == 0)
+                {
+                    m_ircserver.recordFanout(members.size(), System.nanoTime() - time);
+                }
+            };
+
+            if (ids.length == 0 || loops[l].inEventLoop())
+            {
+                task.run();
+            }
+            else
+            {
+                loops[l].execute(task);
+            }
         }
     }
 
-    public void sendMsg(Client client, ServMessage message)
+    private void deliver(Members members, int from, int to, int skip, ServMessage message, boolean flush)
     {
-        Iterator<Entry<String, Client>> i = m_clients.entrySet().iterator();
+        IdTable<Client> clients = m_ircserver.getClientTable();
 
-        while (i.hasNext())
+        for (int i = from; i < to; i++)
         {
-            Entry<String, Client> e = i.next();
-            Client c = (Client) e.getValue();
+            int id = members.getId(i);
+            Client c = id != skip ? clients.get(id) : null;
 
-            if (c.getConnection().getNick().equals(client.getConnection().getNick()))
-                continue;
-
-            c.getConnection().sendMsg(message);
+            if (c != null)
+            {
+                deliver(c, message, flush);
+            }
         }
     }
 
-    public void sendMsgAndFlush(Client client, ServMessage message)
+    private void deliver(int[] ids, int skip, ServMessage message, boolean flush)
     {
-        Iterator<Entry<String, Client>> i = m_clients.entrySet().iterator();
+        IdTable<Client> clients = m_ircserver.getClientTable();
 
-        while (i.hasNext())
+        for (int id : ids)
         {
-            Entry<String, Client> e = i.next();
-            Client c = (Client) e.getValue();
+            Client c = id != skip ? clients.get(id) : null;
 
-            if (c.getConnection().getNick().equals(client.getConnection().getNick()))
-                continue;
+            if (c != null)
+            {
+                deliver(c, message, flush);
+            }
+        }
+    }
 
+    private static void deliver(Client c, ServMessage message, boolean flush)
+    {
+        if (flush)
+        {
             c.getConnection().sendMsgAndFlush(message);
         }
+        else
+        {
+            c.getConnection().sendMsg(message);
+        }
     }
 
+    /*
+     * Everything that reads or changes the state of the channel runs on its serial executor, one command at a
+     * time in the order they were sent, so the channel needs no locks. The methods below only post the command.
+     */
     public void clientJoin(Client client)
+    {
+        m_executor.execute(() -> join(client));
+    }
+
+    public void clientPart(Client client, String reason)
+    {
+        m_executor.execute(() -> part(client, reason));
+    }
+
+    /* The QUIT itself is sent by the client, once per peer, the channel hands over its members before the removal */
+    public void clientQuit(Client client, Consumer<Members> done)
+    {
+        m_executor.execute(() -> done.accept(quit(client)));
+    }
+
+    /*
+     * A message of a member, from this server or from a link. The members of this server get it as usual, the
+     * rest of the network gets one copy per link that has members behind it, never the one it came from. Each
+     * server on the way does the same, so a message only travels the branches of the tree that lead to members.
+     */
+    public void clientMsg(Client client, String command, String text)
+    {
+        m_executor.execute(() ->
+        {
+            if (m_members.contains(client.getId()))
+            {
+                ServMessage message = new ServMessage(client.getConnection(), command, m_name, text);
+                sendMsgAndFlush(client, message);
+                sendToRoutes(client.getRoute(), new ServMessage(client.getUid(), command, m_name, text));
+                sendToCluster(client, message);
+            }
+        });
+    }
+
+    /* A line of a local member to the other nodes of the cluster, they have members of their own on it */
+    private void sendToCluster(Client client, ServMessage message)
+    {
+        Cluster cluster = m_ircserver.getCluster();
+
+        if (cluster != null && client.isLocal())
+        {
+            cluster.channelMsg(m_name, message);
+        }
+    }
+
+    /* A line of a member on another node of the cluster, for the members of this one */
+    public void clusterMsg(ServMessage message)
+    {
+        m_executor.execute(() -> sendMsgAndFlush(message));
+    }
+
+    private void sendToRoutes(Server except, ServMessage message)
+    {
+        RefCounts<Server> routes = m_routes;
+
+        for (int i = 0; i < routes.size(); i++)
+        {
+            Server link = routes.get(i);
+
+            if (link != except)
+            {
+                link.send(message);
+            }
+        }
+    }
+
+    public void clientRenamed(Client client, Consumer<Members> done)
+    {
+        m_executor.execute(() ->
+        {
+            Members members = m_members;
+
+            if (members.contains(client.getId()))
+            {
+                m_names.rename(client.getId(), Members.getPrefix(members.getModeOf(client.getId())) + client.getConnection().getNick());
+                done.accept(members);
+            }
+            else
+            {
+                done.accept(Members.EMPTY);
+            }
+        });
+    }
+
+    /* Set by a user, or by a server when the client is null */
+    public void setTopic(Client client, String topic)
+    {
+        m_executor.execute(() -> topic(client, topic));
+    }
+
+    /* Users of another server joining, one at a time or many from a line of a burst */
+    public void serverJoin(Client[] clients, byte[] modes, long ts)
+    {
+        m_executor.execute(() -> burst(clients, modes, ts));
+    }
+
+    public void sendNames(Client client)
+    {
+        m_executor.execute(() -> names(client));
+    }
+
+    private void join(Client client)
     {
         Connection connection = client.getConnection();
 
-        if (client.getChannel(m_name) == null)
+        /* The channel was emptied and unregistered before we got here, look it up or create it again */
+        if (m_state == ChanState.EMPTY)
+        {
+            client.joinChan(m_name);
+            return;
+        }
+
+        if (!m_members.contains(client.getId()))
         {
-            client.addChan(this);
-            m_clients.put(connection.getNick(), client);
-            sendMsgAndFlush(new ServMessage(connection, "JOIN", m_name));
+            /* Whoever creates the channel is its operator */
+            byte mode = m_members.isEmpty() ? Members.MODE_OP : 0;
+
+            /* The client has quit meanwhile */
+            if (!client.addChan(this))
+            {
+                removeIfEmpty();
+                return;
+            }
+
+            m_members = m_members.with(client.getId(), mode);
+            m_names.add(client.getId(), Members.getPrefix(mode) + connection.getNick());
+            ServMessage message = new ServMessage(connection, "JOIN", m_name);
+            sendMsgAndFlush(message);
+            sendToCluster(client, message);
+            m_ircserver.sendToLinks(null, new ServMessage(m_ircserver.getSid(), "SJOIN", Long.toString(m_ts), m_name, "+", Members.getPrefix(mode) + client.getUid()));
 
             if (!m_topic.isEmpty())
             {
@@ -102,70 +314,214 @@ public class Channel
                 connection.sendMsgAndFlush(new ServMessage(m_ircserver, CMDs.RPL_NOTOPIC, connection.getNick(), m_name, "No topic is set."));
             }
 
-            connection.sendMsgAndFlush(new ServMessage(m_ircserver, CMDs.RPL_NAMREPLY, connection.getNick(), "@", m_name, getNames()));
-            connection.sendMsgAndFlush(new ServMessage(m_ircserver, CMDs.RPL_ENDOFNAMES, connection.getNick(), m_name, "End of /NAMES list."));
+            names(client);
         }
         else
         {
-            clientPart(client, "Rejoining this channel...");
+            part(client, "Rejoining this channel...");
 
-            if (client.getChannel(m_name) == null)
+            if (m_state != ChanState.EMPTY)
             {
-                clientJoin(client);
+                join(client);
+            }
+            else
+            {
+                client.joinChan(m_name);
             }
         }
     }
 
-    public void clientPart(Client client, String reason)
+    private void part(Client client, String reason)
     {
         Connection connection = client.getConnection();
 
-        if (client.getChannel(m_name) != null)
+        if (m_members.contains(client.getId()))
         {
-            sendMsgAndFlush(new ServMessage(connection, "PART", m_name, reason));
+            ServMessage message = new ServMessage(connection, "PART", m_name, reason);
+            sendMsgAndFlush(message);
+            sendToCluster(client, message);
+            m_members = m_members.without(client.getId());
             client.removeChan(this);
-            m_clients.remove(client.getConnection().getNick());
+            m_names.remove(client.getId());
+
+            /* A remote user's PART is passed on by the link it came from */
+            if (client.isLocal())
+            {
+                m_ircserver.sendToLinks(null, new ServMessage(client.getUid(), "PART", m_name, reason));
+            }
+            else
+            {
+                m_routes = m_routes.without(client.getRoute());
+            }
         }
         else
         {
             connection.sendMsgAndFlush(new ServMessage(connection, CMDs.ERR_USERNOTINCHANNEL, connection.getNick(), m_name, "You are not on that channel."));
         }
 
-        if (m_clients.isEmpty())
-        {
-            m_state = ChanState.EMPTY;
-        }
+        removeIfEmpty();
     }
 
-    public void clientQuit(Client client, String reason)
+    private Members quit(Client client)
     {
-        Connection connection = client.getConnection();
+        Members members = m_members;
 
-        if (client.getChannel(m_name) != null)
+        if (members.contains(client.getId()))
         {
-            sendMsgAndFlush(new ServMessage(connection, "QUIT", reason));
+            m_members = members.without(client.getId());
             client.removeChan(this);
-            m_clients.remove(client.getConnection().getNick());
+            m_names.remove(client.getId());
+
+            /* The last member behind a link prunes it, e.g. when the users of a split quit one by one */
+            if (!client.isLocal())
+            {
+                m_routes = m_routes.without(client.getRoute());
+            }
         }
         else
         {
-            connection.sendMsgAndFlush(new ServMessage(connection, CMDs.ERR_USERNOTINCHANNEL, connection.getNick(), m_name, "Is not on the channel."));
+            members = Members.EMPTY;
         }
+
+        removeIfEmpty();
+
+        return members;
     }
 
-    public void setTopic(Client client, String topic)
+    /*
+     * Timestamps decide who keeps the modes when two sides of a split both have the channel. The older channel
+     * wins: if ours is younger its members lose their modes and it takes the older timestamp, if theirs is
+     * younger the modes of the joining members are dropped, the same age keeps both.
+     */
+    private void burst(Client[] clients, byte[] modes, long ts)
+    {
+        /* The channel was emptied and unregistered before we got here, look it up or create it again */
+        if (m_state == ChanState.EMPTY)
+        {
+            Channel channel = m_ircserver.getChannel(m_name);
+            (channel != null ? channel : m_ircserver.createChannel(m_name)).serverJoin(clients, modes, ts);
+            return;
+        }
+
+        if (m_members.isEmpty())
+        {
+            m_ts = ts;
+        }
+        else if (ts < m_ts)
+        {
+            m_ts = ts;
+            dropModes();
+        }
+        else if (ts > m_ts)
+        {
+            modes = new byte[clients.length];
+        }
+
+        int[] ids = new int[clients.length];
+        byte[] added = new byte[clients.length];
+        int count = 0;
+        RefCounts<Server> routes = m_routes;
+        Server route = null;
+        int behind = 0;
+
+        for (int i = 0; i < clients.length; i++)
+        {
+            Client c = clients[i];
+
+            if (!m_members.contains(c.getId()) && c.addChan(this))
+            {
+                ids[count] = c.getId();
+                added[count++] = modes[i];
+
+                /* The members of a line are usually all behind the same link, they are counted in one go */
+                if (c.getRoute() != route)
+                {
+                    routes = routes.with(route, behind);
+                    route = c.getRoute();
+                    behind = 0;
+                }
+
+                behind++;
+            }
+        }
+
+        if (count == 0)
+        {
+            removeIfEmpty();
+            return;
+        }
+
+        m_members = m_members.withAll(Arrays.copyOf(ids, count), Arrays.copyOf(added, count));
+        m_routes = route != null ? routes.with(route, behind) : routes;
+
+        for (int i = 0; i < count; i++)
+        {
+            Client c = m_ircserver.getClientById(ids[i]);
+
+            if (c != null)
+            {
+                m_names.add(ids[i], Members.getPrefix(added[i]) + c.getConnection().getNick());
+                sendMsgAndFlush(new ServMessage(c.getConnection(), "JOIN", m_name));
+
+                if (added[i] != 0)
+                {
+                    sendMsgAndFlush(new ServMessage(m_ircserver, "MODE", m_name, (added[i] & Members.MODE_OP) != 0 ? "+o" : "+v", c.getConnection().getNick()));
+                }
+            }
+        }
+    }
+
+    private void dropModes()
+    {
+        Members members = m_members;
+
+        for (int i = 0; i < members.size(); i++)
+        {
+            Client c = m_ircserver.getClientById(members.getId(i));
+            byte mode = members.getMode(i);
+
+            if (c != null && mode != 0)
+            {
+                sendMsgAndFlush(new ServMessage(m_ircserver, "MODE", m_name, (mode & Members.MODE_OP) != 0 ? "-o" : "-v", c.getConnection().getNick()));
+                m_names.rename(c.getId(), c.getConnection().getNick());
+            }
+        }
+
+        m_members = members.withoutModes((byte) (Members.MODE_OP | Members.MODE_VOICE));
+    }
+
+    private void removeIfEmpty()
+    {
+        /* Delete empty channels */
+        if (m_members.isEmpty() && m_state != ChanState.EMPTY)
+        {
+            m_state = ChanState.EMPTY;
+            m_ircserver.removeChannel(this);
+        }
+    }
+
+    private void topic(Client client, String topic)
     {
         m_topic = topic;
 
+        if (client != null && client.isLocal())
+        {
+            m_ircserver.sendToLinks(null, new ServMessage(client.getUid(), "TOPIC", m_name, topic));
+            sendToCluster(client, new ServMessage(client.getConnection(), "TOPIC", m_name, topic));
+        }
+
         if (!m_topic.trim().isEmpty())
         {
-            Iterator<Entry<String, Client>> i = m_clients.entrySet().iterator();
+            Members members = m_members;
 
-            while (i.hasNext())
+            for (int i = 0; i < members.size(); i++)
             {
-                Entry<String, Client> e = i.next();
-                Client c = (Client) e.getValue();
-                c.getConnection().sendMsgAndFlush(new ServMessage(m_ircserver, CMDs.RPL_TOPIC, c.getConnection().getNick(), m_name, m_topic));
+                Client c = m_ircserver.getClientById(members.getId(i));
+
+                if (c != null)
+                {
+                    c.getConnection().sendMsgAndFlush(new ServMessage(m_ircserver, CMDs.RPL_TOPIC, c.getConnection().getNick(), m_name, m_topic));
+                }
             }
         }
         else
@@ -174,6 +530,11 @@ public class Channel
         }
     }
 
+    public void setId(int id)
+    {
+        m_id = id;
+    }
+
     public void setState(ChanState state)
     {
         m_state = state;
@@ -184,6 +545,11 @@ public class Channel
         return m_ircserver;
     }
 
+    public int getId()
+    {
+        return m_id;
+    }
+
     public String getName()
     {
         return m_name;
@@ -199,35 +565,111 @@ public class Channel
         return m_topic;
     }
 
+    /* When the channel was created, in seconds, the older one wins when two sides of a split meet */
+    public long getTS()
+    {
+        return m_ts;
+    }
+
     public ChanState getState()
     {
         return m_state;
     }
 
-    public String getNames()
+    private void names(Client client)
     {
-        String names = "";
+        Connection connection = client.getConnection();
+        String type = m_state == ChanState.PRIVATE ? "*" : "=";
+
+        /* The names are pre-split to fit the line length, each reply only adds the header */
+        for (String names : renderNames())
+        {
+            connection.sendMsg(new ServMessage(m_ircserver, CMDs.RPL_NAMREPLY, connection.getNick(), type, m_name, names));
+        }
 
-        Iterator<Entry<String, Client>> i = m_clients.entrySet().iterator();
+        connection.sendMsgAndFlush(new ServMessage(m_ircserver, CMDs.RPL_ENDOFNAMES, connection.getNick(), m_name, "End of /NAMES list."));
+    }
 
-        while (i.hasNext())
+    private List<String> renderNames()
+    {
+        /* Rendered from the member ids in one pass, then kept up to date name by name as the membership changes */
+        if (!m_names.isRendered())
         {
-            Entry<String, Client> e = i.next();
-            Client c = (Client) e.getValue();
-            names += c.getConnection().getNick() + " ";
+            Members members = m_members;
+            m_names.reset();
+
+            for (int i = 0; i < members.size(); i++)
+            {
+                Client c = m_ircserver.getClientById(members.getId(i));
+
+                if (c != null)
+                {
+                    m_names.add(members.getId(i), Members.getPrefix(members.getMode(i)) + c.getConnection().getNick());
+                }
+            }
         }
 
-        return names;
+        return m_names.getChunks();
+    }
+
+    public Members getMembers()
+    {
+        return m_members;
+    }
+
+    /* The links with members of this channel behind them, with the number of those members */
+    public RefCounts<Server> getRoutes()
+    {
+        return m_routes;
     }
 
-    public Map<String, Client> getClients()
+    public boolean hasMember(Client client)
     {
-        return m_clients;
+        return m_members.contains(client.getId());
     }
 
-    public Client getClient(String key)
+    /* The member ids of a snapshot split by the event loop that owns them, built once per snapshot */
+    private static class Fanout
     {
-        return m_clients.get(key);
+
+        private Members m_members;
+        private int[][] m_ids;
+
+        public Fanout(IRCServer ircserver, Members members)
+        {
+            EventLoop[] loops = ircserver.getEventLoops();
+            int[] loop = new int[members.size()];
+            int[] counts = new int[loops.length];
+
+            m_members = members;
+            m_ids = new int[loops.length][];
+
+            for (int i = 0; i < members.size(); i++)
+            {
+                Client c = ircserver.getClientById(members.getId(i));
+                loop[i] = c != null && c.isLocal() ? c.getConnection().getEventLoop().getId() : -1;
+
+                if (loop[i] >= 0)
+                {
+                    counts[loop[i]]++;
+                }
+            }
+
+            for (int l = 0; l < loops.length; l++)
+            {
+                m_ids[l] = new int[counts[l]];
+                counts[l] = 0;
+            }
+
+            for (int i = 0; i < members.size(); i++)
+            {
+                if (loop[i] >= 0)
+                {
+                    m_ids[loop[i]][counts[loop[i]]++] = members.getId(i);
+                }
+            }
+        }
+
     }
 
 }
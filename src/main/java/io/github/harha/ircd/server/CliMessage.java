@@ -1,141 +1,241 @@
 package io.github.harha.ircd.server;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 
 public class CliMessage
 {
 
-    private String       m_message;
-    private String       m_prefix;
-    private String       m_command;
-    private List<String> m_parameters;
+    public static final int    MAX_PARAMETERS = 15;
+    private static final int[] s_none         = new int[0];
+
+    private String          m_message;
+    private int             m_tags_s;
+    private int             m_tags_e;
+    private int             m_prefix_s;
+    private int             m_prefix_e;
+    private int             m_command_s;
+    private int             m_command_e;
+    private int[]           m_params;
+    private int             m_param_count;
+    private boolean         m_trailing;
+    private String          m_command;
+    private List<String>    m_parameters;
 
     public CliMessage(String message)
     {
         m_message = message;
-        m_prefix = "";
-        m_command = "";
-        m_parameters = new ArrayList<String>();
+        m_tags_s = m_tags_e = 0;
+        m_prefix_s = m_prefix_e = 0;
+        m_command_s = m_command_e = 0;
+        m_params = s_none;
+        m_param_count = 0;
+        m_trailing = false;
+        m_command = null;
+        m_parameters = null;
+
+        parse();
+    }
 
-        String[] message_split_s = m_message.split("\\s+");
+    /*
+     * Single forward scan over the line, only the offsets of each part are recorded.
+     * message = [ "@" tags SPACE ] [ ":" prefix SPACE ] command *14( SPACE middle ) [ SPACE ":" trailing ]
+     */
+    private void parse()
+    {
+        String m = m_message;
+        int length = m.length();
+        int i = skipSpaces(0);
 
-        /* Detect if there's prefix or not */
-        if (m_message.startsWith(":"))
+        /* IRCv3 message tags */
+        if (i < length && m.charAt(i) == '@')
         {
-            m_prefix = message_split_s[0];
-            m_command = message_split_s[1];
-
-            String parameters = "";
-
-            for (int i = 2; i < message_split_s.length; i++)
-            {
-                parameters += ((i == 2) ? "" : " ") + message_split_s[i];
-            }
-
-            parseParameters(parameters);
+            m_tags_s = i + 1;
+            i = skipWord(i);
+            m_tags_e = i;
+            i = skipSpaces(i);
         }
-        else
+
+        /* Prefix */
+        if (i < length && m.charAt(i) == ':')
         {
-            m_prefix = "";
-            m_command = message_split_s[0];
+            m_prefix_s = i + 1;
+            i = skipWord(i);
+            m_prefix_e = i;
+            i = skipSpaces(i);
+        }
 
-            String parameters = "";
+        /* Command */
+        m_command_s = i;
+        i = skipWord(i);
+        m_command_e = i;
+        i = skipSpaces(i);
 
-            for (int i = 1; i < message_split_s.length; i++)
+        /* Middle parameters, the last one may contain spaces if it starts with ':' or there are already 14 */
+        while (i < length && m_param_count < MAX_PARAMETERS)
+        {
+            if (m.charAt(i) == ':' || m_param_count == MAX_PARAMETERS - 1)
             {
-                parameters += ((i == 1) ? "" : " ") + message_split_s[i];
+                m_trailing = m.charAt(i) == ':';
+                addParameter(m_trailing ? i + 1 : i, length);
+                break;
             }
 
-            parseParameters(parameters);
+            int start = i;
+            i = skipWord(i);
+            addParameter(start, i);
+            i = skipSpaces(i);
         }
     }
 
-    private void parseParameters(String parameters)
+    /*
+     * The start and end offsets of each parameter, one after the other. Most lines have up to four parameters,
+     * the array is made for that many on the first one and only grows for the longer lines of e.g. a link.
+     */
+    private void addParameter(int start, int end)
     {
-        /* Detect what kind of parameters we are receiving */
-        String[] params_split_s = parameters.split("\\s+");
-        String[] params_split_c = parameters.split("\\s*,\\s*");
+        if (m_param_count * 2 == m_params.length)
+        {
+            m_params = Arrays.copyOf(m_params, m_params.length == 0 ? 8 : MAX_PARAMETERS * 2);
+        }
 
-        /* Parameters separated by , for some commands */
-        if ((m_command.equalsIgnoreCase("JOIN") || m_command.equalsIgnoreCase("PART")) && params_split_c.length > 1)
+        m_params[m_param_count * 2] = start;
+        m_params[m_param_count * 2 + 1] = end;
+        m_param_count++;
+    }
+
+    private int skipSpaces(int i)
+    {
+        while (i < m_message.length() && m_message.charAt(i) == ' ')
         {
-            for (String s : params_split_c)
-            {
-                m_parameters.add(s.trim());
-            }
+            i++;
         }
-        /* Parameters separated by SPACE */
-        else
+
+        return i;
+    }
+
+    private int skipWord(int i)
+    {
+        while (i < m_message.length() && m_message.charAt(i) != ' ')
         {
-            List<List<String>> params_combined = new ArrayList<List<String>>();
-            int param_separator = 0;
+            i++;
+        }
 
-            for (String s : params_split_s)
-            {
-                if (s.startsWith(":"))
-                {
-                    params_combined.add(new ArrayList<String>());
-                    param_separator++;
-                }
+        return i;
+    }
 
-                if (params_combined.size() == 0 && !s.startsWith(":"))
-                {
-                    m_parameters.add(s);
-                }
-                else
-                {
-                    params_combined.get(param_separator - 1).add(s);
-                }
-            }
+    public String getMessage()
+    {
+        return m_message;
+    }
 
-            for (List<String> l : params_combined)
-            {
-                String parameter = "";
+    public String getTags()
+    {
+        return m_message.substring(m_tags_s, m_tags_e);
+    }
 
-                for (String p : l)
-                {
-                    parameter += p + " ";
-                }
+    public String getPrefix()
+    {
+        return m_message.substring(m_prefix_s, m_prefix_e);
+    }
 
-                parameter = parameter.replace(":", "");
+    public String getCommand()
+    {
+        /* Commands are case insensitive, only allocate an upper case copy when needed */
+        if (m_command == null)
+        {
+            m_command = m_message.substring(m_command_s, m_command_e);
 
-                if (!parameter.trim().isEmpty())
+            for (int i = 0; i < m_command.length(); i++)
+            {
+                if (Character.isLowerCase(m_command.charAt(i)))
                 {
-                    m_parameters.add(parameter.trim());
+                    m_command = m_command.toUpperCase(Locale.ROOT);
+                    break;
                 }
             }
         }
+
+        return m_command;
     }
 
-    public String getMessage()
+    public boolean isCommand(String command)
     {
-        return m_message;
+        return m_command_e - m_command_s == command.length() && m_message.regionMatches(true, m_command_s, command, 0, command.length());
     }
 
-    public String getPrefix()
+    public boolean hasTrailing()
     {
-        return m_prefix;
+        return m_trailing;
     }
 
-    public String getCommand()
+    public int getParameterCount()
     {
-        return m_command;
+        return m_param_count;
     }
 
     public List<String> getParameters()
     {
+        if (m_parameters == null)
+        {
+            List<String> parameters = new ArrayList<String>(m_param_count);
+
+            for (int i = 0; i < m_param_count; i++)
+            {
+                parameters.add(getParameter(i));
+            }
+
+            m_parameters = Collections.unmodifiableList(parameters);
+        }
+
         return m_parameters;
     }
 
     public String getParameter(int i)
     {
-        if (i < 0 || i >= m_parameters.size())
+        if (i < 0 || i >= m_param_count)
         {
             return "";
         }
 
-        return m_parameters.get(i);
+        if (m_parameters != null)
+        {
+            return m_parameters.get(i);
+        }
+
+        return m_message.substring(m_params[i * 2], m_params[i * 2 + 1]);
+    }
+
+    public List<String> getParameterAsList(int i)
+    {
+        /* Comma separated parameter, e.g. the channel list of JOIN and PART */
+        List<String> result = new ArrayList<String>();
+
+        if (i < 0 || i >= m_param_count)
+        {
+            return result;
+        }
+
+        int start = m_params[i * 2];
+        int end = m_params[i * 2 + 1];
+
+        for (int j = start; j <= end; j++)
+        {
+            if (j == end || m_message.charAt(j) == ',')
+            {
+                if (j > start)
+                {
+                    result.add(m_message.substring(start, j));
+                }
+
+                start = j + 1;
+            }
+        }
+
+        return result;
     }
 
 }
@@ -1,84 +1,80 @@
 package io.github.harha.ircd.server;
 
-import io.github.harha.ircd.util.CaseIMap;
-import io.github.harha.ircd.util.Macros;
+import io.github.harha.ircd.util.CaseMapping;
+import io.github.harha.ircd.util.Consts;
+import io.github.harha.ircd.util.Histogram;
+import io.github.harha.ircd.util.IdTable;
+import io.github.harha.ircd.util.Log;
+import io.github.harha.ircd.util.VisitMarks;
 
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class Client
 {
 
-    private Connection           m_connection;
-    private Map<String, Channel> m_channels;
-    private int                  m_pingtimer;
+    private static final Log                     s_traffic = Log.get("traffic");
+
+    /* A channel message costs one more flood unit per this many members */
+    private static final int                     LARGE_CHANNEL = 100;
+
+    /* Peer marks of the thread that delivers a QUIT or NICK, reused for every one of them */
+    private static final ThreadLocal<VisitMarks> s_peers   = ThreadLocal.withInitial(VisitMarks::new);
+
+    private Connection                           m_connection;
+    private int                                  m_id;
+    private String                               m_uid;
+    private volatile long                        m_nickTS;
+    private Server                               m_server;
+    private volatile int[]                       m_channels;
+    private boolean                              m_quit;
 
     public Client(Connection connection)
     {
         m_connection = connection;
-        m_channels = Collections.synchronizedMap(new CaseIMap<>());
-        m_pingtimer = 100;
+        m_id = -1;
+        m_uid = "";
+        m_nickTS = System.currentTimeMillis() / 1000;
+        m_server = null;
+        m_channels = new int[0];
+        m_quit = false;
     }
 
     public void updateIdentifiedClient()
     {
-        /* Read input from client */
-        List<String> input_data = new ArrayList<String>();
+        /* Parse input and handle it appropriately, as much of it as the quantum and the flood budget allow */
+        CliMessage message;
 
-        try
+        while (m_connection.getState() == ConnState.CONNECTED_AS_CLIENT && (message = m_connection.peekInput()) != null)
         {
-            String line = null;
-            while (m_connection.getInput().ready() && (line = m_connection.getInput().readLine()) != null && !line.isEmpty())
+            if (!m_connection.admit(message, cost(message)))
             {
-                input_data.add(line);
+                break;
             }
-        } catch (IOException e)
-        {
-            e.printStackTrace();
-        }
 
-        /* Return if input data was empty */
-        if (input_data.isEmpty())
-        {
-            return;
-        }
+            m_connection.pollInput();
 
-        /* Log the input to console */
-        Macros.LOG("Input from %s: %s", m_connection, input_data);
+            /* Log the input, it is only formatted if traffic logging is enabled */
+            s_traffic.debug("Input from %s: %s", m_connection, message.getMessage());
 
-        /* Parse input and handle it appropriately */
-        for (String l : input_data)
-        {
-            CliMessage message = new CliMessage(l);
-            String privmsg = (l.split("\\s+", 3).length >= 3) ? l.split("\\s+", 3)[2] : null;
-            String prefix = message.getPrefix();
+            /* Parameters are taken from the line as the handlers ask for them */
             String command = message.getCommand();
-            List<String> params = message.getParameters();
 
             switch (command)
             {
                 case "PONG":
-                    m_pingtimer = 100;
+                    /* Any input counts as activity, the ping timer is rescheduled from it */
                     break;
                 case "JOIN":
-                    if (!params.isEmpty())
+                    if (message.getParameterCount() > 0)
                     {
-                        for (String p : params)
+                        for (String p : message.getParameterAsList(0))
                         {
-                            Channel channel = m_connection.getIRCServer().getChannel(p);
-
-                            if (channel == null)
-                            {
-                                channel = new Channel(m_connection.getIRCServer(), p, "", "");
-                                m_connection.getIRCServer().getChannels().put(p, channel);
-                            }
-
-                            channel.clientJoin(this);
+                            joinChan(p);
                         }
                     }
                     else
@@ -87,15 +83,17 @@ public class Client
                     }
                     break;
                 case "PART":
-                    if (!params.isEmpty())
+                    if (message.getParameterCount() > 0)
                     {
-                        for (String p : params)
+                        String reason = (message.getParameterCount() >= 2) ? message.getParameter(1) : "For an unknown reason.";
+
+                        for (String p : message.getParameterAsList(0))
                         {
                             Channel channel = m_connection.getIRCServer().getChannel(p);
 
                             if (channel != null)
                             {
-                                channel.clientPart(this, "For an unknown reason.");
+                                channel.clientPart(this, reason);
                             }
                         }
                     }
@@ -106,24 +104,34 @@ public class Client
                     break;
                 case "PRIVMSG":
                 case "NOTICE":
-                    if (!params.isEmpty() || privmsg == null)
+                    if (message.getParameterCount() >= 2)
                     {
-                        if (params.get(0).startsWith("#"))
+                        String target = message.getParameter(0);
+                        String text = message.getParameter(1);
+
+                        if (target.startsWith("#"))
                         {
-                            Channel channel = m_channels.get(params.get(0));
+                            Channel channel = m_connection.getIRCServer().getChannel(target);
 
                             if (channel != null)
                             {
-                                channel.sendMsgAndFlush(this, new ServMessage(m_connection, command, params.get(0), privmsg));
+                                channel.clientMsg(this, command, text);
                             }
                         }
                         else
                         {
-                            Client client = m_connection.getIRCServer().getClient(params.get(0));
+                            IRCServer ircserver = m_connection.getIRCServer();
+                            Client client = ircserver.getClient(target);
 
                             if (client != null)
                             {
-                                client.getConnection().sendMsgAndFlush(new ServMessage(m_connection, command, params.get(0), privmsg));
+                                client.privateMsg(this, command, text);
+                            }
+
+                            /* The nick may be on another node of the cluster */
+                            else if (ircserver.getCluster() != null)
+                            {
+                                ircserver.getCluster().privateMsg(target, new ServMessage(m_connection, command, target, text));
                             }
                         }
                     }
@@ -133,17 +141,18 @@ public class Client
                     }
                     break;
                 case "WHOIS":
-                    if (!params.isEmpty())
+                    if (message.getParameterCount() > 0)
                     {
-                        for (String p : params)
+                        for (int i = 0; i < message.getParameterCount(); i++)
                         {
+                            String p = message.getParameter(i);
                             Client client = m_connection.getIRCServer().getClient(p);
 
                             if (client != null)
                             {
                                 Connection c = client.getConnection();
                                 UserInfo u = c.getUser();
-                                m_connection.sendMsg(new ServMessage(m_connection.getIRCServer(), CMDs.RPL_WHOISUSER, m_connection.getNick(), c.getNick(), u.getUserName(), u.getHostName(), "*", u.getRealName() + " "));
+                                m_connection.sendMsg(new ServMessage(m_connection.getIRCServer(), CMDs.RPL_WHOISUSER, m_connection.getNick(), c.getNick(), u.getUserName(), u.getHostName(), "*", u.getRealName()));
                                 m_connection.sendMsgAndFlush(new ServMessage(m_connection.getIRCServer(), CMDs.RPL_ENDOFWHOIS, m_connection.getNick(), c.getNick(), "End of /WHOIS list."));
                             }
                             else
@@ -153,11 +162,26 @@ public class Client
                         }
                     }
                     break;
+                case "NAMES":
+                    for (String p : message.getParameterAsList(0))
+                    {
+                        Channel channel = m_connection.getIRCServer().getChannel(p);
+
+                        if (channel != null)
+                        {
+                            channel.sendNames(this);
+                        }
+                        else
+                        {
+                            m_connection.sendMsgAndFlush(new ServMessage(m_connection.getIRCServer(), CMDs.RPL_ENDOFNAMES, m_connection.getNick(), p, "End of /NAMES list."));
+                        }
+                    }
+                    break;
                 case "TOPIC":
-                    if (!params.isEmpty())
+                    if (message.getParameterCount() >= 2)
                     {
-                        Channel channel = m_connection.getIRCServer().getChannel(params.get(0));
-                        String topic = privmsg;
+                        Channel channel = m_connection.getIRCServer().getChannel(message.getParameter(0));
+                        String topic = message.getParameter(1);
 
                         if (channel != null && !topic.isEmpty())
                         {
@@ -165,14 +189,197 @@ public class Client
                         }
                     }
                     break;
+                case "NICK":
+                    if (message.getParameterCount() > 0)
+                    {
+                        changeNick(message.getParameter(0));
+                    }
+                    else
+                    {
+                        m_connection.sendMsgAndFlush(new ServMessage(m_connection.getIRCServer(), CMDs.ERR_NONICKNAMEGIVEN, m_connection.getNick(), "No nickname given."));
+                    }
+                    break;
+                case "LUSERS":
+                    m_connection.sendBufferAndFlush(m_connection.getIRCServer().getWelcomeBurst().renderLusers(m_connection.getNick(), m_connection.getIRCServer().getCounters()));
+                    break;
+                case "STATS":
+                    sendStats(message.getParameter(0));
+                    break;
+                case "REHASH":
+                    rehash();
+                    break;
+                case "CONNECT":
+                    if (message.getParameterCount() > 0)
+                    {
+                        connect(message.getParameter(0));
+                    }
+                    else
+                    {
+                        m_connection.sendMsgAndFlush(new ServMessage(m_connection, CMDs.ERR_NEEDMOREPARAMS, command, "Not enough parameters."));
+                    }
+                    break;
                 case "QUIT":
-                    quitChans(message.getParameter(0));
+                    /* The channels are told when the connection is unregistered */
+                    m_connection.setQuitReason(message.getParameter(0));
                     m_connection.setState(ConnState.DISCONNECTED);
                     break;
             }
         }
     }
 
+    public void rehash()
+    {
+        IRCServer ircserver = m_connection.getIRCServer();
+        String nick = m_connection.getNick();
+
+        /* There are no operators yet, only local connections may reload the configuration */
+        if (!m_connection.getHost().isLoopbackAddress())
+        {
+            m_connection.sendMsgAndFlush(new ServMessage(ircserver, CMDs.ERR_NOPRIVILEGES, nick, "Permission Denied- You're not an IRC operator"));
+            return;
+        }
+
+        m_connection.sendMsgAndFlush(new ServMessage(ircserver, CMDs.RPL_REHASHING, nick, ircserver.getConfig().getFile(), "Rehashing"));
+        String error = ircserver.rehash();
+
+        if (error != null)
+        {
+            m_connection.sendMsgAndFlush(new ServMessage(ircserver, "NOTICE", nick, "*** Rehash failed, the previous configuration stays in use: " + error));
+        }
+    }
+
+    public void connect(String name)
+    {
+        IRCServer ircserver = m_connection.getIRCServer();
+        String nick = m_connection.getNick();
+        LinkBlock link = ircserver.getConfig().getLink(name);
+
+        /* Same as REHASH, only local connections may link servers */
+        if (!m_connection.getHost().isLoopbackAddress())
+        {
+            m_connection.sendMsgAndFlush(new ServMessage(ircserver, CMDs.ERR_NOPRIVILEGES, nick, "Permission Denied- You're not an IRC operator"));
+            return;
+        }
+
+        if (link == null || link.getHost().isEmpty())
+        {
+            m_connection.sendMsgAndFlush(new ServMessage(ircserver, CMDs.ERR_NOSUCHSERVER, nick, name, "No link block with a host for that server."));
+            return;
+        }
+
+        if (ircserver.getServer(link.getName()) != null)
+        {
+            m_connection.sendMsgAndFlush(new ServMessage(ircserver, "NOTICE", nick, "*** " + link.getName() + " is already linked."));
+            return;
+        }
+
+        m_connection.sendMsgAndFlush(new ServMessage(ircserver, "NOTICE", nick, "*** Connecting to " + link.getName() + " on " + link.getHost() + ":" + link.getPort() + "."));
+        ircserver.connectServer(link);
+    }
+
+    /* Flood cost of a command in units of the rate of the connection class */
+    private int cost(CliMessage message)
+    {
+        switch (message.getCommand())
+        {
+            case "PONG":
+                return 0;
+            case "JOIN":
+                return 2 * Math.max(message.getParameterAsList(0).size(), 1);
+            case "NICK":
+            case "WHO":
+            case "WHOIS":
+            case "LIST":
+            case "NAMES":
+                return 2;
+            case "PRIVMSG":
+            case "NOTICE":
+                /* Messages to big channels cost more, they are multiplied by the fan-out */
+                Channel channel = message.getParameter(0).startsWith("#") ? m_connection.getIRCServer().getChannel(message.getParameter(0)) : null;
+
+                return channel != null ? 1 + channel.getMembers().size() / LARGE_CHANNEL : 1;
+            default:
+                return 1;
+        }
+    }
+
+    public void sendStats(String query)
+    {
+        IRCServer ircserver = m_connection.getIRCServer();
+        String nick = m_connection.getNick();
+
+        /* f: fan-out time of channel messages by channel size */
+        if (query.equals("f"))
+        {
+            Histogram[] times = ircserver.getFanoutTimes();
+
+            for (int i = 0; i < times.length; i++)
+            {
+                String size = i < IRCServer.FANOUT_BUCKETS.length ? "<=" + IRCServer.FANOUT_BUCKETS[i] : ">" + IRCServer.FANOUT_BUCKETS[i - 1];
+                m_connection.sendMsg(new ServMessage(ircserver, CMDs.RPL_STATSDEBUG, nick, "fanout members" + size + " " + times[i]));
+            }
+        }
+
+        /* e: time per pass of each event loop */
+        if (query.equals("e"))
+        {
+            for (EventLoop loop : ircserver.getEventLoops())
+            {
+                m_connection.sendMsg(new ServMessage(ircserver, CMDs.RPL_STATSDEBUG, nick, "loop " + loop.getId() + " connections=" + loop.getLoad() + " pass " + loop.getPassTimes()));
+            }
+        }
+
+        /* l: the links, how many users and channels are routed through each and how well a compressed one packs */
+        if (query.equals("l"))
+        {
+            for (Server link : ircserver.getLinks())
+            {
+                int users = 0;
+                int channels = 0;
+
+                for (Client client : ircserver.getUidTable().values())
+                {
+                    if (client.getRoute() == link)
+                    {
+                        users++;
+                    }
+                }
+
+                for (Channel channel : ircserver.getChannels().values())
+                {
+                    if (channel.getRoutes().getCount(link) > 0)
+                    {
+                        channels++;
+                    }
+                }
+
+                LinkCompression zip = link.getConnection().getCompression();
+                m_connection.sendMsg(new ServMessage(ircserver, CMDs.RPL_STATSDEBUG, nick, "link " + link.getName() + " users=" + users + " channels=" + channels + (zip != null ? " zip " + zip : "")));
+            }
+        }
+
+        /* c: the nodes of the cluster and how many nicks and channels this node owns */
+        if (query.equals("c") && ircserver.getCluster() != null)
+        {
+            Cluster cluster = ircserver.getCluster();
+            m_connection.sendMsg(new ServMessage(ircserver, CMDs.RPL_STATSDEBUG, nick, "cluster node " + cluster.getNode() + " of " + String.join(",", cluster.getNodes()) + " nicks=" + cluster.getOwnedNicks() + " channels=" + cluster.getOwnedChannels()));
+        }
+
+        /* u: uptime and the highest connection counts */
+        if (query.equals("u"))
+        {
+            Counters counters = ircserver.getCounters();
+            long uptime = (System.currentTimeMillis() - counters.getStartTime()) / 1000;
+            String time = String.format("Server Up %d days %d:%02d:%02d", uptime / 86400, uptime / 3600 % 24, uptime / 60 % 60, uptime % 60);
+
+            m_connection.sendMsg(new ServMessage(ircserver, CMDs.RPL_STATSUPTIME, nick, time));
+            m_connection.sendMsg(new ServMessage(ircserver, CMDs.RPL_STATSCONN, nick, "Highest connection count: " + counters.getMaxConnections() + " (" + counters.getMaxLocalUsers() + " clients)"));
+            m_connection.sendMsg(new ServMessage(ircserver, CMDs.RPL_STATSDEBUG, nick, "flood throttled=" + counters.getThrottled() + " excessflood=" + counters.getExcessFlood()));
+        }
+
+        m_connection.sendMsgAndFlush(new ServMessage(ircserver, CMDs.RPL_ENDOFSTATS, nick, query.isEmpty() ? "*" : query, "End of /STATS report."));
+    }
+
     public void sendMsg(ServMessage message)
     {
         m_connection.sendMsg(message);
@@ -190,64 +397,341 @@ public class Client
 
     public void sendMsgToChans(ServMessage message)
     {
-        Iterator<Entry<String, Channel>> i = m_channels.entrySet().iterator();
-
-        while (i.hasNext())
+        for (Channel c : getChannels())
         {
-            Channel c = (Channel) i.next();
             c.sendMsg(message);
         }
     }
 
     public void sendMsgToChansAndFlush(ServMessage message)
     {
-        Iterator<Entry<String, Channel>> i = m_channels.entrySet().iterator();
-
-        while (i.hasNext())
+        for (Channel c : getChannels())
         {
-            Channel c = (Channel) i.next();
             c.sendMsgAndFlush(message);
         }
     }
 
-    public void quitChans(String reason)
+    public void joinChan(String name)
+    {
+        IRCServer ircserver = m_connection.getIRCServer();
+        Channel channel = ircserver.getChannel(name);
+
+        if (channel == null)
+        {
+            channel = ircserver.createChannel(name);
+        }
+
+        channel.clientJoin(this);
+    }
+
+    public void quitChans(String reason, Runnable done)
+    {
+        ServMessage message = new ServMessage(m_connection, "QUIT", reason);
+
+        /* No channel takes us in from here on, a join that is still queued is dropped */
+        synchronized (this)
+        {
+            m_quit = true;
+        }
+
+        sendToPeers((channel, members) -> channel.clientQuit(this, members), message, false, done);
+    }
+
+    public void changeNick(String nick)
+    {
+        IRCServer ircserver = m_connection.getIRCServer();
+        String old = m_connection.getNick();
+
+        if (nick.equals(old))
+        {
+            return;
+        }
+
+        if (!isValidNick(nick))
+        {
+            m_connection.sendMsgAndFlush(new ServMessage(ircserver, CMDs.ERR_ERRONEUSNICKNAME, old, nick, "Erroneous nickname."));
+            return;
+        }
+
+        /* A change of case is still the same nick, it stays registered as it is */
+        if (!CaseMapping.getDefault().equalsIgnoreCase(old, nick))
+        {
+            if (ircserver.getClients().putIfAbsent(nick, this) != null)
+            {
+                m_connection.sendMsgAndFlush(new ServMessage(ircserver, CMDs.ERR_NICKNAMEINUSE, old, nick, "Nickname is already in use."));
+                return;
+            }
+
+            /* In a cluster the new nick is only ours once its owner grants it, the old one is kept until then */
+            if (ircserver.getCluster() != null)
+            {
+                ircserver.getCluster().claimNick(nick, granted -> m_connection.getEventLoop().execute(() -> nickClaimed(old, nick, granted)));
+                return;
+            }
+
+            ircserver.getClients().remove(old, this);
+        }
+
+        setNick(nick);
+    }
+
+    /* The answer of the cluster to a change of nick, on the loop of this client */
+    private void nickClaimed(String old, String nick, boolean granted)
     {
-        Iterator<Entry<String, Channel>> i = m_channels.entrySet().iterator();
+        IRCServer ircserver = m_connection.getIRCServer();
 
-        while (i.hasNext())
+        /* Quit or changed to another nick meanwhile, the reservation is given back */
+        if (m_connection.getState() != ConnState.CONNECTED_AS_CLIENT || !m_connection.getNick().equals(old))
         {
-            Entry<String, Channel> e = i.next();
-            Channel channel = (Channel) e.getValue();
-            channel.clientQuit(this, reason);
+            ircserver.getClients().remove(nick, this);
+
+            if (granted)
+            {
+                ircserver.getCluster().releaseNick(nick);
+            }
+
+            return;
+        }
+
+        if (!granted)
+        {
+            ircserver.getClients().remove(nick, this);
+            m_connection.sendMsgAndFlush(new ServMessage(ircserver, CMDs.ERR_NICKNAMEINUSE, old, nick, "Nickname is already in use."));
+            return;
         }
+
+        ircserver.getClients().remove(old, this);
+        ircserver.getCluster().releaseNick(old);
+        setNick(nick);
     }
 
-    public void quitChan(Channel channel, String reason)
+    private void setNick(String nick)
     {
-        if (m_channels.get(channel.getName()) != null)
+        IRCServer ircserver = m_connection.getIRCServer();
+
+        m_nickTS = System.currentTimeMillis() / 1000;
+        ircserver.sendToLinks(null, new ServMessage(m_uid, "NICK", nick, Long.toString(m_nickTS)));
+
+        if (ircserver.getCluster() != null)
         {
-            channel.clientQuit(this, reason);
+            ircserver.getCluster().peersMsg(getChannels(), new ServMessage(m_connection, "NICK", nick));
         }
+
+        rename(nick);
     }
 
-    public void addChan(Channel channel)
+    /* Tells the peers about a new nick that is already registered, a remote user does not see its own NICK */
+    public void rename(String nick)
     {
-        m_channels.put(channel.getName(), channel);
+        /* Sent with the old prefix, the way the peers still know us */
+        ServMessage message = new ServMessage(m_connection, "NICK", nick);
+        m_connection.setNick(nick);
+
+        sendToPeers((channel, members) -> channel.clientRenamed(this, members), message, isLocal(), () -> {});
     }
 
-    public void removeChans()
+    /*
+     * A message from a user to this one. A user of this server gets it right away, a remote one through the link
+     * that leads to its server, with both ends named by their UID. A message that would go back out of the link
+     * it came in from means the routes do not agree, it is dropped instead of sent in circles.
+     */
+    public void privateMsg(Client from, String command, String text)
     {
-        m_channels.clear();
+        if (isLocal())
+        {
+            m_connection.sendMsgAndFlush(new ServMessage(from.getConnection(), command, m_connection.getNick(), text));
+        }
+        else if (getRoute() != from.getRoute())
+        {
+            getRoute().send(new ServMessage(from.getUid(), command, m_uid, text));
+        }
+        else
+        {
+            s_traffic.debug("Dropped %s from %s to %s, it would return to %s.", command, from.getUid(), m_uid, getRoute().getName());
+        }
     }
 
-    public void removeChan(Channel channel)
+    private static boolean isValidNick(String nick)
     {
-        m_channels.remove(channel.getName());
+        if (nick.isEmpty() || nick.length() > Consts.NICKLEN || Character.isDigit(nick.charAt(0)) || nick.charAt(0) == '-')
+        {
+            return false;
+        }
+
+        for (int i = 0; i < nick.length(); i++)
+        {
+            if (" ,*?!@:#".indexOf(nick.charAt(i)) >= 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
     }
 
-    public void setPingTimer(int pingtimer)
+    /*
+     * Runs a command on every channel of this client, then sends the message once to everyone it shares a
+     * channel with. Each channel hands over its members when it has run the command and the last one to finish
+     * walks them all, marking the peers it has sent to, so the cost is one message per peer and not per channel.
+     */
+    private void sendToPeers(BiConsumer<Channel, Consumer<Members>> command, ServMessage message, boolean self, Runnable done)
     {
-        m_pingtimer = pingtimer;
+        List<Channel> channels = getChannels();
+        Members[] snapshots = new Members[channels.size()];
+        AtomicInteger pending = new AtomicInteger(channels.size() + 1);
+        Runnable finish = () ->
+        {
+            deliverToPeers(snapshots, message, self);
+            done.run();
+        };
+
+        for (int i = 0; i < channels.size(); i++)
+        {
+            int slot = i;
+
+            command.accept(channels.get(i), members ->
+            {
+                snapshots[slot] = members;
+
+                if (pending.decrementAndGet() == 0)
+                {
+                    finish.run();
+                }
+            });
+        }
+
+        if (pending.decrementAndGet() == 0)
+        {
+            finish.run();
+        }
+    }
+
+    private void deliverToPeers(Members[] snapshots, ServMessage message, boolean self)
+    {
+        IdTable<Client> clients = m_connection.getIRCServer().getClientTable();
+        VisitMarks peers = s_peers.get();
+        peers.clear();
+        peers.visit(m_id);
+
+        if (self)
+        {
+            m_connection.sendMsgAndFlush(message);
+        }
+
+        for (Members members : snapshots)
+        {
+            for (int i = 0; i < members.size(); i++)
+            {
+                int id = members.getId(i);
+
+                if (peers.visit(id))
+                {
+                    Client c = clients.get(id);
+
+                    if (c != null)
+                    {
+                        c.getConnection().sendMsgAndFlush(message);
+                    }
+                }
+            }
+        }
+    }
+
+    /* The channel ids are kept sorted and replaced as a whole, readers never lock. False once we have quit */
+    public synchronized boolean addChan(Channel channel)
+    {
+        if (m_quit)
+        {
+            return false;
+        }
+
+        int[] channels = m_channels;
+        int i = Arrays.binarySearch(channels, channel.getId());
+
+        if (i < 0)
+        {
+            i = -i - 1;
+            int[] result = new int[channels.length + 1];
+            System.arraycopy(channels, 0, result, 0, i);
+            result[i] = channel.getId();
+            System.arraycopy(channels, i, result, i + 1, channels.length - i);
+            m_channels = result;
+        }
+
+        return true;
+    }
+
+    public synchronized void removeChans()
+    {
+        m_channels = new int[0];
+    }
+
+    public synchronized void removeChan(Channel channel)
+    {
+        int[] channels = m_channels;
+        int i = Arrays.binarySearch(channels, channel.getId());
+
+        if (i >= 0)
+        {
+            int[] result = new int[channels.length - 1];
+            System.arraycopy(channels, 0, result, 0, i);
+            System.arraycopy(channels, i + 1, result, i, channels.length - i - 1);
+            m_channels = result;
+        }
+    }
+
+    public void setId(int id)
+    {
+        m_id = id;
+    }
+
+    public int getId()
+    {
+        return m_id;
+    }
+
+    public void setUid(String uid)
+    {
+        m_uid = uid;
+    }
+
+    public void setNickTS(long ts)
+    {
+        m_nickTS = ts;
+    }
+
+    public void setServer(Server server)
+    {
+        m_server = server;
+    }
+
+    /* Unique in the network, the id of the server the user is on followed by six characters */
+    public String getUid()
+    {
+        return m_uid;
+    }
+
+    /* When the nick was taken, in seconds, the older one wins a collision */
+    public long getNickTS()
+    {
+        return m_nickTS;
+    }
+
+    /* The server the user is on, null for a user of this server */
+    public Server getServer()
+    {
+        return m_server;
+    }
+
+    public boolean isLocal()
+    {
+        return m_server == null;
+    }
+
+    /* The link this user is reached through, null for a user of this server */
+    public Server getRoute()
+    {
+        return m_server != null ? m_server.getLink() : null;
     }
 
     public Connection getConnection()
@@ -255,19 +739,39 @@ public class Client
         return m_connection;
     }
 
-    public Map<String, Channel> getChannels()
+    public boolean isOn(Channel channel)
     {
-        return m_channels;
+        return Arrays.binarySearch(m_channels, channel.getId()) >= 0;
     }
 
-    public Channel getChannel(String key)
+    public int getChannelCount()
     {
-        return m_channels.get(key);
+        return m_channels.length;
+    }
+
+    public List<Channel> getChannels()
+    {
+        int[] channels = m_channels;
+        List<Channel> result = new ArrayList<Channel>(channels.length);
+
+        for (int id : channels)
+        {
+            Channel channel = m_connection.getIRCServer().getChannelById(id);
+
+            if (channel != null)
+            {
+                result.add(channel);
+            }
+        }
+
+        return result;
     }
 
-    public int getPingTimer()
+    public Channel getChannel(String key)
     {
-        return m_pingtimer;
+        Channel channel = m_connection.getIRCServer().getChannel(key);
+
+        return channel != null && isOn(channel) ? channel : null;
     }
 
-}
\ No newline at end of file
+}
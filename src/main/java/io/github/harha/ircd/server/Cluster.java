@@ -0,0 +1,604 @@
+package io.github.harha.ircd.server;
+
+import io.github.harha.ircd.util.CaseMapping;
+import io.github.harha.ircd.util.HashRing;
+import io.github.harha.ircd.util.Macros;
+import io.github.harha.ircd.util.VisitMarks;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class Cluster implements ClusterBus.Handler
+{
+
+    /*
+     * Several servers behind one load balancer that act as one, without a hub and without a copy of the whole
+     * state on each node. Nicks and channel names are spread over the nodes by a consistent hash ring, the node
+     * that owns a name is the only one that knows who holds it:
+     *
+     * - a nick is claimed from its owner before a client may use it, the owner grants it to one node only
+     * - the owner of a channel knows which nodes have members on it, a channel line goes from the node of the
+     *   sender to the owner and from there once to each of those nodes
+     * - a private line goes to the owner of the nick and from there to the node of the recipient
+     *
+     * Each node keeps its own users and its own channel objects with the local members only. Adding a node
+     * moves about 1/n of the names, the nodes hand their names over to the new owners on REHASH.
+     */
+    private IRCServer                          m_ircserver;
+    private String                             m_node;
+    private ClusterBus                         m_bus;
+    private int                                m_vnodes;
+    private long                               m_claimTimeout;
+    private volatile HashRing                  m_ring;
+    private ConcurrentMap<String, String>      m_nicks;
+    private ConcurrentMap<String, Set<String>> m_channels;
+    private ConcurrentMap<Long, Claim>         m_claims;
+    private AtomicLong                         m_nextClaim;
+    private ScheduledThreadPoolExecutor        m_timer;
+
+    public Cluster(IRCServer ircserver, String node, Map<String, String> nodes, int vnodes, long claimtimeout, ClusterBus bus)
+    {
+        m_ircserver = ircserver;
+        m_node = node;
+        m_bus = bus;
+        m_vnodes = vnodes;
+        m_claimTimeout = claimtimeout;
+        m_ring = new HashRing(nodes.keySet(), vnodes);
+        m_nicks = new ConcurrentHashMap<String, String>();
+        m_channels = new ConcurrentHashMap<String, Set<String>>();
+        m_claims = new ConcurrentHashMap<Long, Claim>();
+        m_nextClaim = new AtomicLong(0);
+        m_timer = new ScheduledThreadPoolExecutor(1, r ->
+        {
+            Thread thread = new Thread(r, "mirage-cluster-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_timer.setRemoveOnCancelPolicy(true);
+
+        m_bus.setNodes(nodes);
+    }
+
+    public void start() throws IOException
+    {
+        m_bus.start(m_node, this);
+        Macros.LOG("Cluster node %s started, %d nodes.", m_node, m_ring.getNodes().size());
+    }
+
+    public void shutdown()
+    {
+        m_bus.shutdown();
+        m_timer.shutdownNow();
+    }
+
+    /*
+     * A new set of nodes from REHASH. Each node drops the names it no longer owns and tells the new owners of
+     * its own nicks and channels about them, so the partitions are whole again once every node has rehashed.
+     */
+    public synchronized void setNodes(Map<String, String> nodes)
+    {
+        HashRing ring = new HashRing(nodes.keySet(), m_vnodes);
+
+        m_bus.setNodes(nodes);
+
+        if (ring.getNodes().equals(m_ring.getNodes()))
+        {
+            return;
+        }
+
+        m_ring = ring;
+        m_nicks.keySet().removeIf(key -> !isOwner(key));
+        m_channels.keySet().removeIf(key -> !isOwner(key));
+        sendHoldings(null);
+
+        Macros.LOG("Cluster has %d nodes, names were handed over to their new owners.", ring.getNodes().size());
+    }
+
+    /* Tells the owners of the nicks and channels of this node about them, all owners or only the given one */
+    private synchronized void sendHoldings(String node)
+    {
+        for (Client client : m_ircserver.getClients().values())
+        {
+            String nick = client.getConnection().getNick();
+
+            if (client.isLocal() && client.getConnection().getState() == ConnState.CONNECTED_AS_CLIENT && (node == null || node.equals(getOwner(nick))))
+            {
+                hold(nick);
+            }
+        }
+
+        for (Channel channel : m_ircserver.getChannels().values())
+        {
+            if (node == null || node.equals(getOwner(channel.getName())))
+            {
+                channelChanged(channel.getName());
+            }
+        }
+    }
+
+    /*
+     * Asks the owner of the nick for it, done gets whether it was granted, exactly once, on a thread of the bus
+     * or this one. An owner that does not answer in time counts as a refusal.
+     */
+    public void claimNick(String nick, Consumer<Boolean> done)
+    {
+        String key = getKey(nick);
+        String owner = m_ring.getOwner(key);
+
+        if (owner.equals(m_node))
+        {
+            done.accept(claim(key, m_node));
+            return;
+        }
+
+        long id = m_nextClaim.incrementAndGet();
+        Claim claim = new Claim(owner, done);
+        m_claims.put(id, claim);
+        claim.m_timeout = m_timer.schedule(() -> answer(id, false), m_claimTimeout, TimeUnit.MILLISECONDS);
+        m_bus.send(owner, "CLAIM " + id + " " + nick);
+    }
+
+    /* Whoever takes the claim out of the table first answers it */
+    private boolean answer(long id, boolean granted)
+    {
+        Claim claim = m_claims.remove(id);
+
+        if (claim == null)
+        {
+            return false;
+        }
+
+        if (claim.m_timeout != null)
+        {
+            claim.m_timeout.cancel(false);
+        }
+
+        claim.m_done.accept(granted);
+
+        return true;
+    }
+
+    public void releaseNick(String nick)
+    {
+        String key = getKey(nick);
+        String owner = m_ring.getOwner(key);
+
+        if (owner.equals(m_node))
+        {
+            m_nicks.remove(key, m_node);
+        }
+        else
+        {
+            m_bus.send(owner, "RELEASE " + nick);
+        }
+    }
+
+    /* Takes a nick this node already has, e.g. for a new owner after the ring changed */
+    private void hold(String nick)
+    {
+        String key = getKey(nick);
+        String owner = m_ring.getOwner(key);
+
+        if (owner.equals(m_node))
+        {
+            m_nicks.put(key, m_node);
+        }
+        else
+        {
+            m_bus.send(owner, "HOLD " + nick);
+        }
+    }
+
+    private boolean claim(String key, String node)
+    {
+        String holder = m_nicks.putIfAbsent(key, node);
+
+        return holder == null || holder.equals(node);
+    }
+
+    /*
+     * The channel was created or removed here. What is sent is whether it exists now, not the change, so a removal
+     * and a new channel of the same name racing on two threads still leave the owner with the last state.
+     */
+    public synchronized void channelChanged(String name)
+    {
+        if (m_ircserver.getChannel(name) != null)
+        {
+            toOwner(name, "CJOIN " + name, key -> addNode(key, m_node));
+        }
+        else
+        {
+            toOwner(name, "CPART " + name, key -> removeNode(key, m_node));
+        }
+    }
+
+    /* A line of a local member to the members on the other nodes, the local ones already have it */
+    public void channelMsg(String name, ServMessage message)
+    {
+        String line = getLine(message);
+
+        toOwner(name, "CMSG " + name + " :" + line, key -> fanout(key, name, m_node, line));
+    }
+
+    /* A line to a nick that is not on this node */
+    public void privateMsg(String nick, ServMessage message)
+    {
+        String line = getLine(message);
+
+        toOwner(nick, "PMSG " + nick + " :" + line, key -> route(key, nick, line));
+    }
+
+    /*
+     * A QUIT or NICK of a local user, for everyone on the other nodes who shares a channel with it. The owners
+     * of its channels are many, so the line goes to every node once with the channels, each node delivers it
+     * once per local peer.
+     */
+    public void peersMsg(List<Channel> channels, ServMessage message)
+    {
+        if (channels.isEmpty())
+        {
+            return;
+        }
+
+        StringBuilder names = new StringBuilder();
+
+        for (Channel channel : channels)
+        {
+            names.append(names.length() > 0 ? "," : "").append(channel.getName());
+        }
+
+        String line = "PEERS " + names + " :" + getLine(message);
+
+        for (String node : m_ring.getNodes())
+        {
+            if (!node.equals(m_node))
+            {
+                m_bus.send(node, line);
+            }
+        }
+    }
+
+    private void toOwner(String name, String line, Consumer<String> local)
+    {
+        String key = getKey(name);
+        String owner = m_ring.getOwner(key);
+
+        if (owner.equals(m_node))
+        {
+            local.accept(key);
+        }
+        else
+        {
+            m_bus.send(owner, line);
+        }
+    }
+
+    @Override
+    public void receive(String from, String line)
+    {
+        CliMessage message = new CliMessage(line);
+        List<String> params = message.getParameters();
+
+        if (params.isEmpty())
+        {
+            return;
+        }
+
+        String name = params.get(0);
+
+        switch (message.getCommand())
+        {
+            case "CLAIM":
+                if (params.size() >= 2)
+                {
+                    /* Only the owner may grant a nick, a claim that reached another node after a change of the ring is refused */
+                    String key = getKey(params.get(1));
+                    boolean granted = isOwner(key) && claim(key, from);
+                    m_bus.send(from, "CLAIMED " + name + " " + (granted ? "1" : "0") + " " + params.get(1));
+                }
+                break;
+            case "CLAIMED":
+                if (params.size() >= 3)
+                {
+                    boolean granted = params.get(1).equals("1");
+
+                    /* The claim was already refused here, a late grant is given back so the owner does not keep it */
+                    if (!answer(parseId(name), granted) && granted)
+                    {
+                        m_bus.send(from, "RELEASE " + params.get(2));
+                    }
+                }
+                break;
+            case "RELEASE":
+                m_nicks.remove(getKey(name), from);
+                break;
+            case "HOLD":
+                m_nicks.put(getKey(name), from);
+                break;
+            case "CJOIN":
+                addNode(getKey(name), from);
+                break;
+            case "CPART":
+                removeNode(getKey(name), from);
+                break;
+            case "CMSG":
+                if (params.size() >= 2)
+                {
+                    fanout(getKey(name), name, from, params.get(1));
+                }
+                break;
+            case "CDELIVER":
+                if (params.size() >= 2)
+                {
+                    deliverChannel(name, params.get(1));
+                }
+                break;
+            case "PMSG":
+                if (params.size() >= 2)
+                {
+                    route(getKey(name), name, params.get(1));
+                }
+                break;
+            case "PDELIVER":
+                if (params.size() >= 2)
+                {
+                    deliverPrivate(name, params.get(1));
+                }
+                break;
+            case "PEERS":
+                if (params.size() >= 2)
+                {
+                    deliverPeers(message.getParameterAsList(0), params.get(1));
+                }
+                break;
+        }
+    }
+
+    @Override
+    public void nodeUp(String node)
+    {
+        sendHoldings(node);
+    }
+
+    @Override
+    public void nodeDown(String node)
+    {
+        m_nicks.values().removeIf(node::equals);
+
+        for (String key : m_channels.keySet())
+        {
+            removeNode(key, node);
+        }
+
+        /* Claims the node will never answer are refused */
+        for (Map.Entry<Long, Claim> e : m_claims.entrySet())
+        {
+            if (e.getValue().m_node.equals(node))
+            {
+                answer(e.getKey(), false);
+            }
+        }
+
+        Macros.LOG("Cluster node %s is down, its nicks and channels were released.", node);
+    }
+
+    private void addNode(String key, String node)
+    {
+        m_channels.compute(key, (k, nodes) ->
+        {
+            Set<String> result = nodes != null ? new HashSet<String>(nodes) : new HashSet<String>();
+            result.add(node);
+
+            return Collections.unmodifiableSet(result);
+        });
+    }
+
+    private void removeNode(String key, String node)
+    {
+        m_channels.computeIfPresent(key, (k, nodes) ->
+        {
+            if (!nodes.contains(node))
+            {
+                return nodes;
+            }
+
+            Set<String> result = new HashSet<String>(nodes);
+            result.remove(node);
+
+            return result.isEmpty() ? null : Collections.unmodifiableSet(result);
+        });
+    }
+
+    /* At the owner of a channel: once to every node with members but the one the line came from */
+    private void fanout(String key, String name, String from, String line)
+    {
+        Set<String> nodes = m_channels.get(key);
+
+        if (nodes == null)
+        {
+            return;
+        }
+
+        for (String node : nodes)
+        {
+            if (node.equals(from))
+            {
+                continue;
+            }
+
+            if (node.equals(m_node))
+            {
+                deliverChannel(name, line);
+            }
+            else
+            {
+                m_bus.send(node, "CDELIVER " + name + " :" + line);
+            }
+        }
+    }
+
+    /* At the owner of a nick: on to the node that holds it */
+    private void route(String key, String nick, String line)
+    {
+        String holder = m_nicks.get(key);
+
+        if (holder == null)
+        {
+            return;
+        }
+
+        if (holder.equals(m_node))
+        {
+            deliverPrivate(nick, line);
+        }
+        else
+        {
+            m_bus.send(holder, "PDELIVER " + nick + " :" + line);
+        }
+    }
+
+    private void deliverChannel(String name, String line)
+    {
+        Channel channel = m_ircserver.getChannel(name);
+
+        if (channel == null)
+        {
+            return;
+        }
+
+        CliMessage message = new CliMessage(line);
+
+        /* Every node keeps the topic of its copy of the channel */
+        if (message.getCommand().equals("TOPIC") && message.getParameters().size() >= 2)
+        {
+            channel.setTopic(null, message.getParameter(1));
+        }
+        else
+        {
+            channel.clusterMsg(parseLine(line));
+        }
+    }
+
+    private void deliverPrivate(String nick, String line)
+    {
+        Client client = m_ircserver.getClient(nick);
+
+        if (client != null && client.isLocal())
+        {
+            client.getConnection().sendMsgAndFlush(parseLine(line));
+        }
+    }
+
+    private void deliverPeers(List<String> names, String line)
+    {
+        ServMessage message = parseLine(line);
+        VisitMarks peers = new VisitMarks();
+
+        for (String name : names)
+        {
+            Channel channel = m_ircserver.getChannel(name);
+            Members members = channel != null ? channel.getMembers() : Members.EMPTY;
+
+            for (int i = 0; i < members.size(); i++)
+            {
+                Client client = peers.visit(members.getId(i)) ? m_ircserver.getClientById(members.getId(i)) : null;
+
+                if (client != null && client.isLocal())
+                {
+                    client.getConnection().sendMsgAndFlush(message);
+                }
+            }
+        }
+    }
+
+    private boolean isOwner(String key)
+    {
+        return m_node.equals(m_ring.getOwner(key));
+    }
+
+    private static String getKey(String name)
+    {
+        return CaseMapping.getDefault().toLowerCase(name);
+    }
+
+    private static String getLine(ServMessage message)
+    {
+        String line = message.toString();
+
+        return line.substring(0, line.length() - 2);
+    }
+
+    private static ServMessage parseLine(String line)
+    {
+        CliMessage message = new CliMessage(line);
+        List<String> params = message.getParameters();
+
+        return new ServMessage(message.getPrefix(), message.getCommand(), params.toArray(new String[params.size()]));
+    }
+
+    private static long parseId(String id)
+    {
+        try
+        {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    public String getNode()
+    {
+        return m_node;
+    }
+
+    /* The node that owns a nick or a channel name */
+    public String getOwner(String name)
+    {
+        return m_ring.getOwner(getKey(name));
+    }
+
+    public List<String> getNodes()
+    {
+        return m_ring.getNodes();
+    }
+
+    /* How many nicks and channels of the cluster this node keeps the owner tables of */
+    public int getOwnedNicks()
+    {
+        return m_nicks.size();
+    }
+
+    public int getOwnedChannels()
+    {
+        return m_channels.size();
+    }
+
+    /* A claim waiting for the answer of the owner */
+    private static class Claim
+    {
+
+        private String                      m_node;
+        private Consumer<Boolean>           m_done;
+        private volatile ScheduledFuture<?> m_timeout;
+
+        public Claim(String node, Consumer<Boolean> done)
+        {
+            m_node = node;
+            m_done = done;
+        }
+
+    }
+
+}
@@ -0,0 +1,36 @@
+package io.github.harha.ircd.server;
+
+import java.io.IOException;
+import java.util.Map;
+
+public interface ClusterBus
+{
+
+    /*
+     * Carries lines between the nodes of a cluster. Lines from one node to another arrive in the order they were
+     * sent, or the sender gets nodeDown for the node after them: a line is never dropped without it. Receive is
+     * called from the threads of the bus one at a time per sending node, nodeUp and nodeDown from any of them.
+     */
+    public interface Handler
+    {
+
+        public void receive(String from, String line);
+
+        /* Lines reach the node again, it is told about what this node holds at it */
+        public void nodeUp(String node);
+
+        /* The node went away or lines to it were lost, whatever it held is released */
+        public void nodeDown(String node);
+
+    }
+
+    public void start(String node, Handler handler) throws IOException;
+
+    /* The nodes and their addresses, also called again on REHASH */
+    public void setNodes(Map<String, String> nodes);
+
+    public void send(String node, String line);
+
+    public void shutdown();
+
+}
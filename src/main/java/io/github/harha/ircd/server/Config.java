@@ -0,0 +1,347 @@
+package io.github.harha.ircd.server;
+
+import io.github.harha.ircd.util.CaseMapping;
+import io.github.harha.ircd.util.FileUtils;
+import io.github.harha.ircd.util.IniFile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class Config
+{
+
+    /*
+     * An immutable, validated snapshot of main.ini and the MOTD. The server holds the current one in a volatile
+     * field and REHASH swaps in a new one as a whole, so a reader always sees the values of one load. Loops,
+     * casemapping and the resolver are set up from the first snapshot, changing them takes a restart.
+     */
+    private final String              m_file;
+    private final String              m_name;
+    private final String              m_serverName;
+    private final String              m_sid;
+    private final String              m_motdFile;
+    private final List<String>        m_motd;
+    private final int                 m_maxConns;
+    private final int                 m_loops;
+    private final CaseMapping         m_caseMapping;
+    private final int                 m_dnsThreads;
+    private final int                 m_dnsTimeout;
+    private final int                 m_dnsCache;
+    private final int                 m_dnsTTL;
+    private final int                 m_fanout;
+    private final int                 m_quantum;
+    private final int                 m_linkQuantum;
+    private final ConnClass           m_defaultClass;
+    private final List<ConnClass>     m_classes;
+    private final List<LinkBlock>     m_links;
+    private final String              m_clusterNode;
+    private final Map<String, String> m_clusterNodes;
+    private final String              m_clusterBus;
+    private final String              m_clusterPassword;
+    private final int                 m_clusterVnodes;
+    private final int                 m_claimTimeout;
+    private final IniFile             m_ini;
+
+    private Config(String file, IniFile ini)
+    {
+        m_file = file;
+        m_ini = ini;
+        m_name = ini.getString("[server]", "name", "mirage-ircd");
+        m_serverName = ini.getString("[server]", "servername", "");
+        m_sid = ini.getString("[server]", "sid", "001").toUpperCase();
+        m_motdFile = ini.getString("[server]", "motd", "motd.txt");
+        m_maxConns = getInt(ini, "[server]", "maxconns", 1028, 1);
+        m_loops = getInt(ini, "[server]", "loops", 0, 0);
+        m_caseMapping = CaseMapping.fromName(ini.getString("[server]", "casemapping", "rfc1459"));
+        m_dnsThreads = getInt(ini, "[server]", "dnsthreads", 4, 1);
+        m_dnsTimeout = getInt(ini, "[server]", "dnstimeout", 5000, 1);
+        m_dnsCache = getInt(ini, "[server]", "dnscache", 4096, 0);
+        m_dnsTTL = getInt(ini, "[server]", "dnsttl", 3600, 0);
+        m_fanout = getInt(ini, "[server]", "fanout", 1000, 1);
+        m_quantum = getInt(ini, "[server]", "quantum", 1024, 1);
+        m_linkQuantum = getInt(ini, "[server]", "linkquantum", 16384, 1);
+
+        if (m_caseMapping == null)
+        {
+            throw new IllegalArgumentException("[server] casemapping: unknown casemapping " + ini.getString("[server]", "casemapping", ""));
+        }
+
+        /* A digit and two digits or letters, unique in the network, the user ids of this server start with it */
+        if (!m_sid.matches("[0-9][0-9A-Z]{2}"))
+        {
+            throw new IllegalArgumentException("[server] sid: must be a digit and two digits or letters, was " + m_sid);
+        }
+
+        m_defaultClass = new ConnClass(ini, "[client]", "default", null);
+        List<ConnClass> classes = new ArrayList<ConnClass>();
+
+        for (String section : ini.getSections())
+        {
+            if (section.startsWith("[class ") && section.endsWith("]"))
+            {
+                classes.add(new ConnClass(ini, section, section.substring(7, section.length() - 1).trim(), m_defaultClass));
+            }
+        }
+
+        m_classes = Collections.unmodifiableList(classes);
+        List<LinkBlock> links = new ArrayList<LinkBlock>();
+
+        for (String section : ini.getSections())
+        {
+            if (section.startsWith("[link ") && section.endsWith("]"))
+            {
+                links.add(new LinkBlock(ini, section, section.substring(6, section.length() - 1).trim()));
+            }
+        }
+
+        m_links = Collections.unmodifiableList(links);
+        m_clusterNode = ini.getString("[cluster]", "node", "");
+        m_clusterBus = ini.getString("[cluster]", "bus", "tcp").toLowerCase();
+        m_clusterPassword = ini.getString("[cluster]", "password", "");
+        m_clusterVnodes = getInt(ini, "[cluster]", "vnodes", 64, 1);
+        m_claimTimeout = getInt(ini, "[cluster]", "claimtimeout", 10000, 1);
+        Map<String, String> nodes = new LinkedHashMap<String, String>();
+
+        /* name@host:port,name@host:port,... */
+        for (String node : ini.getString("[cluster]", "nodes", "").split(","))
+        {
+            String[] parts = node.trim().split("@");
+
+            if (parts.length != 2 || parts[0].isEmpty() || parts[1].lastIndexOf(':') < 1)
+            {
+                if (!node.trim().isEmpty())
+                {
+                    throw new IllegalArgumentException("[cluster] nodes: expected name@host:port, was " + node.trim());
+                }
+
+                continue;
+            }
+
+            nodes.put(parts[0], parts[1]);
+        }
+
+        m_clusterNodes = Collections.unmodifiableMap(nodes);
+
+        if (!m_clusterNode.isEmpty() && !m_clusterNodes.containsKey(m_clusterNode))
+        {
+            throw new IllegalArgumentException("[cluster] node: " + m_clusterNode + " is not one of the nodes");
+        }
+
+        if (!m_clusterBus.equals("tcp") && !m_clusterBus.equals("loopback"))
+        {
+            throw new IllegalArgumentException("[cluster] bus: must be tcp or loopback, was " + m_clusterBus);
+        }
+
+        List<String> motd = FileUtils.loadTextFile(m_motdFile, false);
+
+        if (motd == null)
+        {
+            motd = new ArrayList<String>();
+            motd.add("No message of the day set on this server. Please refer to the main.ini file for loading it.");
+        }
+
+        m_motd = Collections.unmodifiableList(motd);
+    }
+
+    /* Loads and validates the file, an invalid file throws and the previous snapshot stays in use */
+    public static Config load(String file)
+    {
+        IniFile ini = new IniFile(file);
+
+        if (!ini.isLoaded())
+        {
+            throw new IllegalArgumentException("File <" + file + "> could not be read.");
+        }
+
+        return new Config(file, ini);
+    }
+
+    static int getInt(IniFile ini, String section, String key, int defaultvalue, int min)
+    {
+        int result;
+
+        try
+        {
+            result = ini.getInt(section, key, defaultvalue);
+        } catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException(section + " " + key + ": not a number: " + ini.getString(section, key, ""));
+        }
+
+        if (result < min)
+        {
+            throw new IllegalArgumentException(section + " " + key + ": must be at least " + min + ", was " + result);
+        }
+
+        return result;
+    }
+
+    /* The first class whose mask matches the ip, in the order of the file, or the default class */
+    public ConnClass getConnClass(String ip)
+    {
+        for (ConnClass c : m_classes)
+        {
+            if (c.matches(ip))
+            {
+                return c;
+            }
+        }
+
+        return m_defaultClass;
+    }
+
+    public String getFile()
+    {
+        return m_file;
+    }
+
+    public IniFile getIniFile()
+    {
+        return m_ini;
+    }
+
+    public String getName()
+    {
+        return m_name;
+    }
+
+    /* The name of this server in the network, empty for the host name */
+    public String getServerName()
+    {
+        return m_serverName;
+    }
+
+    public String getSid()
+    {
+        return m_sid;
+    }
+
+    public String getMotdFile()
+    {
+        return m_motdFile;
+    }
+
+    public List<String> getMotd()
+    {
+        return m_motd;
+    }
+
+    public int getMaxConns()
+    {
+        return m_maxConns;
+    }
+
+    public int getLoops()
+    {
+        return m_loops;
+    }
+
+    public CaseMapping getCaseMapping()
+    {
+        return m_caseMapping;
+    }
+
+    public int getDNSThreads()
+    {
+        return m_dnsThreads;
+    }
+
+    public int getDNSTimeout()
+    {
+        return m_dnsTimeout;
+    }
+
+    public int getDNSCache()
+    {
+        return m_dnsCache;
+    }
+
+    public int getDNSTTL()
+    {
+        return m_dnsTTL;
+    }
+
+    public int getFanout()
+    {
+        return m_fanout;
+    }
+
+    /* Bytes of input a connection may run per turn of its event loop */
+    public int getQuantum()
+    {
+        return m_quantum;
+    }
+
+    /* The same for a server link, it carries the traffic of many users and gets a larger share */
+    public int getLinkQuantum()
+    {
+        return m_linkQuantum;
+    }
+
+    public ConnClass getDefaultClass()
+    {
+        return m_defaultClass;
+    }
+
+    public List<ConnClass> getClasses()
+    {
+        return m_classes;
+    }
+
+    /* The link block of a server, null if this server may not link with it */
+    public LinkBlock getLink(String name)
+    {
+        for (LinkBlock link : m_links)
+        {
+            if (link.getName().equalsIgnoreCase(name))
+            {
+                return link;
+            }
+        }
+
+        return null;
+    }
+
+    public List<LinkBlock> getLinks()
+    {
+        return m_links;
+    }
+
+    /* The name of this server in its cluster, empty when it is not in one */
+    public String getClusterNode()
+    {
+        return m_clusterNode;
+    }
+
+    /* The nodes of the cluster by name, with the address their bus listens on */
+    public Map<String, String> getClusterNodes()
+    {
+        return m_clusterNodes;
+    }
+
+    public String getClusterBus()
+    {
+        return m_clusterBus;
+    }
+
+    public String getClusterPassword()
+    {
+        return m_clusterPassword;
+    }
+
+    /* Points of each node on the hash ring */
+    public int getClusterVnodes()
+    {
+        return m_clusterVnodes;
+    }
+
+    /* Milliseconds a nick claim waits for the owner before it is refused */
+    public int getClaimTimeout()
+    {
+        return m_claimTimeout;
+    }
+
+}
@@ -0,0 +1,138 @@
+package io.github.harha.ircd.server;
+
+import io.github.harha.ircd.util.FileUtils;
+import io.github.harha.ircd.util.Macros;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class ConfigWatcher implements Runnable
+{
+
+    /* Editors write a file in several steps, changes within this many milliseconds are one rehash */
+    private static final long DEBOUNCE = 250;
+
+    private IRCServer         m_ircserver;
+    private WatchService      m_service;
+    private Set<Path>         m_files;
+    private Set<Path>         m_dirs;
+    private Thread            m_thread;
+
+    public ConfigWatcher(IRCServer ircserver) throws IOException
+    {
+        m_ircserver = ircserver;
+        m_service = FileSystems.getDefault().newWatchService();
+        m_files = ConcurrentHashMap.newKeySet();
+        m_dirs = ConcurrentHashMap.newKeySet();
+        m_thread = null;
+    }
+
+    public void start()
+    {
+        m_thread = new Thread(this, "mirage-config");
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    /* Watches the files a snapshot was loaded from, only files on disk can be watched */
+    public void watch(Config config)
+    {
+        watch(config.getFile());
+        watch(config.getMotdFile());
+    }
+
+    private void watch(String filepath)
+    {
+        File file = FileUtils.getFile(filepath);
+
+        if (file == null)
+        {
+            return;
+        }
+
+        Path path = file.toPath().toAbsolutePath();
+        m_files.add(path);
+
+        if (m_dirs.add(path.getParent()))
+        {
+            try
+            {
+                path.getParent().register(m_service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException e)
+            {
+                Macros.ERR("Cannot watch <%s> for changes: %s", path, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (true)
+            {
+                boolean changed = poll(m_service.take());
+
+                if (!changed)
+                {
+                    continue;
+                }
+
+                /* Collect the rest of the write before loading it */
+                WatchKey key;
+
+                while ((key = m_service.poll(DEBOUNCE, TimeUnit.MILLISECONDS)) != null)
+                {
+                    poll(key);
+                }
+
+                Macros.LOG("Configuration files have changed, rehashing...");
+                m_ircserver.rehash();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e)
+        {
+            /* Shutting down */
+        }
+    }
+
+    private boolean poll(WatchKey key)
+    {
+        boolean result = false;
+        Path dir = (Path) key.watchable();
+
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (event.context() instanceof Path && m_files.contains(dir.resolve((Path) event.context())))
+            {
+                result = true;
+            }
+        }
+
+        key.reset();
+
+        return result;
+    }
+
+    public void shutdown()
+    {
+        try
+        {
+            m_service.close();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+package io.github.harha.ircd.server;
+
+import io.github.harha.ircd.util.IniFile;
+
+public final class ConnClass
+{
+
+    /*
+     * The limits of a group of connections, picked by the ip address when the connection is accepted. The
+     * [client] section is the default class, a [class <name>] section applies to the ip addresses matching its
+     * mask and takes any limit it does not set from the default.
+     */
+    private final String   m_name;
+    private final String[] m_masks;
+    private final int      m_maxConns;
+    private final int      m_lineLen;
+    private final int      m_recvQ;
+    private final int      m_sendQ;
+    private final int      m_pingTime;
+    private final int      m_identTime;
+    private final int      m_floodBurst;
+    private final int      m_floodRate;
+
+    public ConnClass(IniFile ini, String section, String name, ConnClass parent)
+    {
+        m_name = name;
+        m_masks = ini.getString(section, "mask", "*").split("\\s*,\\s*");
+        m_maxConns = Config.getInt(ini, section, "maxconns", parent != null ? parent.m_maxConns : 10, 1);
+        m_lineLen = Config.getInt(ini, section, "linelen", parent != null ? parent.m_lineLen : 512, 512);
+        m_recvQ = Config.getInt(ini, section, "recvq", parent != null ? parent.m_recvQ : 8192, m_lineLen);
+        m_sendQ = Config.getInt(ini, section, "sendq", parent != null ? parent.m_sendQ : 262144, 512);
+        m_pingTime = Config.getInt(ini, section, "pingtime", parent != null ? parent.m_pingTime : 60, 1);
+        m_identTime = Config.getInt(ini, section, "identtime", parent != null ? parent.m_identTime : 30, 1);
+        m_floodBurst = Config.getInt(ini, section, "floodburst", parent != null ? parent.m_floodBurst : 10, 1);
+        m_floodRate = Config.getInt(ini, section, "floodrate", parent != null ? parent.m_floodRate : 500, 0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ConnClass[%s, maxconns=%d, recvq=%d, sendq=%d, pingtime=%d]", m_name, m_maxConns, m_recvQ, m_sendQ, m_pingTime);
+    }
+
+    public boolean matches(String ip)
+    {
+        for (String mask : m_masks)
+        {
+            if (matches(mask, 0, ip, 0))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /* Glob match, * is any run of characters and ? any single character */
+    private static boolean matches(String mask, int m, String s, int i)
+    {
+        while (m < mask.length())
+        {
+            char c = mask.charAt(m);
+
+            if (c == '*')
+            {
+                for (int k = i; k <= s.length(); k++)
+                {
+                    if (matches(mask, m + 1, s, k))
+                    {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
+            if (i >= s.length() || (c != '?' && c != s.charAt(i)))
+            {
+                return false;
+            }
+
+            m++;
+            i++;
+        }
+
+        return i == s.length();
+    }
+
+    public String getName()
+    {
+        return m_name;
+    }
+
+    public int getMaxConns()
+    {
+        return m_maxConns;
+    }
+
+    public int getLineLen()
+    {
+        return m_lineLen;
+    }
+
+    public int getRecvQ()
+    {
+        return m_recvQ;
+    }
+
+    public int getSendQ()
+    {
+        return m_sendQ;
+    }
+
+    public int getPingTime()
+    {
+        return m_pingTime;
+    }
+
+    public int getIdentTime()
+    {
+        return m_identTime;
+    }
+
+    /* Cost units a connection may run at once */
+    public int getFloodBurst()
+    {
+        return m_floodBurst;
+    }
+
+    /* Milliseconds it takes to earn back one cost unit, 0 turns flood control off */
+    public int getFloodRate()
+    {
+        return m_floodRate;
+    }
+
+}
@@ -2,5 +2,5 @@ package io.github.harha.ircd.server;
 
 public enum ConnState
 {
-    UNIDENTIFIED, IDENTIFIED_AS_CLIENT, IDENTIFIED_AS_SERVER, CONNECTED_AS_CLIENT, CONNECTED_AS_SERVER, DISCONNECTED
+    UNIDENTIFIED, IDENTIFIED_AS_CLIENT, CLAIMING_NICK, IDENTIFIED_AS_SERVER, CONNECTED_AS_CLIENT, CONNECTED_AS_SERVER, DISCONNECTED
 }
@@ -1,46 +1,157 @@
 package io.github.harha.ircd.server;
 
-import io.github.harha.ircd.util.Macros;
+import io.github.harha.ircd.util.Consts;
+import io.github.harha.ircd.util.Log;
+import io.github.harha.ircd.util.TimingWheel;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
 
 public class Connection
 {
 
-    private IRCServer      m_ircserver;
-    private Socket         m_socket;
-    private InetAddress    m_host;
-    private BufferedReader m_input;
-    private PrintWriter    m_output;
-    private String         m_nick;
-    private UserInfo       m_user;
-    private ServerInfo     m_server;
-    private String         m_pass;
-    private ConnState      m_state;
-    private int            m_identTime;
-    private Client         m_parent_client;
-    private Server         m_parent_server;
-
-    public Connection(IRCServer ircserver, Socket socket, BufferedReader input, PrintWriter output)
+    private static final int    MAX_TAGS_LENGTH   = 4096;
+    private static final int    MAX_WRITE_BUFFERS = 64;
+    private static final Log    s_traffic         = Log.get("traffic");
+    private static final byte[] s_none            = new byte[0];
+
+    private IRCServer         m_ircserver;
+    private EventLoop         m_loop;
+    private SocketChannel     m_channel;
+    private SelectionKey      m_key;
+    private InetAddress       m_host;
+    private String            m_ipAddr;
+    private String            m_hostname;
+    private boolean           m_resolving;
+    private ByteBuffer        m_linebuf;
+    private Deque<CliMessage> m_input;
+    private int               m_recvq_bytes;
+    private ConnClass         m_class;
+    private LinkBlock         m_link;
+    private int               m_recvq_max;
+    private int               m_maxline;
+    private Deque<ByteBuffer> m_output;
+    private ByteBuffer[]      m_writebufs;
+    private long              m_sendq_bytes;
+    private long              m_sendq_max;
+    private boolean           m_flushPending;
+    private boolean           m_peerZip;
+    private LinkCompression   m_zip;
+    private boolean           m_deflating;
+    private boolean           m_outputDropped;
+    private volatile String   m_nick;
+    private volatile String   m_prefix;
+    private volatile byte[]   m_prefixBytes;
+    private UserInfo          m_user;
+    private ServerInfo        m_server;
+    private String            m_pass;
+    private String            m_sid;
+    private ConnState         m_state;
+    private String            m_quitReason;
+    private TimingWheel.Timer m_timer;
+    private TimingWheel.Timer m_floodTimer;
+    private long              m_floodTime;
+    private int               m_deficit;
+    private boolean           m_exhausted;
+    private boolean           m_queued;
+    private long              m_lastActivity;
+    private boolean           m_pingSent;
+    private Client            m_parent_client;
+    private Server            m_parent_server;
+
+    public Connection(IRCServer ircserver, EventLoop loop, SocketChannel channel) throws IOException
     {
         /* Initialize all member variables and objects */
         m_ircserver = ircserver;
-        m_socket = socket;
-        m_host = socket.getInetAddress();
-        m_input = input;
-        m_output = output;
+        m_loop = loop;
+        m_channel = channel;
+        m_key = null;
+        m_host = channel.socket().getInetAddress();
+        m_ipAddr = m_host.getHostAddress();
+        m_hostname = m_ipAddr;
+        m_resolving = false;
+        m_linebuf = null;
+        m_input = new ArrayDeque<CliMessage>();
+        m_recvq_bytes = 0;
+        m_output = new ArrayDeque<ByteBuffer>();
+        m_writebufs = new ByteBuffer[0];
+        m_sendq_bytes = 0;
+        m_flushPending = false;
+        m_peerZip = false;
+        m_zip = null;
+        m_deflating = false;
+        m_outputDropped = false;
+        m_link = null;
+        setConnClass(ircserver.getConfig().getConnClass(m_ipAddr));
         m_nick = "*";
         m_user = new UserInfo("*", "0", "*", "");
+        updatePrefix();
         m_server = new ServerInfo("*", "0", "");
         m_pass = "";
+        m_sid = "";
         m_state = ConnState.UNIDENTIFIED;
-        m_identTime = -1;
+        m_quitReason = "Connection reset by peer...";
+        m_timer = new TimingWheel.Timer(() -> ircserver.connectionTimer(this));
+        m_floodTimer = new TimingWheel.Timer(() -> loop.ready(this));
+        m_floodTime = 0;
+        m_deficit = 0;
+        m_exhausted = false;
+        m_queued = false;
+        m_lastActivity = loop.currentTime();
+        m_pingSent = false;
+        m_parent_client = null;
+        m_parent_server = null;
+    }
+
+    /*
+     * A user on another server. It has no socket of its own, it only carries the identity of the user for the
+     * code that is shared with local users and belongs to the loop of the link the user is reached through.
+     */
+    public Connection(IRCServer ircserver, Server server, String nick, UserInfo user, String ip)
+    {
+        m_ircserver = ircserver;
+        m_loop = server.getConnection().getEventLoop();
+        m_channel = null;
+        m_key = null;
+        m_host = null;
+        m_ipAddr = ip;
+        m_hostname = user.getHostName();
+        m_resolving = false;
+        m_linebuf = null;
+        m_input = new ArrayDeque<CliMessage>(0);
+        m_recvq_bytes = 0;
+        m_class = server.getConnection().getConnClass();
+        m_link = null;
+        m_output = null;
+        m_writebufs = null;
+        m_sendq_bytes = 0;
+        m_flushPending = false;
+        m_peerZip = false;
+        m_zip = null;
+        m_deflating = false;
+        m_outputDropped = false;
+        m_nick = nick;
+        m_user = user;
+        updatePrefix();
+        m_server = server.getInfo();
+        m_pass = "";
+        m_sid = "";
+        m_state = ConnState.CONNECTED_AS_CLIENT;
+        m_quitReason = "";
+        m_timer = null;
+        m_floodTimer = null;
+        m_floodTime = 0;
+        m_lastActivity = m_loop.currentTime();
+        m_pingSent = false;
         m_parent_client = null;
         m_parent_server = null;
     }
@@ -51,36 +162,438 @@ public class Connection
         return String.format("Connection[%s, %s, %s]", m_nick, m_user, m_server);
     }
 
-    public void updateUnidentified()
+    public void register(SelectionKey key)
+    {
+        m_key = key;
+        m_key.attach(this);
+    }
+
+    public void read(ByteBuffer readbuf)
     {
-        /* Read input from client */
-        List<String> input_data = new ArrayList<String>();
+        /* Never read more than the RecvQ has room for, the rest waits in the socket buffer */
+        int room = getRecvQRoom();
+
+        if (room <= 0)
+        {
+            m_input.clear();
+            m_recvq_bytes = 0;
+            m_ircserver.getCounters().excessFlood();
+            disconnect("Excess Flood");
+            return;
+        }
+
+        readbuf.clear();
+        readbuf.limit(Math.min(readbuf.capacity(), room));
 
         try
         {
-            String line = null;
-            while (m_input.ready() && (line = m_input.readLine()) != null && !line.isEmpty())
+            int bytes = m_channel.read(readbuf);
+
+            /* End of stream, the peer has closed the connection */
+            if (bytes < 0)
             {
-                input_data.add(line);
+                m_state = ConnState.DISCONNECTED;
+                return;
             }
         } catch (IOException e)
         {
-            e.printStackTrace();
+            m_state = ConnState.DISCONNECTED;
+            return;
         }
 
-        /* Return if input data was empty */
-        if (input_data.isEmpty())
+        m_lastActivity = m_loop.currentTime();
+
+        if (m_zip != null)
+        {
+            inflateInput(readbuf.array(), 0, readbuf.position());
+        }
+        else
+        {
+            splitInput(readbuf.array(), 0, readbuf.position());
+        }
+    }
+
+    /* Lines, the partial line and compressed input that was not inflated yet all count against the RecvQ */
+    private int getRecvQRoom()
+    {
+        return m_recvq_max - m_recvq_bytes - (m_linebuf != null ? m_linebuf.position() : 0) - (m_zip != null ? m_zip.getBacklog() : 0);
+    }
+
+    /* Split the received bytes into lines on CR, LF or CRLF, keep the partial line for the next read */
+    private void splitInput(byte[] data, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (data[i] == '\r' || data[i] == '\n')
+            {
+                boolean compressed = addInputLine(data, start, i);
+                start = i + 1;
+
+                /* The peer compresses everything after this line, the rest of the read is inflated first */
+                if (compressed)
+                {
+                    if (data[i] == '\r' && start < end && data[start] == '\n')
+                    {
+                        start++;
+                    }
+
+                    inflateInput(data, start, end);
+                    return;
+                }
+            }
+        }
+
+        if (start < end)
+        {
+            appendPartialLine(data, start, end);
+        }
+    }
+
+    /*
+     * Inflates only as much as the RecvQ has room for, however small the compressed bytes were. The rest stays in
+     * the backlog and counts against the RecvQ, it is inflated as the lines before it run, and a peer that sends
+     * faster than that fills the RecvQ and is dropped like any other.
+     */
+    private void inflateInput(byte[] data, int start, int end)
+    {
+        if (start >= end && !m_zip.hasBacklog())
         {
             return;
         }
 
-        /* Log the input to console */
-        Macros.LOG("Input from %s: %s", this, input_data);
+        try
+        {
+            int length = m_zip.inflate(data, start, end, Math.max(getRecvQRoom() + m_zip.getBacklog(), 0));
+            splitInput(m_zip.getInput(), 0, length);
+        } catch (DataFormatException e)
+        {
+            disconnect("Link compression error: " + e.getMessage());
+        }
+    }
+
+    /* Returns true if the stream of the peer turns compressed after this line */
+    private boolean addInputLine(byte[] data, int start, int end)
+    {
+        /* Complete the partial line from the previous read */
+        if (m_linebuf != null && m_linebuf.position() > 0)
+        {
+            appendPartialLine(data, start, end);
+            data = m_linebuf.array();
+            start = 0;
+            end = m_linebuf.position();
+            m_linebuf.clear();
+        }
+
+        if (end > start)
+        {
+            /* Too long lines are truncated, the tags of a line have their own budget */
+            int length = Math.min(end - start, data[start] == '@' ? m_maxline + MAX_TAGS_LENGTH : m_maxline);
+
+            /* Never in the middle of a UTF-8 sequence, the continuation bytes of the cut character go with it */
+            if (length < end - start)
+            {
+                while (length > 0 && (data[start + length] & 0xC0) == 0x80)
+                {
+                    length--;
+                }
+            }
+
+            /* Parsed once here, the handlers and the handshake below all use the same message */
+            String line = new String(data, start, length, StandardCharsets.UTF_8);
+            CliMessage message = new CliMessage(line);
+            m_input.add(message);
+            m_recvq_bytes += getEncodedLength(line);
+
+            if (m_state == ConnState.UNIDENTIFIED && m_zip == null)
+            {
+                return startsCompression(message);
+            }
+        }
+
+        return false;
+    }
+
+    /*
+     * Both ends of a link with compress=true offer CAPAB ZIP in their handshake. If both did, each end
+     * compresses everything it writes after its SERVER line, so the switch can fall in the middle of a read and
+     * the handshake is looked at here, as it is split into lines, and not only when it is run.
+     */
+    private boolean startsCompression(CliMessage message)
+    {
+        switch (message.getCommand())
+        {
+            case "CAPAB":
+                m_peerZip = message.getParameterCount() > 0 && Arrays.asList(message.getParameter(0).split(" ")).contains("ZIP");
+                return false;
+            case "PASS":
+                if (message.getParameterCount() >= 4 && message.getParameter(1).equals("TS"))
+                {
+                    m_sid = message.getParameter(3).toUpperCase();
+                }
+                return false;
+            case "SERVER":
+                if (!m_peerZip || message.getParameterCount() == 0)
+                {
+                    return false;
+                }
+
+                String name = message.getParameter(0);
+                LinkBlock link = m_link != null ? m_link : m_ircserver.getConfig().getLink(name);
+
+                if (link == null || !link.isCompressed())
+                {
+                    return false;
+                }
+
+                m_zip = new LinkCompression(m_ircserver.getSid(), m_ircserver.getHostName(), m_sid, name);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * The RecvQ is counted in bytes, as the line was read. Counted from the decoded line without encoding it again,
+     * so adding and removing a line charge the same, even for bytes that were not valid UTF-8.
+     */
+    static int getEncodedLength(String line)
+    {
+        int length = line.length();
+
+        for (int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+
+            if (c >= 0x800)
+            {
+                /* Three bytes, or four for a surrogate pair that is two chars */
+                length += Character.isSurrogate(c) ? 1 : 2;
+            }
+            else if (c >= 0x80)
+            {
+                length++;
+            }
+        }
+
+        return length;
+    }
+
+    private void appendPartialLine(byte[] data, int start, int end)
+    {
+        /* Allocated on the first partial line only, then reused for the lifetime of the connection */
+        if (m_linebuf == null)
+        {
+            m_linebuf = ByteBuffer.allocate(m_maxline + MAX_TAGS_LENGTH);
+        }
 
+        /* Bytes beyond the maximum line length are dropped */
+        m_linebuf.put(data, start, Math.min(end - start, m_linebuf.remaining()));
+    }
+
+    /* The next line that is waiting, it stays queued until it is polled */
+    public CliMessage peekInput()
+    {
+        return m_input.peek();
+    }
+
+    public CliMessage pollInput()
+    {
+        CliMessage message = m_input.poll();
+
+        if (message != null)
+        {
+            m_recvq_bytes -= getEncodedLength(message.getMessage());
+        }
+
+        /* The lines held back by a full RecvQ follow once the queue has run dry */
+        if (m_input.isEmpty() && m_zip != null)
+        {
+            inflateInput(s_none, 0, 0);
+        }
+
+        return message;
+    }
+
+    /*
+     * Whether the next line may run in this turn. It must fit in what is left of the quantum and pass flood
+     * control, the quantum is only charged for a line that runs.
+     */
+    public boolean admit(CliMessage message, int cost)
+    {
+        int length = getEncodedLength(message.getMessage());
+
+        if (length > m_deficit)
+        {
+            m_exhausted = true;
+            return false;
+        }
+
+        if (!takeFlood(cost))
+        {
+            return false;
+        }
+
+        m_deficit -= length;
+
+        return true;
+    }
+
+    /* Marks the connection as queued for a turn, false if it already was */
+    public boolean setQueued()
+    {
+        if (m_queued)
+        {
+            return false;
+        }
+
+        m_queued = true;
+
+        return true;
+    }
+
+    public void beginTurn(int quantum)
+    {
+        m_deficit += quantum;
+        m_exhausted = false;
+    }
+
+    /* The connection leaves the queue, what is left of its quantum is not carried over */
+    public void endTurn()
+    {
+        m_deficit = 0;
+        m_queued = false;
+    }
+
+    public boolean isQuantumExhausted()
+    {
+        return m_exhausted;
+    }
+
+    /*
+     * Penalty based flood control. Every command pushes the flood clock of the connection forward by its cost
+     * times the rate of its class, a command may run as long as that leaves the clock at most the burst ahead
+     * of the current time. Otherwise the lines wait in the RecvQ and the connection is woken up when the clock
+     * has fallen back far enough, a client that keeps sending meanwhile fills its RecvQ and is dropped.
+     */
+    public boolean takeFlood(int cost)
+    {
+        if (m_class.getFloodRate() == 0)
+        {
+            return true;
+        }
+
+        long now = m_loop.currentTime();
+        long window = (long) m_class.getFloodBurst() * m_class.getFloodRate();
+        long penalty = (long) Math.min(cost, m_class.getFloodBurst()) * m_class.getFloodRate();
+
+        if (m_floodTime < now)
+        {
+            m_floodTime = now;
+        }
+
+        if (m_floodTime + penalty - now > window)
+        {
+            if (!m_floodTimer.isScheduled())
+            {
+                m_ircserver.getCounters().throttled();
+                m_loop.getTimers().schedule(m_floodTimer, m_floodTime + penalty - window - now);
+            }
+
+            return false;
+        }
+
+        m_floodTime += penalty;
+
+        return true;
+    }
+
+    public void write()
+    {
+        m_flushPending = false;
+
+        /* Everything queued for a compressed link since the last write goes out as one flushed batch */
+        if (m_deflating && m_zip.hasPending())
+        {
+            int plain = m_zip.getPendingBytes();
+            ByteBuffer batch = m_zip.deflate();
+            m_output.add(batch);
+            m_sendq_bytes += batch.remaining() - plain;
+        }
+
+        try
+        {
+            /* Drain the SendQ with as few gathering writes as the socket buffer allows */
+            while (!m_output.isEmpty())
+            {
+                int count = Math.min(m_output.size(), MAX_WRITE_BUFFERS);
+
+                if (m_writebufs.length < count)
+                {
+                    m_writebufs = new ByteBuffer[MAX_WRITE_BUFFERS];
+                }
+
+                Iterator<ByteBuffer> it_output = m_output.iterator();
+
+                for (int i = 0; i < count; i++)
+                {
+                    m_writebufs[i] = it_output.next();
+                }
+
+                long bytes = m_channel.write(m_writebufs, 0, count);
+                m_sendq_bytes -= bytes;
+
+                while (!m_output.isEmpty() && !m_output.peek().hasRemaining())
+                {
+                    m_output.poll();
+                }
+
+                Arrays.fill(m_writebufs, 0, count, null);
+
+                /* Socket send buffer is full, continue when the selector reports it writable */
+                if (bytes == 0 || (!m_output.isEmpty() && m_output.peek().position() > 0))
+                {
+                    break;
+                }
+            }
+        } catch (IOException e)
+        {
+            m_output.clear();
+            m_sendq_bytes = 0;
+            m_state = ConnState.DISCONNECTED;
+            schedule(0);
+        }
+
+        if (m_key != null && m_key.isValid())
+        {
+            m_key.interestOps(m_output.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    public void updateUnidentified()
+    {
         /* Parse input and handle it appropriately */
-        for (String l : input_data)
+        CliMessage message;
+
+        while ((message = peekInput()) != null)
         {
-            CliMessage message = new CliMessage(l);
+            /*
+             * Stop at the first command that is not part of the registration once it is complete, e.g. a
+             * JOIN sent right after NICK and USER, it waits in the queue until the client is registered
+             */
+            if (!isRegistration(message.getCommand()) && (!m_nick.equals("*") || !m_server.getName().equals("*")))
+            {
+                break;
+            }
+
+            if (!admit(message, 1))
+            {
+                break;
+            }
+
+            pollInput();
+
+            /* Log the input, it is only formatted if traffic logging is enabled */
+            s_traffic.debug("Input from %s: %s", this, message.getMessage());
 
             switch (message.getCommand())
             {
@@ -89,37 +602,75 @@ public class Connection
                     setState(ConnState.DISCONNECTED);
                     break;
                 case "NICK":
-                    if (message.getParameters().size() > 0)
+                    if (message.getParameterCount() > 0)
                     {
-                        m_nick = message.getParameter(0);
+                        setNick(message.getParameter(0));
                     }
                     break;
                 case "USER":
-                    if (message.getParameters().size() > 0)
+                    if (message.getParameterCount() > 0)
                     {
-                        m_user = new UserInfo(message.getParameters());
+                        setUser(new UserInfo(message.getParameters()));
                     }
                     break;
                 case "SERVER":
-                    if (message.getParameters().size() > 0)
+                    if (message.getParameterCount() > 0)
                     {
                         m_server = new ServerInfo(message.getParameters());
                     }
                     break;
                 case "PASS":
-                    if (message.getParameters().size() > 0)
+                    if (message.getParameterCount() > 0)
                     {
                         m_pass = message.getParameter(0);
                     }
+
+                    /* A server sends PASS <password> TS 6 :<sid> */
+                    if (message.getParameterCount() >= 4 && message.getParameter(1).equals("TS"))
+                    {
+                        m_sid = message.getParameter(3).toUpperCase();
+                    }
                     break;
             }
+
+            if (m_state != ConnState.UNIDENTIFIED)
+            {
+                return;
+            }
+        }
+
+        identify();
+    }
+
+    private static boolean isRegistration(String command)
+    {
+        switch (command)
+        {
+            case "GET":
+            case "NICK":
+            case "USER":
+            case "SERVER":
+            case "PASS":
+            case "CAPAB":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public void identify()
+    {
+        /* The hostname must be known before the connection can be identified */
+        if (m_resolving || m_state != ConnState.UNIDENTIFIED)
+        {
+            return;
         }
 
         /* Have we received enough info in order to try client identification? */
         if (!m_nick.equals("*"))
         {
             /* Nick length must be in-between 1 and 9 characters */
-            if (m_nick.length() < 1 || m_nick.length() > 9)
+            if (m_nick.length() < 1 || m_nick.length() > Consts.NICKLEN)
             {
                 sendMsgAndFlush(new ServMessage(m_ircserver, "NOTICE", m_nick, "*** NICK length must be in-between 1 and 9 characters. Disconnecting."));
                 m_state = ConnState.DISCONNECTED;
@@ -150,13 +701,35 @@ public class Connection
             }
 
             /* Server name must not exist on the server */
-            if (m_ircserver.getServers().containsKey(m_server.getName()))
+            if (m_ircserver.getServers().containsKey(m_server.getName()) || m_server.getName().equalsIgnoreCase(m_ircserver.getHostName()))
             {
                 sendMsgAndFlush(new ServMessage(m_ircserver, "NOTICE", m_server.getName(), "*** SERVER <servername> already exists on this server. Disconnecting."));
                 m_state = ConnState.DISCONNECTED;
                 return;
             }
 
+            /* Only servers with a link block and its password, the end that connected must get the server it asked for */
+            LinkBlock link = m_ircserver.getConfig().getLink(m_server.getName());
+
+            if (link == null || !link.getPassword().equals(m_pass) || (m_link != null && !m_link.getName().equalsIgnoreCase(link.getName())))
+            {
+                disconnect("No link block or a wrong password for " + m_server.getName());
+                return;
+            }
+
+            if (!m_sid.matches("[0-9][0-9A-Z]{2}") || m_sid.equals(m_ircserver.getSid()) || m_ircserver.getServerBySid(m_sid) != null)
+            {
+                disconnect("Invalid or existing server id " + m_sid);
+                return;
+            }
+
+            /* The peer connected to us, answer its handshake */
+            if (m_link == null)
+            {
+                setLinkBlock(link);
+                m_ircserver.sendLinkHandshake(this, link);
+            }
+
             /* Accept the connection as identified server */
             m_state = ConnState.IDENTIFIED_AS_SERVER;
         }
@@ -164,27 +737,193 @@ public class Connection
 
     public void sendMsg(ServMessage message)
     {
-        m_output.print(message);
+        /* A remote user is reached through its link, not through a connection of its own */
+        if (isRemote())
+        {
+            return;
+        }
+
+        /*
+         * Output is owned by the event loop of this connection, other threads post to its mailbox. The loop itself
+         * also queues behind what is posted, so every recipient gets its lines in the order they were sent.
+         */
+        if (!m_loop.isWriteInOrder())
+        {
+            m_loop.execute(() -> enqueue(message.getBuffer()));
+            return;
+        }
+
+        enqueue(message.getBuffer());
+    }
+
+    /* Queues bytes that are already encoded as lines, e.g. a pre-encoded burst of several lines */
+    public void sendBufferAndFlush(ByteBuffer buffer)
+    {
+        if (isRemote())
+        {
+            return;
+        }
+
+        if (!m_loop.isWriteInOrder())
+        {
+            m_loop.execute(() ->
+            {
+                enqueue(buffer);
+                flush();
+            });
+            return;
+        }
+
+        enqueue(buffer);
+        flush();
+    }
+
+    private void enqueue(ByteBuffer buffer)
+    {
+        if (!m_channel.isOpen() || m_outputDropped)
+        {
+            return;
+        }
+
+        if (m_deflating)
+        {
+            m_zip.add(buffer);
+        }
+        else
+        {
+            m_output.add(buffer);
+        }
+
+        m_sendq_bytes += buffer.remaining();
+
+        /* Slow consumer, drop what it has not read yet and disconnect it */
+        if (m_sendq_bytes > m_sendq_max)
+        {
+            m_output.clear();
+
+            if (m_zip != null)
+            {
+                m_zip.clearPending();
+            }
+
+            m_sendq_bytes = 0;
+
+            /*
+             * A compressed link has lost part of its deflate stream, whatever is written after this would not
+             * inflate on the other end, so it is closed without the ERROR line
+             */
+            if (m_deflating)
+            {
+                m_deflating = false;
+                m_outputDropped = true;
+                m_quitReason = "Max SendQ exceeded";
+                m_state = ConnState.DISCONNECTED;
+                schedule(0);
+                return;
+            }
+
+            disconnect("Max SendQ exceeded");
+        }
     }
 
     public void sendMsgAndFlush(ServMessage message)
     {
-        m_output.print(message);
-        m_output.flush();
+        if (isRemote())
+        {
+            return;
+        }
+
+        if (!m_loop.isWriteInOrder())
+        {
+            m_loop.execute(() ->
+            {
+                enqueue(message.getBuffer());
+                flush();
+            });
+            return;
+        }
+
+        enqueue(message.getBuffer());
+        flush();
     }
 
     public void flush()
     {
-        m_output.flush();
+        if (isRemote())
+        {
+            return;
+        }
+
+        if (!m_loop.inEventLoop())
+        {
+            m_loop.execute(() -> flush());
+            return;
+        }
+
+        /* Coalesce, the SendQ is written once at the end of the current loop pass */
+        if (!m_flushPending && hasOutput() && m_channel.isOpen())
+        {
+            m_flushPending = true;
+            m_loop.addFlush(this);
+        }
+    }
+
+    public void disconnect(String reason)
+    {
+        /* Tell the peer why it is dropped, the connection is unregistered by its event loop */
+        if (m_state != ConnState.DISCONNECTED)
+        {
+            m_quitReason = reason;
+            sendMsgAndFlush(new ServMessage("", "ERROR", "Closing Link: " + getHostName() + " (" + reason + ")"));
+            m_state = ConnState.DISCONNECTED;
+            schedule(0);
+        }
+    }
+
+    private boolean hasOutput()
+    {
+        return !m_output.isEmpty() || (m_deflating && m_zip.hasPending());
+    }
+
+    /* Called when the link is up, what this end writes from here on is compressed if both ends agreed to it */
+    public void startCompression()
+    {
+        m_deflating = m_zip != null;
+    }
+
+    public void schedule(long delay)
+    {
+        /* One timer per connection, rescheduling it replaces the previous deadline */
+        m_loop.getTimers().schedule(m_timer, delay);
     }
 
     public void kill()
     {
         m_state = ConnState.DISCONNECTED;
 
+        /* Last attempt to deliver what is still queued, e.g. the closing ERROR */
+        if (hasOutput() && m_channel.isOpen())
+        {
+            write();
+        }
+
+        if (m_zip != null)
+        {
+            m_deflating = false;
+            m_zip.end();
+        }
+
+        m_loop.getTimers().cancel(m_timer);
+        m_loop.getTimers().cancel(m_floodTimer);
+
+        if (m_key != null)
+        {
+            m_key.cancel();
+        }
+
         try
         {
-            m_socket.close();
+            m_channel.close();
         } catch (IOException e)
         {
             e.printStackTrace();
@@ -196,9 +935,76 @@ public class Connection
         m_state = state;
     }
 
-    public void setIdentTime(int time)
+    private void updatePrefix()
+    {
+        /* Only rebuilt when the identity changes, messages from this connection reuse it */
+        m_prefix = m_nick + "!" + m_user.getUserName() + "@" + m_hostname;
+        m_prefixBytes = m_prefix.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /* The limits are copied into plain fields for the i/o path, a REHASH sets them again on the owning loop */
+    public void setConnClass(ConnClass connclass)
+    {
+        m_class = connclass;
+        m_recvq_max = connclass.getRecvQ();
+        m_maxline = connclass.getLineLen();
+        m_sendq_max = connclass.getSendQ();
+
+        /* A link keeps the queues of its link block whatever class its address is in */
+        if (m_link != null)
+        {
+            m_recvq_max = Math.max(m_recvq_max, m_link.getRecvQ());
+            m_sendq_max = Math.max(m_sendq_max, m_link.getSendQ());
+        }
+
+        if (m_linebuf != null && m_linebuf.capacity() != m_maxline + MAX_TAGS_LENGTH)
+        {
+            ByteBuffer linebuf = ByteBuffer.allocate(m_maxline + MAX_TAGS_LENGTH);
+            m_linebuf.flip();
+            m_linebuf.limit(Math.min(m_linebuf.limit(), linebuf.capacity()));
+            linebuf.put(m_linebuf);
+            m_linebuf = linebuf;
+        }
+    }
+
+    public void setLinkBlock(LinkBlock link)
+    {
+        m_link = link;
+        setConnClass(m_class);
+    }
+
+    public void setNick(String nick)
+    {
+        m_nick = nick;
+        updatePrefix();
+    }
+
+    public void setUser(UserInfo user)
+    {
+        m_user = user;
+        updatePrefix();
+    }
+
+    public void setHostName(String hostname)
+    {
+        m_hostname = hostname;
+        m_user.setHostName(hostname);
+        updatePrefix();
+    }
+
+    public void setResolving(boolean resolving)
+    {
+        m_resolving = resolving;
+    }
+
+    public void setQuitReason(String reason)
     {
-        m_identTime = time;
+        m_quitReason = reason;
+    }
+
+    public void setPingSent(boolean sent)
+    {
+        m_pingSent = sent;
     }
 
     public void setParentClient(Client client)
@@ -216,6 +1022,11 @@ public class Connection
         return m_ircserver;
     }
 
+    public EventLoop getEventLoop()
+    {
+        return m_loop;
+    }
+
     public InetAddress getHost()
     {
         return m_host;
@@ -223,27 +1034,55 @@ public class Connection
 
     public String getHostName()
     {
-        return m_host.getHostName();
+        return m_hostname;
+    }
+
+    public boolean isResolving()
+    {
+        return m_resolving;
     }
 
     public String getIpAddr()
     {
-        return m_host.getHostAddress();
+        return m_ipAddr;
+    }
+
+    /* The link block of a server connection, null for anything else */
+    public LinkBlock getLinkBlock()
+    {
+        return m_link;
+    }
+
+    /* The server id a connecting server sent with its PASS */
+    public String getSid()
+    {
+        return m_sid;
+    }
+
+    /* The compression of a link, null for a link without it and for any other connection */
+    public LinkCompression getCompression()
+    {
+        return m_zip;
+    }
+
+    public boolean isRemote()
+    {
+        return m_channel == null;
     }
 
-    public Socket getSocket()
+    public SocketChannel getChannel()
     {
-        return m_socket;
+        return m_channel;
     }
 
-    public BufferedReader getInput()
+    public SelectionKey getKey()
     {
-        return m_input;
+        return m_key;
     }
 
-    public PrintWriter getOutput()
+    public ConnClass getConnClass()
     {
-        return m_output;
+        return m_class;
     }
 
     public String getNick()
@@ -251,6 +1090,16 @@ public class Connection
         return m_nick;
     }
 
+    public String getPrefix()
+    {
+        return m_prefix;
+    }
+
+    public byte[] getPrefixBytes()
+    {
+        return m_prefixBytes;
+    }
+
     public UserInfo getUser()
     {
         return m_user;
@@ -266,14 +1115,29 @@ public class Connection
         return m_pass;
     }
 
+    public long getSendQ()
+    {
+        return m_sendq_bytes;
+    }
+
     public ConnState getState()
     {
         return m_state;
     }
 
-    public int getIdentTime()
+    public String getQuitReason()
+    {
+        return m_quitReason;
+    }
+
+    public long getLastActivity()
+    {
+        return m_lastActivity;
+    }
+
+    public boolean isPingSent()
     {
-        return m_identTime;
+        return m_pingSent;
     }
 
     public Client getParentClient()
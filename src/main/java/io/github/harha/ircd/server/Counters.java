@@ -0,0 +1,229 @@
+package io.github.harha.ircd.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Counters
+{
+
+    /*
+     * Global counts for LUSERS and STATS, changed on the state transitions of connections and channels
+     * instead of counting the registries. Every count is striped so the event loops do not contend on one
+     * cache line, a read sums the stripes. The high-water marks only move up.
+     */
+    private LongAdder  m_connections;
+    private LongAdder  m_unknown;
+    private LongAdder  m_users;
+    private LongAdder  m_invisible;
+    private LongAdder  m_opers;
+    private LongAdder  m_servers;
+    private LongAdder  m_remoteUsers;
+    private LongAdder  m_remoteServers;
+    private LongAdder  m_channels;
+    private LongAdder  m_throttled;
+    private LongAdder  m_excessFlood;
+    private AtomicLong m_maxConnections;
+    private AtomicLong m_maxLocalUsers;
+    private AtomicLong m_maxUsers;
+    private long       m_startTime;
+
+    public Counters()
+    {
+        m_connections = new LongAdder();
+        m_unknown = new LongAdder();
+        m_users = new LongAdder();
+        m_invisible = new LongAdder();
+        m_opers = new LongAdder();
+        m_servers = new LongAdder();
+        m_remoteUsers = new LongAdder();
+        m_remoteServers = new LongAdder();
+        m_channels = new LongAdder();
+        m_throttled = new LongAdder();
+        m_excessFlood = new LongAdder();
+        m_maxConnections = new AtomicLong(0);
+        m_maxLocalUsers = new AtomicLong(0);
+        m_maxUsers = new AtomicLong(0);
+        m_startTime = System.currentTimeMillis();
+    }
+
+    /* A connection was accepted, it is unknown until it registers */
+    public void connectionAdded()
+    {
+        m_connections.increment();
+        m_unknown.increment();
+        raise(m_maxConnections, m_connections.sum());
+    }
+
+    public void connectionRemoved()
+    {
+        m_connections.decrement();
+    }
+
+    public void userRegistered()
+    {
+        m_unknown.decrement();
+        m_users.increment();
+        raise(m_maxLocalUsers, m_users.sum());
+        raise(m_maxUsers, m_users.sum() + m_remoteUsers.sum());
+    }
+
+    public void serverRegistered()
+    {
+        m_unknown.decrement();
+        m_servers.increment();
+    }
+
+    public void unknownRemoved()
+    {
+        m_unknown.decrement();
+    }
+
+    public void userRemoved()
+    {
+        m_users.decrement();
+    }
+
+    public void serverRemoved()
+    {
+        m_servers.decrement();
+    }
+
+    /* Users and servers behind the links, introduced by UID and SID */
+    public void remoteUserAdded()
+    {
+        m_remoteUsers.increment();
+        raise(m_maxUsers, m_users.sum() + m_remoteUsers.sum());
+    }
+
+    public void remoteUserRemoved()
+    {
+        m_remoteUsers.decrement();
+    }
+
+    public void remoteServerAdded()
+    {
+        m_remoteServers.increment();
+    }
+
+    public void remoteServerRemoved()
+    {
+        m_remoteServers.decrement();
+    }
+
+    public void addInvisible(int delta)
+    {
+        m_invisible.add(delta);
+    }
+
+    public void addOpers(int delta)
+    {
+        m_opers.add(delta);
+    }
+
+    public void channelAdded()
+    {
+        m_channels.increment();
+    }
+
+    public void channelRemoved()
+    {
+        m_channels.decrement();
+    }
+
+    /* A connection ran out of flood budget and its input was held back */
+    public void throttled()
+    {
+        m_throttled.increment();
+    }
+
+    /* A connection filled its RecvQ and was dropped */
+    public void excessFlood()
+    {
+        m_excessFlood.increment();
+    }
+
+    private static void raise(AtomicLong max, long value)
+    {
+        long current;
+
+        while (value > (current = max.get()) && !max.compareAndSet(current, value))
+        {
+        }
+    }
+
+    public long getConnections()
+    {
+        return m_connections.sum();
+    }
+
+    public long getUnknown()
+    {
+        return m_unknown.sum();
+    }
+
+    public long getUsers()
+    {
+        return m_users.sum();
+    }
+
+    public long getRemoteUsers()
+    {
+        return m_remoteUsers.sum();
+    }
+
+    public long getRemoteServers()
+    {
+        return m_remoteServers.sum();
+    }
+
+    public long getInvisible()
+    {
+        return m_invisible.sum();
+    }
+
+    public long getOpers()
+    {
+        return m_opers.sum();
+    }
+
+    public long getServers()
+    {
+        return m_servers.sum();
+    }
+
+    public long getChannels()
+    {
+        return m_channels.sum();
+    }
+
+    public long getThrottled()
+    {
+        return m_throttled.sum();
+    }
+
+    public long getExcessFlood()
+    {
+        return m_excessFlood.sum();
+    }
+
+    public long getMaxConnections()
+    {
+        return m_maxConnections.get();
+    }
+
+    public long getMaxLocalUsers()
+    {
+        return m_maxLocalUsers.get();
+    }
+
+    public long getMaxUsers()
+    {
+        return m_maxUsers.get();
+    }
+
+    public long getStartTime()
+    {
+        return m_startTime;
+    }
+
+}
@@ -0,0 +1,374 @@
+package io.github.harha.ircd.server;
+
+import io.github.harha.ircd.util.Histogram;
+import io.github.harha.ircd.util.TimingWheel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EventLoop implements Runnable
+{
+
+    private static final int  READ_BUFFER_SIZE = 16384;
+
+    private static final ThreadLocal<EventLoop> s_current = new ThreadLocal<EventLoop>();
+
+    private IRCServer         m_ircserver;
+    private int               m_id;
+    private Selector          m_selector;
+    private ByteBuffer        m_readbuf;
+    private Queue<Runnable>   m_mailbox;
+    private AtomicBoolean     m_wakeup;
+    private List<Connection>  m_connections;
+    private List<Connection>  m_flushes;
+    private Queue<Connection> m_ready;
+    private AtomicInteger     m_load;
+    private TimingWheel       m_timers;
+    private long              m_time;
+    private Thread            m_thread;
+    private int               m_deltaTime;
+    private Histogram         m_passTimes;
+    private volatile boolean  m_stopping;
+
+    public EventLoop(IRCServer ircserver, int id) throws IOException
+    {
+        m_ircserver = ircserver;
+        m_id = id;
+        m_selector = Selector.open();
+        m_readbuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        m_mailbox = new ConcurrentLinkedQueue<Runnable>();
+        m_wakeup = new AtomicBoolean(false);
+        m_connections = new ArrayList<Connection>();
+        m_flushes = new ArrayList<Connection>();
+        m_ready = new ArrayDeque<Connection>();
+        m_load = new AtomicInteger(0);
+        m_time = System.nanoTime() / 1000000;
+        m_timers = new TimingWheel(m_time);
+        m_thread = null;
+        m_deltaTime = 0;
+        m_passTimes = new Histogram();
+        m_stopping = false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("EventLoop[%d, %d]", m_id, m_load.get());
+    }
+
+    public void start()
+    {
+        m_thread = new Thread(this, "mirage-loop-" + m_id);
+        m_thread.start();
+    }
+
+    @Override
+    public void run()
+    {
+        s_current.set(this);
+
+        while (!m_stopping)
+        {
+            /* Sleep until the next timer is due, an idle loop with no timers only wakes up for i/o */
+            long timeout = m_timers.timeUntilNext();
+
+            try
+            {
+                /* Connections that ran out of quantum continue right away, only new i/o is picked up first */
+                if (timeout == 0 || !m_ready.isEmpty())
+                {
+                    m_selector.selectNow();
+                }
+                else
+                {
+                    m_selector.select(Math.max(timeout, 0));
+                }
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+                break;
+            }
+
+            long time_s = System.nanoTime();
+            m_time = time_s / 1000000;
+            m_wakeup.set(false);
+
+            /* Expire the timers that have come due, nothing is visited for connections that are not */
+            m_timers.advance(m_time);
+
+            /* Dispatch the ready events, the input read here is handled in the turns after the dispatch */
+            Iterator<SelectionKey> it_keys = m_selector.selectedKeys().iterator();
+
+            while (it_keys.hasNext())
+            {
+                SelectionKey key = it_keys.next();
+                it_keys.remove();
+
+                if (!key.isValid())
+                {
+                    continue;
+                }
+
+                Connection c = (Connection) key.attachment();
+
+                if (key.isReadable())
+                {
+                    c.read(m_readbuf);
+                    ready(c);
+                }
+
+                if (key.isValid() && key.isWritable())
+                {
+                    c.write();
+                }
+            }
+
+            /* Run the tasks other loops have posted to this one */
+            runTasks();
+
+            /* Give every connection with queued input one turn */
+            runConnections();
+
+            /* Write everything queued during this pass, one gathering write per connection */
+            flushConnections();
+
+            long time_e = System.nanoTime();
+            m_deltaTime = (int) ((time_e - time_s) / 1000000);
+            m_passTimes.record(time_e - time_s);
+        }
+
+        close();
+    }
+
+    /*
+     * Runs on the loop thread once it stops. The tasks that were posted still run, e.g. a connection handed over
+     * by the acceptor, then every connection is told why it is dropped and closed, and the selector last.
+     */
+    private void close()
+    {
+        runTasks();
+
+        for (Connection c : new ArrayList<Connection>(m_connections))
+        {
+            c.disconnect("Server shutting down");
+            c.kill();
+            removeConnection(c);
+        }
+
+        m_flushes.clear();
+        m_ready.clear();
+
+        try
+        {
+            m_selector.close();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Deficit round robin over the connections with input. A turn adds the quantum to the deficit of the
+     * connection and it runs lines until the next one is longer than what is left, then it goes to the back
+     * of the queue for the next pass. A connection that runs out of input, or is held back by flood control
+     * or its registration, leaves the queue and its deficit is reset, the next read or wakeup queues it again.
+     */
+    private void runConnections()
+    {
+        int quantum = m_ircserver.getConfig().getQuantum();
+        int linkQuantum = m_ircserver.getConfig().getLinkQuantum();
+
+        for (int i = m_ready.size(); i > 0; i--)
+        {
+            Connection c = m_ready.poll();
+
+            if (!c.getChannel().isOpen())
+            {
+                c.endTurn();
+                continue;
+            }
+
+            c.beginTurn(c.getState() == ConnState.CONNECTED_AS_SERVER ? linkQuantum : quantum);
+            m_ircserver.updateConnection(c);
+
+            if (c.isQuantumExhausted() && c.getChannel().isOpen() && c.getState() != ConnState.DISCONNECTED)
+            {
+                m_ready.add(c);
+            }
+            else
+            {
+                c.endTurn();
+            }
+        }
+    }
+
+    /* Queues a connection for a turn in this pass, a connection is in the queue at most once */
+    public void ready(Connection connection)
+    {
+        if (connection.setQueued())
+        {
+            m_ready.add(connection);
+        }
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+
+        while ((task = m_mailbox.poll()) != null)
+        {
+            try
+            {
+                task.run();
+            } catch (RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void flushConnections()
+    {
+        for (int i = 0; i < m_flushes.size(); i++)
+        {
+            Connection c = m_flushes.get(i);
+
+            if (c.getChannel().isOpen())
+            {
+                c.write();
+            }
+        }
+
+        m_flushes.clear();
+    }
+
+    public void addFlush(Connection connection)
+    {
+        m_flushes.add(connection);
+    }
+
+    public void execute(Runnable task)
+    {
+        m_mailbox.add(task);
+
+        /* Only the first task after a select needs to interrupt it */
+        if (m_wakeup.compareAndSet(false, true))
+        {
+            m_selector.wakeup();
+        }
+    }
+
+    /* The loop running on the calling thread, null outside of the loops */
+    public static EventLoop current()
+    {
+        return s_current.get();
+    }
+
+    public boolean inEventLoop()
+    {
+        return Thread.currentThread() == m_thread;
+    }
+
+    /*
+     * Whether a write on this loop may skip its mailbox. Output posted by other threads waits there, a write
+     * made right away while any of it is queued would overtake it, so it goes to the back of the mailbox too.
+     */
+    public boolean isWriteInOrder()
+    {
+        return Thread.currentThread() == m_thread && m_mailbox.isEmpty();
+    }
+
+    /* Moves the connections of this loop over to their class in a new configuration */
+    public void reclassify(Config config)
+    {
+        for (Connection connection : m_connections)
+        {
+            connection.setConnClass(config.getConnClass(connection.getIpAddr()));
+        }
+    }
+
+    public void addConnection(Connection connection) throws IOException
+    {
+        connection.register(connection.getChannel().register(m_selector, SelectionKey.OP_READ));
+        m_connections.add(connection);
+    }
+
+    public void removeConnection(Connection connection)
+    {
+        if (m_connections.remove(connection))
+        {
+            m_load.decrementAndGet();
+        }
+    }
+
+    /* The acceptor counts a connection in before it is handed over, so a burst is spread evenly */
+    public void reserve()
+    {
+        m_load.incrementAndGet();
+    }
+
+    public void release()
+    {
+        m_load.decrementAndGet();
+    }
+
+    /* The loop closes its connections and its selector itself, the selector is never closed under a select */
+    public void shutdown()
+    {
+        m_stopping = true;
+        m_selector.wakeup();
+    }
+
+    public IRCServer getIRCServer()
+    {
+        return m_ircserver;
+    }
+
+    public int getId()
+    {
+        return m_id;
+    }
+
+    public int getLoad()
+    {
+        return m_load.get();
+    }
+
+    public List<Connection> getConnections()
+    {
+        return m_connections;
+    }
+
+    public TimingWheel getTimers()
+    {
+        return m_timers;
+    }
+
+    /* Monotonic time in milliseconds, sampled once per loop pass */
+    public long currentTime()
+    {
+        return m_time;
+    }
+
+    public int getDeltaTime()
+    {
+        return m_deltaTime;
+    }
+
+    /* Time spent per loop pass, from the wakeup to the end of the flush */
+    public Histogram getPassTimes()
+    {
+        return m_passTimes;
+    }
+
+}
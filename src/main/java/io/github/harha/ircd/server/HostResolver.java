@@ -0,0 +1,140 @@
+package io.github.harha.ircd.server;
+
+import io.github.harha.ircd.util.Log;
+import io.github.harha.ircd.util.TTLCache;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class HostResolver
+{
+
+    private static final long                 NEGATIVE_TTL = 60000;
+    private static final Log                  s_log        = Log.get("dns");
+
+    private Resolver                          m_resolver;
+    private ExecutorService                   m_executor;
+    private ScheduledExecutorService          m_timer;
+    private TTLCache<InetAddress, String>     m_cache;
+    private long                              m_timeout;
+    private long                              m_ttl;
+
+    public HostResolver(Resolver resolver, int threads, long timeout, int cachesize, long ttl)
+    {
+        AtomicInteger count = new AtomicInteger(0);
+
+        m_resolver = resolver;
+        m_executor = Executors.newFixedThreadPool(threads, r -> newThread(r, "mirage-dns-" + count.incrementAndGet()));
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> newThread(r, "mirage-dns-timer"));
+        timer.setRemoveOnCancelPolicy(true);
+        m_timer = timer;
+        m_cache = new TTLCache<InetAddress, String>(cachesize);
+        m_timeout = timeout;
+        m_ttl = ttl;
+    }
+
+    private static Thread newThread(Runnable r, String name)
+    {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+
+        return thread;
+    }
+
+    /*
+     * Resolves the hostname of the address off the calling thread. The callback is run exactly once,
+     * on a resolver thread, with the confirmed hostname or null if the lookup failed or timed out.
+     */
+    public void resolve(InetAddress address, Consumer<String> callback)
+    {
+        if (m_cache.containsKey(address))
+        {
+            callback.accept(m_cache.get(address));
+            return;
+        }
+
+        AtomicBoolean done = new AtomicBoolean(false);
+
+        /* Give up waiting after the timeout, a late result still ends up in the cache */
+        ScheduledFuture<?> timeout = m_timer.schedule(() ->
+        {
+            if (done.compareAndSet(false, true))
+            {
+                callback.accept(null);
+            }
+        }, m_timeout, TimeUnit.MILLISECONDS);
+
+        m_executor.execute(() ->
+        {
+            String host = lookup(address);
+            m_cache.put(address, host, host != null ? m_ttl : Math.min(m_ttl, NEGATIVE_TTL));
+
+            if (done.compareAndSet(false, true))
+            {
+                timeout.cancel(false);
+                callback.accept(host);
+            }
+        });
+    }
+
+    private String lookup(InetAddress address)
+    {
+        try
+        {
+            String host = m_resolver.lookupHost(address);
+
+            if (host == null)
+            {
+                return null;
+            }
+
+            /* Forward confirm, the name must point back to the address it was resolved from */
+            for (InetAddress a : m_resolver.lookupAddresses(host))
+            {
+                if (a.equals(address))
+                {
+                    return host;
+                }
+            }
+
+            s_log.info("Hostname %s of %s did not resolve back to it.", host, address.getHostAddress());
+        } catch (IOException e)
+        {
+            s_log.info("Hostname lookup of %s failed: %s", address.getHostAddress(), e.getMessage());
+        }
+
+        return null;
+    }
+
+    public void setResolver(Resolver resolver)
+    {
+        m_resolver = resolver;
+        m_cache.clear();
+    }
+
+    public void shutdown()
+    {
+        m_executor.shutdownNow();
+        m_timer.shutdownNow();
+    }
+
+    public Resolver getResolver()
+    {
+        return m_resolver;
+    }
+
+    public TTLCache<InetAddress, String> getCache()
+    {
+        return m_cache;
+    }
+
+}
@@ -1,307 +1,853 @@
 package io.github.harha.ircd.server;
 
 import io.github.harha.ircd.util.CaseIMap;
+import io.github.harha.ircd.util.CaseMapping;
 import io.github.harha.ircd.util.Consts;
-import io.github.harha.ircd.util.FileUtils;
-import io.github.harha.ircd.util.IniFile;
+import io.github.harha.ircd.util.Histogram;
+import io.github.harha.ircd.util.IdTable;
+import io.github.harha.ircd.util.Log;
 import io.github.harha.ircd.util.Macros;
-import io.github.harha.ircd.util.VarMap;
 
 import java.io.*;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SocketChannel;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class IRCServer extends VarMap implements Runnable
+public class IRCServer implements Runnable
 {
 
-    private InetAddress                   m_host;
-    private InetAddress                   m_ip;
-    private int                           m_port;
-    private ServerSocket                  m_socket;
-    private Map<String, List<Connection>> m_connections;
-    private Map<String, Client>           m_clients;
-    private Map<String, Server>           m_servers;
-    private Map<String, Channel>          m_channels;
-    private IniFile                       m_inifile;
-    private List<String>                  m_motd;
-    private int                           m_deltaTime;
+    private static final String           UID_CHARS      = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    /* Channel size buckets of the fan-out time histograms */
+    public static final int[]             FANOUT_BUCKETS = { 10, 100, 1000, 10000 };
+
+    private InetAddress                             m_host;
+    private String                                  m_hostname;
+    private String                                  m_sid;
+    private byte[]                                  m_prefixBytes;
+    private InetAddress                             m_ip;
+    private int                                     m_port;
+    private ServerSocketChannel                     m_socket;
+    private EventLoop[]                             m_loops;
+    private int                                     m_nextLoop;
+    private ConcurrentMap<String, List<Connection>> m_connections;
+    private ConcurrentMap<String, Client>           m_clients;
+    private ConcurrentMap<String, Server>           m_servers;
+    private ConcurrentMap<String, Channel>          m_channels;
+    private ConcurrentMap<String, Client>           m_uids;
+    private ConcurrentMap<String, Server>           m_sids;
+    private List<Server>                            m_links;
+    private AtomicLong                              m_nextUid;
+    private IdTable<Client>                         m_clientTable;
+    private IdTable<Channel>                        m_channelTable;
+    private Histogram[]                             m_fanoutTimes;
+    private Counters                                m_counters;
+    private Executor                                m_continuation;
+    private volatile Config                         m_config;
+    private ConfigWatcher                           m_watcher;
+    private String                                  m_creationDate;
+    private volatile WelcomeBurst                   m_welcome;
+    private HostResolver                            m_resolver;
+    private Cluster                                 m_cluster;
 
     public IRCServer(String ip, String port) throws NumberFormatException, IOException
     {
         m_host = InetAddress.getLocalHost();
         m_ip = InetAddress.getByName(ip);
         m_port = Integer.parseInt(port);
-        m_socket = new ServerSocket(m_port, 1000, m_ip);
-        m_socket.setSoTimeout(0);
-        m_connections = Collections.synchronizedMap(new CaseIMap<>());
-        m_clients = Collections.synchronizedMap(new CaseIMap<>());
-        m_servers = Collections.synchronizedMap(new CaseIMap<>());
-        m_channels = Collections.synchronizedMap(new CaseIMap<>());
-        m_inifile = new IniFile("main.ini");
-        m_motd = new ArrayList<String>();
-        m_deltaTime = 0;
+        m_socket = ServerSocketChannel.open();
+        m_socket.bind(new InetSocketAddress(m_ip, m_port), 1000);
+        m_nextLoop = 0;
+        m_creationDate = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss").format(new Date());
+        m_config = Config.load("main.ini");
+        m_watcher = new ConfigWatcher(this);
+
+        /* The name and the id of this server in the network */
+        m_hostname = m_config.getServerName().isEmpty() ? m_host.getHostName() : m_config.getServerName();
+        m_prefixBytes = m_hostname.getBytes(StandardCharsets.UTF_8);
+        m_sid = m_config.getSid();
+
+        /* Logging is asynchronous from here on, with the configured levels and outputs */
+        Log.configure(m_config.getIniFile());
 
-        putString("sName", m_inifile.getString("[server]", "name", "mirage-ircd"));
-        putString("sMOTD", m_inifile.getString("[server]", "motd", "motd.txt"));
-        putInteger("sMaxConns", m_inifile.getInt("[server]", "maxconns", 1028));
-        putInteger("cMaxConns", m_inifile.getInt("[client]", "maxconns", 10));
-        putInteger("cPingTime", m_inifile.getInt("[client]", "pingtime", 600));
-        putInteger("cIdentTime", m_inifile.getInt("[client]", "identtime", 300));
+        /* Nick and channel names are compared with the configured casemapping */
+        CaseMapping.setDefault(m_config.getCaseMapping());
 
-        m_motd = FileUtils.loadTextFile(getString("sMOTD"), false);
+        m_connections = new ConcurrentHashMap<String, List<Connection>>();
+        m_clients = new CaseIMap<Client>();
+        m_servers = new CaseIMap<Server>();
+        m_channels = new CaseIMap<Channel>();
+        m_uids = new ConcurrentHashMap<String, Client>();
+        m_sids = new ConcurrentHashMap<String, Server>();
+        m_links = new CopyOnWriteArrayList<Server>();
+        m_nextUid = new AtomicLong(0);
+        m_clientTable = new IdTable<Client>();
+        m_channelTable = new IdTable<Channel>();
+        m_fanoutTimes = new Histogram[FANOUT_BUCKETS.length + 1];
+        m_counters = new Counters();
+        m_continuation = this::continueTask;
 
-        if (m_motd == null)
+        for (int i = 0; i < m_fanoutTimes.length; i++)
         {
-            m_motd = new ArrayList<String>();
-            m_motd.add("No message of the day set on this server. Please refer to the main.ini file for loading it.");
+            m_fanoutTimes[i] = new Histogram();
         }
 
-        putString("sCreationDate", new SimpleDateFormat("dd/MM/yyyy HH:mm:ss").format(new Date()));
+        m_resolver = new HostResolver(new SystemResolver(), m_config.getDNSThreads(), m_config.getDNSTimeout(), m_config.getDNSCache(), m_config.getDNSTTL() * 1000L);
+
+        /* Create the i/o event loops, by default one per available processor */
+        int loops = m_config.getLoops() > 0 ? m_config.getLoops() : Runtime.getRuntime().availableProcessors();
+        m_loops = new EventLoop[loops];
+
+        for (int i = 0; i < loops; i++)
+        {
+            m_loops[i] = new EventLoop(this, i);
+        }
+
+        m_welcome = new WelcomeBurst(this, m_config);
+
+        /* One node of a cluster, the bus is started with the server */
+        if (!m_config.getClusterNode().isEmpty())
+        {
+            ClusterBus bus = m_config.getClusterBus().equals("loopback") ? new LoopbackBus("default") : new TcpBus(m_config.getClusterPassword());
+            m_cluster = new Cluster(this, m_config.getClusterNode(), m_config.getClusterNodes(), m_config.getClusterVnodes(), m_config.getClaimTimeout(), bus);
+        }
     }
 
     @Override
     public void run()
     {
-        while (m_socket.isBound() && !m_socket.isClosed())
+        for (EventLoop loop : m_loops)
+        {
+            loop.start();
+        }
+
+        m_watcher.watch(m_config);
+        m_watcher.start();
+
+        if (m_cluster != null)
         {
             try
             {
-                /* Accept connection, create i/o, create connection object */
-                Socket socket = m_socket.accept();
-                BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter output = new PrintWriter(socket.getOutputStream(), true);
-                Connection connection = new Connection(this, socket, input, output);
+                m_cluster.start();
+            } catch (IOException e)
+            {
+                Macros.ERR("Cluster node %s could not start: %s", m_cluster.getNode(), e.getMessage());
+            }
+        }
 
-                /* Check if max connections per server limit has been reached */
-                if (m_connections.size() >= getInteger("sMaxConns"))
-                {
-                    connection.sendMsgAndFlush(new ServMessage(this, "NOTICE", connection.getNick(), "*** Server connection limit reached. " + m_connections.size() + "/" + getInteger("sMaxConns")));
-                    connection.kill();
-                    Macros.LOG("Too many connections on the server, " + connection + " disconnected.");
-                    continue;
-                }
+        while (m_socket.isOpen())
+        {
+            try
+            {
+                /* Accept the connection and hand it over to the least loaded event loop */
+                SocketChannel channel = m_socket.accept();
+                EventLoop loop = nextEventLoop();
+                loop.reserve();
+                loop.execute(() -> acceptConnection(loop, channel));
+            } catch (ClosedChannelException e)
+            {
+                break;
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
 
-                /* Look up the hostname or ip, depending which one is available */
-                connection.sendMsgAndFlush(new ServMessage(this, "NOTICE", connection.getNick(), "*** Connection accepted. Looking up your hostname..."));
-                String key = connection.getHost().getHostName();
-                connection.sendMsgAndFlush(new ServMessage(this, "NOTICE", connection.getNick(), "*** Found your hostname."));
+        for (EventLoop loop : m_loops)
+        {
+            loop.shutdown();
+        }
 
-                /* Check if connections from same host already exist, check if max limit per hostname has been reached */
-                if (m_connections.containsKey(key))
-                {
-                    if (m_connections.get(key).size() >= getInteger("cMaxConns"))
-                    {
-                        connection.sendMsgAndFlush(new ServMessage(this, "NOTICE", connection.getNick(), "*** Sorry, but your ip exceeds max connections per ip."));
-                        connection.kill();
-                        Macros.LOG("Too many connections from " + connection + ", disconnecting...");
-                        continue;
-                    }
-                }
-                else
-                {
-                    List<Connection> connections = new ArrayList<Connection>();
-                    m_connections.put(key, connections);
-                }
+        m_resolver.shutdown();
+        m_watcher.shutdown();
+
+        if (m_cluster != null)
+        {
+            m_cluster.shutdown();
+        }
+    }
+
+    /*
+     * Loads main.ini and the MOTD again and swaps the new snapshot in as a whole. Connections keep running,
+     * each loop moves its own connections over to their class in the new snapshot. Returns null on success,
+     * otherwise why the files were rejected, the previous snapshot then stays in use.
+     */
+    public synchronized String rehash()
+    {
+        Config old = m_config;
+        Config config;
+
+        try
+        {
+            config = Config.load(old.getFile());
+        } catch (IllegalArgumentException e)
+        {
+            Macros.ERR("Rehash of <%s> failed, keeping the previous configuration: %s", old.getFile(), e.getMessage());
+            return e.getMessage();
+        }
+
+        if (config.getLoops() != old.getLoops() || config.getCaseMapping() != old.getCaseMapping() || config.getDNSThreads() != old.getDNSThreads()
+                || config.getDNSTimeout() != old.getDNSTimeout() || config.getDNSCache() != old.getDNSCache() || config.getDNSTTL() != old.getDNSTTL()
+                || !config.getServerName().equals(old.getServerName()) || !config.getSid().equals(old.getSid()))
+        {
+            Macros.LOG("Changes to loops, casemapping, the resolver, servername or sid take effect after a restart.");
+        }
 
-                /* Add the accepted connection to the connections hashmap-list */
-                m_connections.get(key).add(connection);
-                Macros.LOG("New incoming " + connection + ".");
+        /* Nodes may come and go, this node itself and its bus stay as they were started */
+        if (m_cluster != null && config.getClusterNode().equals(old.getClusterNode()))
+        {
+            m_cluster.setNodes(config.getClusterNodes());
+        }
+        else if (!config.getClusterNode().equals(old.getClusterNode()))
+        {
+            Macros.LOG("Changes to the cluster node take effect after a restart.");
+        }
+
+        Log.configure(config.getIniFile());
+        m_config = config;
+        m_welcome = new WelcomeBurst(this, config);
+
+        for (EventLoop loop : m_loops)
+        {
+            loop.execute(() -> loop.reclassify(config));
+        }
+
+        m_watcher.watch(config);
+        Macros.LOG("Rehashed <%s>, %d connection classes.", config.getFile(), config.getClasses().size() + 1);
+
+        return null;
+    }
+
+    /* Work that did not fit in one batch continues on the loop it ran on, or on any loop */
+    private void continueTask(Runnable task)
+    {
+        EventLoop loop = EventLoop.current();
+
+        if (loop == null)
+        {
+            loop = m_loops[ThreadLocalRandom.current().nextInt(m_loops.length)];
+        }
+
+        loop.execute(task);
+    }
+
+    private EventLoop nextEventLoop()
+    {
+        /* Start from the next loop in turn, so equally loaded loops are picked round-robin */
+        int start = m_nextLoop++ % m_loops.length;
+        EventLoop result = m_loops[start];
+
+        for (int i = 1; i < m_loops.length; i++)
+        {
+            EventLoop loop = m_loops[(start + i) % m_loops.length];
+
+            if (loop.getLoad() < result.getLoad())
+            {
+                result = loop;
+            }
+        }
+
+        return result;
+    }
 
+    /*
+     * Connects to the server of a link block. The connect blocks, so it runs on a thread of its own and hands
+     * the channel over to a loop the way the acceptor does, the handshake is sent as soon as the loop has it.
+     */
+    public void connectServer(LinkBlock link)
+    {
+        Thread thread = new Thread(() ->
+        {
+            try
+            {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(link.getHost(), link.getPort()));
+                EventLoop loop = m_loops[ThreadLocalRandom.current().nextInt(m_loops.length)];
+                loop.reserve();
+                loop.execute(() -> acceptConnection(loop, channel, link));
             } catch (IOException e)
             {
-                e.printStackTrace();
+                Macros.ERR("Cannot connect to %s: %s", link, e.getMessage());
             }
+        }, "mirage-connect");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /* PASS <password> TS 6 :<sid> and SERVER <name> 1 :<info>, the first lines of both ends of a link */
+    public void sendLinkHandshake(Connection c, LinkBlock link)
+    {
+        c.sendMsg(new ServMessage("", "PASS", link.getPassword(), "TS", "6", m_sid));
+
+        if (link.isCompressed())
+        {
+            c.sendMsg(new ServMessage("", "CAPAB", "ZIP"));
         }
+
+        c.sendMsgAndFlush(new ServMessage("", "SERVER", m_hostname, "1", "mirage-ircd " + Consts.VERSION));
     }
 
-    public void updateConnections()
+    private void acceptConnection(EventLoop loop, SocketChannel channel)
     {
-        Iterator<Entry<String, List<Connection>>> it_con_map = getConnections().entrySet().iterator();
+        acceptConnection(loop, channel, null);
+    }
 
-        while (it_con_map.hasNext())
+    private void acceptConnection(EventLoop loop, SocketChannel channel, LinkBlock link)
+    {
+        try
         {
-            Entry<String, List<Connection>> entry_map = it_con_map.next();
-            List<Connection> con_list = (ArrayList<Connection>) entry_map.getValue();
-            Iterator<Connection> it_con_list = con_list.iterator();
+            /* Create the connection object and register it for non-blocking reads */
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(this, loop, channel);
+            loop.addConnection(connection);
 
-            while (it_con_list.hasNext())
+            /* Check if max connections per server limit has been reached */
+            if (m_counters.getConnections() >= m_config.getMaxConns())
             {
-                Connection c = it_con_list.next();
+                connection.sendMsgAndFlush(new ServMessage(this, "NOTICE", connection.getNick(), "*** Server connection limit reached. " + m_counters.getConnections() + "/" + m_config.getMaxConns()));
+                connection.kill();
+                loop.removeConnection(connection);
+                Macros.LOG("Too many connections on the server, " + connection + " disconnected.");
+                return;
+            }
 
-                /* First check, if the socket was closed for some reason */
-                if (c.getSocket().isClosed() || c.getOutput().checkError())
-                {
-                    c.setState(ConnState.DISCONNECTED);
-                }
+            /* Check if connections from same ip already exist, check if max limit per ip has been reached */
+            String key = connection.getIpAddr();
 
-                /* Handle unidentified connections */
-                if (c.getState() == ConnState.UNIDENTIFIED)
-                {
-                    if (c.getIdentTime() == -1)
-                        c.sendMsgAndFlush(new ServMessage(this, "NOTICE", c.getNick(), "*** Checking ident..."));
+            if (!addConnection(key, connection))
+            {
+                connection.sendMsgAndFlush(new ServMessage(this, "NOTICE", connection.getNick(), "*** Sorry, but your ip exceeds max connections per ip."));
+                connection.kill();
+                loop.removeConnection(connection);
+                Macros.LOG("Too many connections from " + connection + ", disconnecting...");
+                return;
+            }
+
+            m_counters.connectionAdded();
+
+            /* A link this server opened, the peer is known and answers the handshake */
+            if (link != null)
+            {
+                Macros.LOG("Connected to " + link + " on " + loop + ".");
+                connection.setLinkBlock(link);
+                connection.setHostName(link.getHost());
+                connection.schedule(connection.getConnClass().getIdentTime() * 1000L);
+                sendLinkHandshake(connection, link);
+                return;
+            }
 
-                    c.updateUnidentified();
+            Macros.LOG("New incoming " + connection + " on " + loop + ".");
 
-                    /* Wait for x seconds before disconnecting the connection */
-                    if (c.getIdentTime() > getInteger("cIdentTime"))
-                    {
-                        c.sendMsgAndFlush(new ServMessage(this, "NOTICE", c.getNick(), "*** Failed to identify the connection, disconnected."));
-                        c.setState(ConnState.DISCONNECTED);
-                    }
+            /* Look up the hostname off the event loop, identification waits until it is known */
+            connection.sendMsgAndFlush(new ServMessage(this, "NOTICE", connection.getNick(), "*** Connection accepted. Looking up your hostname..."));
+            connection.schedule(connection.getConnClass().getIdentTime() * 1000L);
+            connection.setResolving(true);
+            m_resolver.resolve(connection.getHost(), host -> loop.execute(() -> hostResolved(connection, host)));
 
-                    c.setIdentTime(c.getIdentTime() + 1);
-                }
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+            loop.release();
 
-                /* Handle identified client connections */
-                if (c.getState() == ConnState.IDENTIFIED_AS_CLIENT)
-                {
-                    /* Add the connection as a client and inform them for the success */
-                    c.sendMsgAndFlush(new ServMessage(this, "NOTICE", c.getNick(), "*** Found your ident, identified as a client."));
-                    c.setState(ConnState.CONNECTED_AS_CLIENT);
-                    c.getUser().setHostName(c.getHost().getHostName());
-                    Client client = new Client(c);
-                    c.setParentClient(client);
-                    m_clients.put(c.getNick(), client);
-
-                    /* Send some info about the server */
-                    c.sendMsg(new ServMessage(this, "001", c.getNick(), "Welcome to the " + getString("sName") + " IRC network, " + c.getNick()));
-                    c.sendMsg(new ServMessage(this, "002", c.getNick(), "Your host is " + getHost().getHostName() + ", running version mirage-ircd-" + Consts.VERSION));
-                    c.sendMsg(new ServMessage(this, "003", c.getNick(), "This server was created on " + getString("sCreationDate")));
-                    c.sendMsg(new ServMessage(this, CMDs.RPL_LUSERCLIENT, c.getNick(), "There are " + m_connections.size() + " users and 0 invisible on 1 server."));
-                    c.sendMsg(new ServMessage(this, CMDs.RPL_LUSEROP, c.getNick(), "0", "IRC Operators online."));
-                    c.sendMsg(new ServMessage(this, CMDs.RPL_LUSERUNKNOWN, c.getNick(), "0", "Unknown connections."));
-                    c.sendMsg(new ServMessage(this, CMDs.RPL_LUSERCHANNELS, c.getNick(), Integer.toString(m_channels.size()), "Channels formed."));
-                    c.sendMsg(new ServMessage(this, CMDs.RPL_LUSERME, c.getNick(), "I have " + m_clients.size() + " clients and " + m_servers.size() + " servers."));
-
-                    /* Send MOTD to the client */
-                    c.sendMsg(new ServMessage(this, CMDs.RPL_MOTDSTART, c.getNick(), "- Message of the day -"));
-
-                    for (String s : m_motd)
-                    {
-                        c.sendMsg(new ServMessage(this, CMDs.RPL_MOTD, c.getNick(), "- " + s));
-                    }
-
-                    c.sendMsgAndFlush(new ServMessage(this, CMDs.RPL_ENDOFMOTD, c.getNick(), "End of /MOTD command."));
-                }
+            try
+            {
+                channel.close();
+            } catch (IOException e2)
+            {
+                e2.printStackTrace();
+            }
+        }
+    }
+
+    private void hostResolved(Connection c, String host)
+    {
+        if (c.getState() == ConnState.DISCONNECTED)
+        {
+            return;
+        }
+
+        if (host != null)
+        {
+            c.setHostName(host);
+            c.sendMsgAndFlush(new ServMessage(this, "NOTICE", c.getNick(), "*** Found your hostname."));
+        }
+        else
+        {
+            c.sendMsgAndFlush(new ServMessage(this, "NOTICE", c.getNick(), "*** Couldn't look up your hostname, using your ip address instead."));
+        }
+
+        c.sendMsgAndFlush(new ServMessage(this, "NOTICE", c.getNick(), "*** Checking ident..."));
+
+        /* Continue the identification that was held back by the lookup */
+        c.setResolving(false);
+        c.identify();
+        c.getEventLoop().ready(c);
+    }
+
+    public void connectionTimer(Connection c)
+    {
+        /* Handle unidentified connections, the registration deadline has passed */
+        if (c.getState() == ConnState.UNIDENTIFIED)
+        {
+            c.sendMsgAndFlush(new ServMessage(this, "NOTICE", c.getNick(), "*** Failed to identify the connection, disconnected."));
+            c.setState(ConnState.DISCONNECTED);
+        }
+
+        /* The owner of the nick did not answer in time */
+        else if (c.getState() == ConnState.CLAIMING_NICK)
+        {
+            c.sendMsgAndFlush(new ServMessage(this, "NOTICE", c.getNick(), "*** The cluster did not confirm your nick, disconnected."));
+            c.setState(ConnState.DISCONNECTED);
+        }
+
+        /* Handle connected client and server connections */
+        else if (c.getState() == ConnState.CONNECTED_AS_CLIENT || c.getState() == ConnState.CONNECTED_AS_SERVER)
+        {
+            long pingtime = c.getConnClass().getPingTime() * 1000L;
+            long idle = c.getEventLoop().currentTime() - c.getLastActivity();
+
+            /* There was input since the timer was set, push the deadline forward from it */
+            if (idle < pingtime)
+            {
+                c.setPingSent(false);
+                c.schedule(pingtime - idle);
+            }
+
+            /* Send a PING request and give it half the interval to respond */
+            else if (!c.isPingSent())
+            {
+                c.sendMsgAndFlush(new ServMessage("", "PING", c.getParentServer() != null ? m_hostname : c.getNick()));
+                c.setPingSent(true);
+                c.schedule(pingtime / 2);
+            }
+
+            /* Disconnect if it didn't respond to the PING request given enough time */
+            else
+            {
+                c.disconnect("Ping timeout: " + idle / 1000 + " seconds");
+            }
+        }
+
+        updateConnection(c);
+    }
+
+    public void updateConnection(Connection c)
+    {
+        /* Handle unidentified connections */
+        if (c.getState() == ConnState.UNIDENTIFIED)
+        {
+            c.updateUnidentified();
+        }
+
+        /* Handle identified client connections */
+        if (c.getState() == ConnState.IDENTIFIED_AS_CLIENT)
+        {
+            /* Add the connection as a client and inform them for the success */
+            c.sendMsgAndFlush(new ServMessage(this, "NOTICE", c.getNick(), "*** Found your ident, identified as a client."));
+            Client client = new Client(c);
+
+            /* The nick was free when it was checked, it is only taken here */
+            if (m_clients.putIfAbsent(c.getNick(), client) != null)
+            {
+                c.sendMsgAndFlush(new ServMessage(this, "NOTICE", c.getNick(), "*** NICK already exists on this server. Disconnecting."));
+                c.setState(ConnState.DISCONNECTED);
+                removeConnection(c);
+                return;
+            }
+
+            /* In a cluster the nick is also claimed from the node that owns it, the lines after it wait meanwhile */
+            if (m_cluster != null)
+            {
+                c.setState(ConnState.CLAIMING_NICK);
+                m_cluster.claimNick(c.getNick(), granted -> c.getEventLoop().execute(() -> nickClaimed(c, client, granted)));
+                return;
+            }
+
+            registerClient(c, client);
+        }
+
+        /* Handle identified server connections */
+        else if (c.getState() == ConnState.IDENTIFIED_AS_SERVER)
+        {
+            Server server = new Server(c);
+
+            /* The name and the id were free when they were checked, they are only taken here */
+            if (m_sids.putIfAbsent(server.getSid(), server) != null)
+            {
+                c.disconnect("Server " + server.getSid() + " already exists");
+                removeConnection(c);
+                return;
+            }
+
+            if (m_servers.putIfAbsent(server.getName(), server) != null)
+            {
+                m_sids.remove(server.getSid(), server);
+                c.disconnect("Server " + server.getName() + " already exists");
+                removeConnection(c);
+                return;
+            }
+
+            c.setState(ConnState.CONNECTED_AS_SERVER);
+            c.setParentServer(server);
+            m_counters.serverRegistered();
+            c.schedule(c.getConnClass().getPingTime() * 1000L);
+            c.startCompression();
+            Macros.LOG("Linked with %s%s.", server, c.getCompression() != null ? ", compressed" : "");
+
+            /* Listed before the burst is taken, a change after this is either in the burst or sent after it */
+            m_links.add(server);
+            server.sendBurst();
+
+            /* The rest of the network learns of the new server before anything of its burst is relayed */
+            sendToLinks(server, new ServMessage(m_sid, "SID", server.getName(), Integer.toString(server.getHops() + 1), server.getSid(), server.getInfo().getInfo()));
+        }
+
+        /* Handle connected client connections */
+        if (c.getState() == ConnState.CONNECTED_AS_CLIENT)
+        {
+            c.getParentClient().updateIdentifiedClient();
+        }
+
+        /* Handle connected server connections */
+        else if (c.getState() == ConnState.CONNECTED_AS_SERVER)
+        {
+            c.getParentServer().updateIdentifiedServer();
+        }
+
+        /* Unregister the connection if it was closed */
+        if (c.getState() == ConnState.DISCONNECTED)
+        {
+            removeConnection(c);
+        }
+    }
+
+    private void registerClient(Connection c, Client client)
+    {
+        c.setState(ConnState.CONNECTED_AS_CLIENT);
+        c.getUser().setHostName(c.getHostName());
+        client.setId(m_clientTable.add(client));
+        client.setUid(nextUid());
+        m_uids.put(client.getUid(), client);
+        m_counters.userRegistered();
+        c.schedule(c.getConnClass().getPingTime() * 1000L);
+        c.setParentClient(client);
+
+        /* Send the info about the server and the MOTD */
+        sendWelcome(c, c.getNick());
+
+        /* Introduce the user to the rest of the network */
+        sendToLinks(null, getUidMessage(client));
+    }
+
+    /* The answer of the cluster to the nick of a registering client, on its own loop */
+    private void nickClaimed(Connection c, Client client, boolean granted)
+    {
+        /* The client went away meanwhile, its reservation here is already gone */
+        if (c.getState() != ConnState.CLAIMING_NICK)
+        {
+            if (granted)
+            {
+                m_cluster.releaseNick(c.getNick());
+            }
+
+            return;
+        }
+
+        if (!granted)
+        {
+            c.sendMsgAndFlush(new ServMessage(this, "NOTICE", c.getNick(), "*** NICK already exists in the cluster. Disconnecting."));
+            c.setState(ConnState.DISCONNECTED);
+            removeConnection(c);
+            return;
+        }
+
+        registerClient(c, client);
+        c.getEventLoop().ready(c);
+    }
+
+    /* Lines about the state of the network go to every link but the one they came from */
+    public void sendToLinks(Server except, ServMessage message)
+    {
+        for (Server link : m_links)
+        {
+            if (link != except)
+            {
+                link.send(message);
+            }
+        }
+    }
+
+    /* UID <nick> <hops> <nickts> <umodes> <username> <hostname> <ip> <uid> :<realname> */
+    public ServMessage getUidMessage(Client client)
+    {
+        Connection c = client.getConnection();
+        Server server = client.getServer();
+        String sid = server != null ? server.getSid() : m_sid;
+        int hops = server != null ? server.getHops() + 1 : 1;
+
+        return new ServMessage(sid, "UID", c.getNick(), Integer.toString(hops), Long.toString(client.getNickTS()), "+", c.getUser().getUserName(), c.getHostName(), c.getIpAddr(), client.getUid(), c.getUser().getRealName());
+    }
+
+    /* The server id and six characters, a letter first, the counter only wraps after 26 * 36^5 users */
+    private String nextUid()
+    {
+        long n = m_nextUid.getAndIncrement();
+        char[] uid = new char[6];
+
+        for (int i = 5; i > 0; i--)
+        {
+            uid[i] = UID_CHARS.charAt((int) (n % 36));
+            n /= 36;
+        }
+
+        uid[0] = UID_CHARS.charAt((int) (n % 26));
+
+        return m_sid + new String(uid);
+    }
+
+    /* A user introduced by a link, false if its nick was taken meanwhile */
+    public boolean addRemoteClient(Client client)
+    {
+        if (m_clients.putIfAbsent(client.getConnection().getNick(), client) != null)
+        {
+            return false;
+        }
+
+        client.setId(m_clientTable.add(client));
+        m_uids.put(client.getUid(), client);
+        m_counters.remoteUserAdded();
+
+        return true;
+    }
+
+    public void removeRemoteClient(Client client, String reason)
+    {
+        if (!m_uids.remove(client.getUid(), client))
+        {
+            return;
+        }
 
-                /* Handle identified server connections */
-                else if (c.getState() == ConnState.IDENTIFIED_AS_SERVER)
+        m_clients.remove(client.getConnection().getNick(), client);
+        m_counters.remoteUserRemoved();
+        client.getConnection().setState(ConnState.DISCONNECTED);
+        client.quitChans(reason, () -> m_clientTable.remove(client.getId(), client));
+    }
+
+    /* A local user is disconnected, a remote one removed and the KILL passed on to every link */
+    public void killClient(Client client, String reason)
+    {
+        if (client.isLocal())
+        {
+            /* The nick is free right away, the connection is closed and unregistered by its own loop */
+            Connection c = client.getConnection();
+            m_clients.remove(c.getNick(), client);
+            c.getEventLoop().execute(() -> c.disconnect("Killed (" + m_hostname + " (" + reason + "))"));
+            return;
+        }
+
+        removeRemoteClient(client, "Killed (" + reason + ")");
+        sendToLinks(null, new ServMessage(m_sid, "KILL", client.getUid(), reason));
+    }
+
+    public void addRemoteServer(Server server)
+    {
+        m_sids.put(server.getSid(), server);
+        m_servers.put(server.getName(), server);
+        m_counters.remoteServerAdded();
+    }
+
+    /* Removes a server and everything behind it, their users quit with the names of both sides of the split */
+    public void removeServer(Server server, String reason)
+    {
+        List<Server> lost = new ArrayList<Server>();
+
+        for (Server s : m_sids.values())
+        {
+            for (Server up = s; up != null; up = up.getUplink())
+            {
+                if (up == server)
                 {
-                    /* Add the connection as a server and inform them for the success */
-                    c.sendMsgAndFlush(new ServMessage(this, "NOTICE", c.getServer().getName(), "*** Found your ident, identified as a server."));
-                    c.setState(ConnState.CONNECTED_AS_SERVER);
-                    c.getUser().setHostName(c.getHost().getHostName());
-                    Server server = new Server(c);
-                    c.setParentServer(server);
-                    m_servers.put(c.getServer().getName(), server);
-
-                    /* Send some info about the server */
-                    c.sendMsg(new ServMessage(this, "001", c.getServer().getName(), "Welcome to the " + getString("sName") + " IRC network, " + c.getServer().getName()));
-                    c.sendMsg(new ServMessage(this, "002", c.getServer().getName(), "Your host is " + getHost().getHostName() + ", running version mirage-ircd-" + Consts.VERSION));
-                    c.sendMsg(new ServMessage(this, "003", c.getServer().getName(), "This server was created on " + getString("sCreationDate")));
-                    c.sendMsg(new ServMessage(this, CMDs.RPL_LUSERCLIENT, c.getServer().getName(), "There are " + m_connections.size() + " users and 0 invisible on 1 server."));
-                    c.sendMsg(new ServMessage(this, CMDs.RPL_LUSEROP, c.getServer().getName(), "0", "IRC Operators online."));
-                    c.sendMsg(new ServMessage(this, CMDs.RPL_LUSERUNKNOWN, c.getServer().getName(), "0", "Unknown connections."));
-                    c.sendMsg(new ServMessage(this, CMDs.RPL_LUSERCHANNELS, c.getServer().getName(), Integer.toString(m_channels.size()), "Channels formed."));
-                    c.sendMsg(new ServMessage(this, CMDs.RPL_LUSERME, c.getServer().getName(), "I have " + m_clients.size() + " clients and " + m_servers.size() + " servers."));
-
-                    /* Send MOTD to the server */
-                    c.sendMsg(new ServMessage(this, CMDs.RPL_MOTDSTART, c.getServer().getName(), "- Message of the day -"));
-
-                    for (String s : m_motd)
-                    {
-                        c.sendMsg(new ServMessage(this, CMDs.RPL_MOTD, c.getServer().getName(), "- " + s));
-                    }
-
-                    c.sendMsgAndFlush(new ServMessage(this, CMDs.RPL_ENDOFMOTD, c.getServer().getName(), "End of /MOTD command."));
+                    lost.add(s);
+                    break;
                 }
+            }
+        }
 
-                /* Handle connected client connections */
-                if (c.getState() == ConnState.CONNECTED_AS_CLIENT)
-                {
-                    Client client = c.getParentClient();
+        for (Server s : lost)
+        {
+            m_sids.remove(s.getSid(), s);
+            m_servers.remove(s.getName(), s);
+
+            if (!s.isLink())
+            {
+                m_counters.remoteServerRemoved();
+            }
+        }
 
-                    /* Send a PING request between intervals */
-                    int pingtime = getInteger("cPingTime");
-                    if (client.getPingTimer() >= pingtime && client.getPingTimer() % (pingtime / 10) == 0)
-                    {
-                        c.sendMsgAndFlush(new ServMessage("", "PING", c.getNick()));
-                    }
+        int users = 0;
 
-                    client.updateIdentifiedClient();
+        for (Client client : m_uids.values())
+        {
+            if (!client.isLocal() && lost.contains(client.getServer()))
+            {
+                removeRemoteClient(client, reason);
+                users++;
+            }
+        }
 
-                    /* Disconnect if it didn't respond to the PING request given enough time */
-                    if (client.getPingTimer() > (int) (pingtime * 1.5))
-                    {
-                        c.setState(ConnState.DISCONNECTED);
-                    }
+        Macros.LOG("Split from %s, %d servers and %d users lost.", server.getName(), lost.size(), users);
+    }
 
-                    client.setPingTimer(client.getPingTimer() + 1);
-                }
+    private void sendWelcome(Connection c, String target)
+    {
+        c.sendBufferAndFlush(m_welcome.render(target, m_counters));
+    }
+
+    /* The list of connections per ip is replaced as a whole, so the limit can be checked without a lock */
+    private boolean addConnection(String key, Connection c)
+    {
+        while (true)
+        {
+            List<Connection> list = m_connections.get(key);
 
-                /* Handle connected server connections */
-                else if (c.getState() == ConnState.CONNECTED_AS_SERVER)
+            if (list == null)
+            {
+                if (m_connections.putIfAbsent(key, Collections.singletonList(c)) == null)
                 {
-                    c.getParentServer().updateIdentifiedServer();
+                    return true;
                 }
+            }
+            else if (list.size() >= c.getConnClass().getMaxConns())
+            {
+                return false;
+            }
+            else
+            {
+                List<Connection> result = new ArrayList<Connection>(list);
+                result.add(c);
 
-                /* Unregister the connection if it was closed */
-                if (c.getState() == ConnState.DISCONNECTED)
+                if (m_connections.replace(key, list, Collections.unmodifiableList(result)))
                 {
-                    Client client = c.getParentClient();
-                    Server server = c.getParentServer();
-
-                    /* Is it a client? */
-                    if (client != null)
-                    {
-                        client.quitChans("Connection reset by peer...");
-                        m_clients.remove(c.getNick());
-                    }
-
-                    /* Is it a server? Should't be both. */
-                    if (server != null)
-                    {
-                        m_servers.remove(c.getServer().getName());
-                    }
-
-                    c.kill();
-                    it_con_list.remove();
-                    Macros.LOG(c + " Has disconnected.");
+                    return true;
                 }
             }
+        }
+    }
+
+    private boolean removeConnection(String key, Connection c)
+    {
+        while (true)
+        {
+            List<Connection> list = m_connections.get(key);
+
+            if (list == null || !list.contains(c))
+            {
+                return false;
+            }
 
             /* Remove the key from connection list map if the list is empty */
-            if (con_list.isEmpty())
+            if (list.size() == 1)
             {
-                it_con_map.remove();
+                if (m_connections.remove(key, list))
+                {
+                    return true;
+                }
+            }
+            else
+            {
+                List<Connection> result = new ArrayList<Connection>(list);
+                result.remove(c);
+
+                if (m_connections.replace(key, list, Collections.unmodifiableList(result)))
+                {
+                    return true;
+                }
             }
         }
     }
 
-    public void updateChannels()
+    private void removeConnection(Connection c)
     {
-        Iterator<Entry<String, Channel>> it_chan_map = m_channels.entrySet().iterator();
+        Client client = c.getParentClient();
+        Server server = c.getParentServer();
 
-        while (it_chan_map.hasNext())
+        /* A client that went away while its nick was claimed only holds the nick here */
+        if (client == null && m_cluster != null)
         {
-            Entry<String, Channel> e = it_chan_map.next();
-            Channel c = (Channel) e.getValue();
+            Client pending = m_clients.get(c.getNick());
 
-            /* Delete empty channels */
-            if (c.getState() == ChanState.EMPTY)
+            if (pending != null && pending.getConnection() == c)
             {
-                it_chan_map.remove();
+                m_clients.remove(c.getNick(), pending);
             }
         }
-    }
 
-    public void setDeltaTime(int deltaTime)
-    {
-        m_deltaTime = deltaTime;
+        /* Is it a client? */
+        if (client != null)
+        {
+            /* The other nodes of a cluster tell their members who shared a channel with it, and the nick is free again */
+            if (m_cluster != null)
+            {
+                m_cluster.peersMsg(client.getChannels(), new ServMessage(c, "QUIT", c.getQuitReason()));
+                m_cluster.releaseNick(c.getNick());
+            }
+
+            /* The id is only given back after every channel has let go of it */
+            m_clients.remove(c.getNick(), client);
+            client.quitChans(c.getQuitReason(), () -> m_clientTable.remove(client.getId(), client));
+
+            if (m_uids.remove(client.getUid(), client))
+            {
+                sendToLinks(null, new ServMessage(client.getUid(), "QUIT", c.getQuitReason()));
+            }
+        }
+
+        /* Is it a server? Should't be both. Everything behind it is split off with it */
+        if (server != null && m_links.remove(server))
+        {
+            Macros.LOG("Link with %s closed: %s", server, c.getQuitReason());
+            removeServer(server, m_hostname + " " + server.getName());
+            sendToLinks(null, new ServMessage(m_sid, "SQUIT", server.getSid(), c.getQuitReason()));
+        }
+
+        c.kill();
+        c.getEventLoop().removeConnection(c);
+
+        String key = c.getIpAddr();
+
+        if (!removeConnection(key, c))
+        {
+            return;
+        }
+
+        if (client != null)
+        {
+            m_counters.userRemoved();
+        }
+        else if (server != null)
+        {
+            m_counters.serverRemoved();
+        }
+        else
+        {
+            m_counters.unknownRemoved();
+        }
+
+        m_counters.connectionRemoved();
+
+        Macros.LOG(c + " Has disconnected.");
     }
 
     public InetAddress getHost()
@@ -309,6 +855,21 @@ public class IRCServer extends VarMap implements Runnable
         return m_host;
     }
 
+    public String getHostName()
+    {
+        return m_hostname;
+    }
+
+    public String getPrefix()
+    {
+        return m_hostname;
+    }
+
+    public byte[] getPrefixBytes()
+    {
+        return m_prefixBytes;
+    }
+
     public InetAddress getIp()
     {
         return m_ip;
@@ -319,59 +880,205 @@ public class IRCServer extends VarMap implements Runnable
         return m_port;
     }
 
-    public ServerSocket getSocket()
+    public ServerSocketChannel getSocket()
     {
         return m_socket;
     }
 
-    public synchronized Map<String, List<Connection>> getConnections()
+    public Executor getContinuationExecutor()
+    {
+        return m_continuation;
+    }
+
+    public ConcurrentMap<String, List<Connection>> getConnections()
     {
         return m_connections;
     }
 
-    public synchronized List<Connection> getConnection(String key)
+    public List<Connection> getConnection(String key)
     {
         return m_connections.get(key);
     }
 
-    public synchronized Map<String, Client> getClients()
+    public ConcurrentMap<String, Client> getClients()
     {
         return m_clients;
     }
 
-    public synchronized Client getClient(String key)
+    public Client getClient(String key)
     {
         return m_clients.get(key);
     }
 
-    public synchronized Map<String, Server> getServers()
+    public ConcurrentMap<String, Server> getServers()
     {
         return m_servers;
     }
 
-    public synchronized Server getServer(String key)
+    public Server getServer(String key)
     {
         return m_servers.get(key);
     }
 
-    public synchronized Map<String, Channel> getChannels()
+    public Server getServerBySid(String sid)
+    {
+        return m_sids.get(sid);
+    }
+
+    public Client getClientByUid(String uid)
+    {
+        return m_uids.get(uid);
+    }
+
+    /* Every user of the network by uid, local and remote */
+    public ConcurrentMap<String, Client> getUidTable()
+    {
+        return m_uids;
+    }
+
+    /* The servers linked to this one */
+    public List<Server> getLinks()
+    {
+        return m_links;
+    }
+
+    public String getSid()
+    {
+        return m_sid;
+    }
+
+    public Channel createChannel(String name)
+    {
+        /* The id is handed out before the channel can be found by name, a lost race gives it back */
+        Channel created = new Channel(this, name, "", "");
+        created.setId(m_channelTable.add(created));
+
+        Channel channel = m_channels.putIfAbsent(name, created);
+
+        if (channel != null)
+        {
+            m_channelTable.remove(created.getId(), created);
+            return channel;
+        }
+
+        m_counters.channelAdded();
+
+        if (m_cluster != null)
+        {
+            m_cluster.channelChanged(name);
+        }
+
+        return created;
+    }
+
+    public void removeChannel(Channel channel)
+    {
+        if (m_channels.remove(channel.getName(), channel))
+        {
+            m_channelTable.remove(channel.getId(), channel);
+            m_counters.channelRemoved();
+
+            if (m_cluster != null)
+            {
+                m_cluster.channelChanged(channel.getName());
+            }
+        }
+    }
+
+    public void recordFanout(int members, long nanos)
+    {
+        int bucket = 0;
+
+        while (bucket < FANOUT_BUCKETS.length && members > FANOUT_BUCKETS[bucket])
+        {
+            bucket++;
+        }
+
+        m_fanoutTimes[bucket].record(nanos);
+    }
+
+    /* One histogram per channel size bucket, see FANOUT_BUCKETS, the last one is for anything bigger */
+    public Histogram[] getFanoutTimes()
+    {
+        return m_fanoutTimes;
+    }
+
+    public IdTable<Client> getClientTable()
+    {
+        return m_clientTable;
+    }
+
+    public Client getClientById(int id)
+    {
+        return m_clientTable.get(id);
+    }
+
+    public Channel getChannelById(int id)
+    {
+        return m_channelTable.get(id);
+    }
+
+    public ConcurrentMap<String, Channel> getChannels()
     {
         return m_channels;
     }
 
-    public synchronized Channel getChannel(String key)
+    public Channel getChannel(String key)
     {
         return m_channels.get(key);
     }
 
+    public Counters getCounters()
+    {
+        return m_counters;
+    }
+
+    public WelcomeBurst getWelcomeBurst()
+    {
+        return m_welcome;
+    }
+
+    /* The cluster this server is a node of, null when it is not in one */
+    public Cluster getCluster()
+    {
+        return m_cluster;
+    }
+
+    public Config getConfig()
+    {
+        return m_config;
+    }
+
+    public String getCreationDate()
+    {
+        return m_creationDate;
+    }
+
     public List<String> getMotd()
     {
-        return m_motd;
+        return m_config.getMotd();
+    }
+
+    public HostResolver getResolver()
+    {
+        return m_resolver;
+    }
+
+    public EventLoop[] getEventLoops()
+    {
+        return m_loops;
     }
 
     public int getDeltaTime()
     {
-        return m_deltaTime;
+        int result = 0;
+
+        for (EventLoop loop : m_loops)
+        {
+            result = Math.max(result, loop.getDeltaTime());
+        }
+
+        return result;
     }
 
 }
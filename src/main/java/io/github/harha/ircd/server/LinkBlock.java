@@ -0,0 +1,79 @@
+package io.github.harha.ircd.server;
+
+import io.github.harha.ircd.util.IniFile;
+
+public final class LinkBlock
+{
+
+    /*
+     * A server this one may link with, from a [link <name>] section. Both ends need a block for each other with
+     * the same password. Host and port are only used by the end that connects, e.g. with CONNECT. A link carries
+     * whole bursts, so its queues are far bigger than the ones of a client. With compress=true on both ends the
+     * traffic of the link is deflated.
+     */
+    private final String  m_name;
+    private final String  m_host;
+    private final int     m_port;
+    private final String  m_password;
+    private final int     m_recvQ;
+    private final int     m_sendQ;
+    private final boolean m_compress;
+
+    public LinkBlock(IniFile ini, String section, String name)
+    {
+        m_name = name;
+        m_host = ini.getString(section, "host", "");
+        m_port = Config.getInt(ini, section, "port", 6667, 1);
+        m_password = ini.getString(section, "password", "");
+        m_recvQ = Config.getInt(ini, section, "recvq", 1048576, 8192);
+        m_sendQ = Config.getInt(ini, section, "sendq", 33554432, 262144);
+        m_compress = ini.getBoolean(section, "compress", false);
+
+        if (m_password.isEmpty())
+        {
+            throw new IllegalArgumentException(section + " password: a link needs a password");
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("LinkBlock[%s, %s:%d]", m_name, m_host, m_port);
+    }
+
+    public String getName()
+    {
+        return m_name;
+    }
+
+    public String getHost()
+    {
+        return m_host;
+    }
+
+    public int getPort()
+    {
+        return m_port;
+    }
+
+    public String getPassword()
+    {
+        return m_password;
+    }
+
+    public int getRecvQ()
+    {
+        return m_recvQ;
+    }
+
+    public int getSendQ()
+    {
+        return m_sendQ;
+    }
+
+    public boolean isCompressed()
+    {
+        return m_compress;
+    }
+
+}
@@ -0,0 +1,288 @@
+package io.github.harha.ircd.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public final class LinkCompression
+{
+
+    /* Words of the link protocol, each stream is primed with them so even its first lines compress well */
+    private static final String       DICTIONARY  = " PING PONG ERROR SQUIT KILL :Nick collision EOB TOPIC # PART # JOIN # NICK QUIT :Quit: NOTICE # PRIVMSG # SJOIN + :@ UID + ";
+
+    private static final int          CHUNK       = 16384;
+    private static final ThreadMXBean s_threads   = ManagementFactory.getThreadMXBean();
+
+    /*
+     * The two zlib streams of a compressed link. Output is queued as it is and compressed once per write of the
+     * connection, the sync flush at the end of each batch puts every queued line on the wire without ending the
+     * stream. Input is inflated as it is read, at most as much as the RecvQ has room for: what does not fit
+     * stays compressed in the backlog until the lines before it have run. Only the event loop of the link
+     * touches it, the counters are read by STATS from other threads.
+     */
+    private final Deflater            m_deflater;
+    private final Inflater            m_inflater;
+    private final byte[]              m_inflateDictionary;
+    private final Deque<ByteBuffer>   m_pending;
+    private final byte[]              m_stage;
+    private byte[]                    m_out;
+    private byte[]                    m_in;
+    private byte[]                    m_backlog;
+    private int                       m_backlogLength;
+    private boolean                   m_inflateFull;
+    private int                       m_pendingBytes;
+    private volatile long             m_rawOut;
+    private volatile long             m_zipOut;
+    private volatile long             m_rawIn;
+    private volatile long             m_zipIn;
+    private volatile long             m_cpuTime;
+
+    /* The dictionary of each direction ends with the id and the name of the server that writes it */
+    public LinkCompression(String sid, String name, String peerSid, String peerName)
+    {
+        m_deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        m_deflater.setDictionary(getDictionary(sid, name));
+        m_inflater = new Inflater();
+        m_inflateDictionary = getDictionary(peerSid, peerName);
+        m_pending = new ArrayDeque<ByteBuffer>();
+        m_stage = new byte[CHUNK];
+        m_out = new byte[CHUNK];
+        m_in = new byte[CHUNK];
+        m_backlog = new byte[CHUNK];
+        m_backlogLength = 0;
+        m_pendingBytes = 0;
+    }
+
+    private static byte[] getDictionary(String sid, String name)
+    {
+        return (DICTIONARY + ":" + sid + " " + name + " :" + sid).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /* Queues plain output until the next write */
+    public void add(ByteBuffer buffer)
+    {
+        m_pending.add(buffer);
+        m_pendingBytes += buffer.remaining();
+    }
+
+    public boolean hasPending()
+    {
+        return !m_pending.isEmpty();
+    }
+
+    public void clearPending()
+    {
+        m_pending.clear();
+        m_pendingBytes = 0;
+    }
+
+    public int getPendingBytes()
+    {
+        return m_pendingBytes;
+    }
+
+    /* Everything queued since the last write, compressed into one buffer that ends with a sync flush */
+    public ByteBuffer deflate()
+    {
+        long time = threadCpuTime();
+        int length = 0;
+
+        for (ByteBuffer buffer; (buffer = m_pending.poll()) != null;)
+        {
+            while (buffer.hasRemaining())
+            {
+                int n = Math.min(buffer.remaining(), m_stage.length);
+                buffer.get(m_stage, 0, n);
+                m_deflater.setInput(m_stage, 0, n);
+
+                while (!m_deflater.needsInput())
+                {
+                    length = reserveOut(length);
+                    length += m_deflater.deflate(m_out, length, m_out.length - length, Deflater.NO_FLUSH);
+                }
+            }
+        }
+
+        /* The flush is complete once it leaves room in the output */
+        int n;
+
+        do
+        {
+            length = reserveOut(length);
+            n = m_deflater.deflate(m_out, length, m_out.length - length, Deflater.SYNC_FLUSH);
+            length += n;
+        } while (length == m_out.length);
+
+        m_rawOut += m_pendingBytes;
+        m_zipOut += length;
+        m_pendingBytes = 0;
+
+        ByteBuffer result = ByteBuffer.wrap(Arrays.copyOf(m_out, length));
+
+        /* A burst grows the buffer, it is not kept at that size */
+        if (m_out.length > CHUNK * 4)
+        {
+            m_out = new byte[CHUNK];
+        }
+
+        m_cpuTime += threadCpuTime() - time;
+
+        return result;
+    }
+
+    private int reserveOut(int length)
+    {
+        if (m_out.length - length < 1024)
+        {
+            m_out = Arrays.copyOf(m_out, m_out.length * 2);
+        }
+
+        return length;
+    }
+
+    /*
+     * Inflates bytes as they were read, after the backlog, into at most max plain bytes. The plain bytes are in
+     * getInput() up to the returned length, the input that would inflate to more stays in the backlog.
+     */
+    public int inflate(byte[] data, int start, int end, int max) throws DataFormatException
+    {
+        long time = threadCpuTime();
+        int length = 0;
+
+        if (m_backlog.length - m_backlogLength < end - start)
+        {
+            m_backlog = Arrays.copyOf(m_backlog, Math.max(m_backlog.length * 2, m_backlogLength + end - start));
+        }
+
+        System.arraycopy(data, start, m_backlog, m_backlogLength, end - start);
+        m_backlogLength += end - start;
+
+        /* A burst grows the buffers, they are not kept at that size */
+        if (m_in.length > CHUNK * 4)
+        {
+            m_in = new byte[CHUNK];
+        }
+
+        m_inflater.setInput(m_backlog, 0, m_backlogLength);
+
+        while (length < max)
+        {
+            if (m_in.length - length < 1024 && m_in.length < max)
+            {
+                m_in = Arrays.copyOf(m_in, Math.min(m_in.length * 2, Math.max(max, CHUNK)));
+            }
+
+            int n = m_inflater.inflate(m_in, length, Math.min(m_in.length, max) - length);
+            length += n;
+
+            if (n > 0)
+            {
+                continue;
+            }
+
+            if (m_inflater.needsDictionary())
+            {
+                m_inflater.setDictionary(m_inflateDictionary);
+                continue;
+            }
+
+            if (m_inflater.finished())
+            {
+                throw new DataFormatException("the stream was ended by the peer");
+            }
+
+            break;
+        }
+
+        /* What was not inflated moves to the front of the backlog */
+        int remaining = m_inflater.getRemaining();
+        m_zipIn += m_backlogLength - remaining;
+        System.arraycopy(m_backlog, m_backlogLength - remaining, m_backlog, 0, remaining);
+        m_backlogLength = remaining;
+
+        if (remaining == 0 && m_backlog.length > CHUNK * 4)
+        {
+            m_backlog = new byte[CHUNK];
+        }
+
+        /* Stopped at the limit, the inflater may still hold output even if all of the input was consumed */
+        m_inflateFull = length >= max;
+        m_rawIn += length;
+        m_cpuTime += threadCpuTime() - time;
+
+        return length;
+    }
+
+    /* Compressed bytes that were read but not inflated yet */
+    public int getBacklog()
+    {
+        return m_backlogLength;
+    }
+
+    public boolean hasBacklog()
+    {
+        return m_backlogLength > 0 || m_inflateFull;
+    }
+
+    public byte[] getInput()
+    {
+        return m_in;
+    }
+
+    public void end()
+    {
+        m_deflater.end();
+        m_inflater.end();
+        clearPending();
+    }
+
+    private static long threadCpuTime()
+    {
+        return s_threads.isCurrentThreadCpuTimeSupported() ? s_threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("out %d/%d (%.1fx) in %d/%d (%.1fx) cpu %d ms", m_rawOut, m_zipOut, getRatio(m_rawOut, m_zipOut), m_rawIn, m_zipIn, getRatio(m_rawIn, m_zipIn), m_cpuTime / 1000000);
+    }
+
+    private static double getRatio(long raw, long zip)
+    {
+        return zip > 0 ? (double) raw / zip : 0;
+    }
+
+    public long getRawOut()
+    {
+        return m_rawOut;
+    }
+
+    public long getZipOut()
+    {
+        return m_zipOut;
+    }
+
+    public long getRawIn()
+    {
+        return m_rawIn;
+    }
+
+    public long getZipIn()
+    {
+        return m_zipIn;
+    }
+
+    /* Time spent compressing and inflating, in nanoseconds of thread CPU time where the JVM measures it */
+    public long getCpuTime()
+    {
+        return m_cpuTime;
+    }
+
+}
@@ -0,0 +1,108 @@
+package io.github.harha.ircd.server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+public class LoopbackBus implements ClusterBus
+{
+
+    /* The nodes of every in-process cluster, by the name of the cluster */
+    private static final ConcurrentMap<String, ConcurrentMap<String, LoopbackBus>> s_groups = new ConcurrentHashMap<String, ConcurrentMap<String, LoopbackBus>>();
+
+    /*
+     * A bus for nodes in the same process, e.g. in tests. Each node has one thread that runs the lines sent to
+     * it, in the order they were sent, so the nodes still only meet through the bus and never share state.
+     */
+    private ConcurrentMap<String, LoopbackBus> m_group;
+    private String                             m_node;
+    private Handler                            m_handler;
+    private ExecutorService                    m_executor;
+
+    public LoopbackBus(String group)
+    {
+        m_group = s_groups.computeIfAbsent(group, g -> new ConcurrentHashMap<String, LoopbackBus>());
+    }
+
+    @Override
+    public void start(String node, Handler handler) throws IOException
+    {
+        m_node = node;
+        m_handler = handler;
+        m_executor = Executors.newSingleThreadExecutor(r ->
+        {
+            Thread thread = new Thread(r, "mirage-bus-" + node);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (m_group.putIfAbsent(node, this) != null)
+        {
+            m_executor.shutdown();
+            throw new IOException("Node " + node + " is already on the bus");
+        }
+
+        /* The nodes reach each other from now on, e.g. after one of them was started again */
+        for (LoopbackBus other : m_group.values())
+        {
+            if (other != this)
+            {
+                other.post(() -> other.m_handler.nodeUp(node));
+                post(() -> handler.nodeUp(other.m_node));
+            }
+        }
+    }
+
+    @Override
+    public void setNodes(Map<String, String> nodes)
+    {
+        /* Every node of the process is reachable, there are no addresses */
+    }
+
+    @Override
+    public void send(String node, String line)
+    {
+        LoopbackBus target = m_group.get(node);
+
+        if (target != null)
+        {
+            target.post(() -> target.m_handler.receive(m_node, line));
+        }
+
+        /* The node is not on the bus, the line is lost */
+        else
+        {
+            post(() -> m_handler.nodeDown(node));
+        }
+    }
+
+    private void post(Runnable task)
+    {
+        try
+        {
+            m_executor.execute(task);
+        } catch (RejectedExecutionException e)
+        {
+            /* The node has shut down meanwhile, the line is dropped as it would be on a network */
+        }
+    }
+
+    @Override
+    public void shutdown()
+    {
+        if (m_group.remove(m_node, this))
+        {
+            m_executor.shutdown();
+
+            for (LoopbackBus other : m_group.values())
+            {
+                other.post(() -> other.m_handler.nodeDown(m_node));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+package io.github.harha.ircd.server;
+
+import java.util.Arrays;
+
+public final class Members
+{
+
+    public static final byte    MODE_OP    = 0x01;
+    public static final byte    MODE_VOICE = 0x02;
+
+    public static final Members EMPTY      = new Members(new int[0], new byte[0]);
+
+    /* Immutable, sorted client ids with the channel mode bits of each member at the same index */
+    private final int[]         m_ids;
+    private final byte[]        m_modes;
+
+    private Members(int[] ids, byte[] modes)
+    {
+        m_ids = ids;
+        m_modes = modes;
+    }
+
+    public Members with(int id, byte mode)
+    {
+        int i = Arrays.binarySearch(m_ids, id);
+
+        if (i >= 0)
+        {
+            byte[] modes = m_modes.clone();
+            modes[i] = mode;
+
+            return new Members(m_ids, modes);
+        }
+
+        i = -i - 1;
+
+        int[] ids = new int[m_ids.length + 1];
+        byte[] modes = new byte[m_ids.length + 1];
+        System.arraycopy(m_ids, 0, ids, 0, i);
+        System.arraycopy(m_modes, 0, modes, 0, i);
+        ids[i] = id;
+        modes[i] = mode;
+        System.arraycopy(m_ids, i, ids, i + 1, m_ids.length - i);
+        System.arraycopy(m_modes, i, modes, i + 1, m_ids.length - i);
+
+        return new Members(ids, modes);
+    }
+
+    /* Adds many members in one merge, e.g. a line of a burst, the ids must not be members yet */
+    public Members withAll(int[] ids, byte[] modes)
+    {
+        if (ids.length == 0)
+        {
+            return this;
+        }
+
+        long[] added = new long[ids.length];
+
+        for (int i = 0; i < ids.length; i++)
+        {
+            added[i] = ((long) ids[i] << 8) | (modes[i] & 0xff);
+        }
+
+        Arrays.sort(added);
+
+        int[] result_ids = new int[m_ids.length + added.length];
+        byte[] result_modes = new byte[m_ids.length + added.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+
+        while (i < m_ids.length || j < added.length)
+        {
+            if (j >= added.length || (i < m_ids.length && m_ids[i] < (int) (added[j] >> 8)))
+            {
+                result_ids[k] = m_ids[i];
+                result_modes[k++] = m_modes[i++];
+            }
+            else
+            {
+                result_ids[k] = (int) (added[j] >> 8);
+                result_modes[k++] = (byte) added[j++];
+            }
+        }
+
+        return new Members(result_ids, result_modes);
+    }
+
+    /* The same members with the given mode bits cleared, e.g. when a channel loses a timestamp collision */
+    public Members withoutModes(byte mask)
+    {
+        byte[] modes = m_modes.clone();
+
+        for (int i = 0; i < modes.length; i++)
+        {
+            modes[i] &= ~mask;
+        }
+
+        return new Members(m_ids, modes);
+    }
+
+    public Members without(int id)
+    {
+        int i = Arrays.binarySearch(m_ids, id);
+
+        if (i < 0)
+        {
+            return this;
+        }
+
+        if (m_ids.length == 1)
+        {
+            return EMPTY;
+        }
+
+        int[] ids = new int[m_ids.length - 1];
+        byte[] modes = new byte[m_ids.length - 1];
+        System.arraycopy(m_ids, 0, ids, 0, i);
+        System.arraycopy(m_modes, 0, modes, 0, i);
+        System.arraycopy(m_ids, i + 1, ids, i, m_ids.length - i - 1);
+        System.arraycopy(m_modes, i + 1, modes, i, m_ids.length - i - 1);
+
+        return new Members(ids, modes);
+    }
+
+    public boolean contains(int id)
+    {
+        return Arrays.binarySearch(m_ids, id) >= 0;
+    }
+
+    public int size()
+    {
+        return m_ids.length;
+    }
+
+    public boolean isEmpty()
+    {
+        return m_ids.length == 0;
+    }
+
+    public int getId(int index)
+    {
+        return m_ids[index];
+    }
+
+    public byte getMode(int index)
+    {
+        return m_modes[index];
+    }
+
+    public byte getModeOf(int id)
+    {
+        int i = Arrays.binarySearch(m_ids, id);
+
+        return i >= 0 ? m_modes[i] : 0;
+    }
+
+    public static String getPrefix(byte mode)
+    {
+        if ((mode & MODE_OP) != 0)
+        {
+            return "@";
+        }
+
+        if ((mode & MODE_VOICE) != 0)
+        {
+            return "+";
+        }
+
+        return "";
+    }
+
+}
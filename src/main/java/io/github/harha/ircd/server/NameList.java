@@ -0,0 +1,257 @@
+package io.github.harha.ircd.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class NameList
+{
+
+    /*
+     * The names of a channel as they go out in RPL_NAMREPLY, split into chunks that each fit one reply. Every
+     * member knows its chunk, so a join, part, quit or rename only rewrites that one chunk and the rest of the
+     * rendering stays as is. The full rendering is only rebuilt after an invalidate.
+     */
+    private int                 m_budget;
+    private List<Chunk>         m_chunks;
+    private List<String>        m_texts;
+    private List<String>        m_view;
+    private Map<Integer, Entry> m_entries;
+
+    /* Budget is the number of bytes left for the names in a single RPL_NAMREPLY line */
+    public NameList(int budget)
+    {
+        m_budget = budget;
+        m_chunks = null;
+        m_texts = null;
+        m_view = null;
+        m_entries = null;
+    }
+
+    public boolean isRendered()
+    {
+        return m_chunks != null;
+    }
+
+    /* Starts a new, empty rendering, the names are then added one by one */
+    public void reset()
+    {
+        m_chunks = new ArrayList<Chunk>();
+        m_texts = new ArrayList<String>();
+        m_view = Collections.unmodifiableList(m_texts);
+        m_entries = new HashMap<Integer, Entry>();
+    }
+
+    /* Drops the rendering, it is rebuilt on the next NAMES */
+    public void invalidate()
+    {
+        m_chunks = null;
+        m_texts = null;
+        m_view = null;
+        m_entries = null;
+    }
+
+    /* A join only touches the last chunk, the rest of the rendered list stays as is */
+    public void add(int id, String name)
+    {
+        if (m_chunks == null || m_entries.containsKey(id))
+        {
+            return;
+        }
+
+        int bytes = utf8Length(name);
+        int last = m_chunks.size() - 1;
+        Chunk chunk;
+
+        if (last >= 0 && m_chunks.get(last).m_bytes + 1 + bytes <= m_budget)
+        {
+            chunk = m_chunks.get(last);
+            chunk.m_bytes += 1 + bytes;
+            m_texts.set(last, m_texts.get(last) + " " + name);
+        }
+        else
+        {
+            chunk = new Chunk(bytes);
+            m_chunks.add(chunk);
+            m_texts.add(name);
+        }
+
+        chunk.m_count++;
+        m_entries.put(id, new Entry(chunk, name));
+    }
+
+    /* A part or a quit takes the name out of its chunk, a chunk that is left empty is dropped */
+    public void remove(int id)
+    {
+        if (m_chunks == null)
+        {
+            return;
+        }
+
+        Entry entry = m_entries.remove(id);
+
+        if (entry == null)
+        {
+            return;
+        }
+
+        int index = m_chunks.indexOf(entry.m_chunk);
+        String text = m_texts.get(index);
+        int at = indexOfName(text, entry.m_name);
+
+        /* Never happens while the entries and the texts agree, the rendering is rebuilt if they do not */
+        if (at < 0)
+        {
+            invalidate();
+            return;
+        }
+
+        if (--entry.m_chunk.m_count == 0)
+        {
+            m_chunks.remove(index);
+            m_texts.remove(index);
+            return;
+        }
+
+        entry.m_chunk.m_bytes -= 1 + utf8Length(entry.m_name);
+
+        if (at == 0)
+        {
+            m_texts.set(index, text.substring(entry.m_name.length() + 1));
+        }
+        else
+        {
+            m_texts.set(index, text.substring(0, at - 1) + text.substring(at + entry.m_name.length()));
+        }
+    }
+
+    /* A rename or a change of modes replaces the name where it is, unless it no longer fits its chunk */
+    public void rename(int id, String name)
+    {
+        if (m_chunks == null)
+        {
+            return;
+        }
+
+        Entry entry = m_entries.get(id);
+
+        if (entry == null)
+        {
+            return;
+        }
+
+        int index = m_chunks.indexOf(entry.m_chunk);
+        String text = m_texts.get(index);
+        int at = indexOfName(text, entry.m_name);
+        int bytes = entry.m_chunk.m_bytes - utf8Length(entry.m_name) + utf8Length(name);
+
+        if (at < 0)
+        {
+            invalidate();
+            return;
+        }
+
+        if (bytes > m_budget)
+        {
+            remove(id);
+            add(id, name);
+            return;
+        }
+
+        m_texts.set(index, text.substring(0, at) + name + text.substring(at + entry.m_name.length()));
+        entry.m_chunk.m_bytes = bytes;
+        entry.m_name = name;
+    }
+
+    /* Space separated names, each chunk fits a RPL_NAMREPLY */
+    public List<String> getChunks()
+    {
+        return m_view != null ? m_view : Collections.<String>emptyList();
+    }
+
+    /* Where the name starts in the chunk, it has to be a whole name and not a part of a longer one */
+    private static int indexOfName(String text, String name)
+    {
+        int start = 0;
+
+        while (start < text.length())
+        {
+            int end = text.indexOf(' ', start);
+
+            if (end < 0)
+            {
+                end = text.length();
+            }
+
+            if (end - start == name.length() && text.regionMatches(start, name, 0, name.length()))
+            {
+                return start;
+            }
+
+            start = end + 1;
+        }
+
+        return -1;
+    }
+
+    private static int utf8Length(String s)
+    {
+        int result = 0;
+
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+
+            if (c < 0x80)
+            {
+                result += 1;
+            }
+            else if (c < 0x800)
+            {
+                result += 2;
+            }
+            else if (Character.isHighSurrogate(c))
+            {
+                result += 4;
+                i++;
+            }
+            else
+            {
+                result += 3;
+            }
+        }
+
+        return result;
+    }
+
+    private static final class Chunk
+    {
+
+        private int m_bytes;
+        private int m_count;
+
+        private Chunk(int bytes)
+        {
+            m_bytes = bytes;
+            m_count = 0;
+        }
+
+    }
+
+    private static final class Entry
+    {
+
+        private final Chunk m_chunk;
+        private String      m_name;
+
+        private Entry(Chunk chunk, String name)
+        {
+            m_chunk = chunk;
+            m_name = name;
+        }
+
+    }
+
+}
@@ -0,0 +1,15 @@
+package io.github.harha.ircd.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+public interface Resolver
+{
+
+    /* Reverse lookup, returns null if the address has no name */
+    public String lookupHost(InetAddress address) throws IOException;
+
+    /* Forward lookup of all addresses the name points to */
+    public InetAddress[] lookupAddresses(String host) throws IOException;
+
+}
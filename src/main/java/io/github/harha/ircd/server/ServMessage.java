@@ -1,41 +1,106 @@
 package io.github.harha.ircd.server;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class ServMessage
 {
 
-    private String       m_prefix;
-    private String       m_command;
-    private List<String> m_parameters;
+    private String          m_prefix;
+    private byte[]          m_prefixBytes;
+    private String          m_command;
+    private List<String>    m_parameters;
+    private volatile String m_string;
+    private volatile byte[] m_bytes;
 
     public ServMessage(String prefix, String command, String... parameters)
     {
-        m_prefix = prefix;
-        m_command = command;
-        m_parameters = new ArrayList<String>(Arrays.asList(parameters));
+        this(prefix, null, command, parameters);
     }
 
     public ServMessage(IRCServer server, String command, String... parameters)
     {
-        m_prefix = server.getHost().getHostName();
-        m_command = command;
-        m_parameters = new ArrayList<String>(Arrays.asList(parameters));
+        this(server.getPrefix(), server.getPrefixBytes(), command, parameters);
     }
 
     public ServMessage(Connection connection, String command, String... parameters)
     {
-        m_prefix = connection.getNick() + "!" + connection.getUser().getUserName() + "@" + connection.getHost().getHostName();
+        this(connection.getPrefix(), connection.getPrefixBytes(), command, parameters);
+    }
+
+    private ServMessage(String prefix, byte[] prefixBytes, String command, String... parameters)
+    {
+        m_prefix = prefix;
+        m_prefixBytes = prefixBytes;
         m_command = command;
-        m_parameters = new ArrayList<String>(Arrays.asList(parameters));
+        m_parameters = Collections.unmodifiableList(Arrays.asList(parameters));
     }
 
     @Override
     public String toString()
     {
-        return ((m_prefix.isEmpty() ? "" : ":") + m_prefix + " " + m_command + " " + getParametersAsString()).trim() + "\r\n";
+        /* Serialized once, the message is immutable after construction */
+        String result = m_string;
+
+        if (result == null)
+        {
+            StringBuilder sb = new StringBuilder(64);
+
+            if (!m_prefix.isEmpty())
+            {
+                sb.append(':').append(m_prefix).append(' ');
+            }
+
+            sb.append(m_command);
+
+            String parameters = getParametersAsString();
+
+            if (!parameters.isEmpty())
+            {
+                sb.append(' ').append(parameters);
+            }
+
+            m_string = result = sb.append("\r\n").toString();
+        }
+
+        return result;
+    }
+
+    public ByteBuffer getBuffer()
+    {
+        /* Every recipient gets its own read-only view of the same encoded bytes */
+        byte[] bytes = m_bytes;
+
+        if (bytes == null)
+        {
+            if (m_prefixBytes != null && m_string == null)
+            {
+                /* The cached prefix of the source is copied in as is, only the rest is encoded */
+                StringBuilder sb = new StringBuilder(64).append(' ').append(m_command);
+                String parameters = getParametersAsString();
+
+                if (!parameters.isEmpty())
+                {
+                    sb.append(' ').append(parameters);
+                }
+
+                byte[] rest = sb.append("\r\n").toString().getBytes(StandardCharsets.UTF_8);
+                bytes = new byte[1 + m_prefixBytes.length + rest.length];
+                bytes[0] = ':';
+                System.arraycopy(m_prefixBytes, 0, bytes, 1, m_prefixBytes.length);
+                System.arraycopy(rest, 0, bytes, 1 + m_prefixBytes.length, rest.length);
+                m_bytes = bytes;
+            }
+            else
+            {
+                m_bytes = bytes = toString().getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
     }
 
     public String getPrefix()
@@ -55,14 +120,27 @@ public class ServMessage
 
     public String getParametersAsString()
     {
-        String parameters = "";
+        StringBuilder sb = new StringBuilder(64);
 
-        for (String p : m_parameters)
+        for (int i = 0; i < m_parameters.size(); i++)
         {
-            parameters += (p.contains(" ") && !p.startsWith(":") ? ":" : "") + p + " ";
+            String p = m_parameters.get(i);
+
+            if (i > 0)
+            {
+                sb.append(' ');
+            }
+
+            /* The last parameter is sent as trailing if it could not be parsed back as a middle one */
+            if (i == m_parameters.size() - 1 && (p.isEmpty() || p.indexOf(' ') >= 0 || p.charAt(0) == ':'))
+            {
+                sb.append(':');
+            }
+
+            sb.append(p);
         }
 
-        return parameters.trim();
+        return sb.toString();
     }
 
 }
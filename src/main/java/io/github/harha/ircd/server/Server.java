@@ -1,61 +1,703 @@
 package io.github.harha.ircd.server;
 
+import io.github.harha.ircd.util.CaseMapping;
+import io.github.harha.ircd.util.Consts;
+import io.github.harha.ircd.util.Log;
 import io.github.harha.ircd.util.Macros;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 public class Server
 {
 
-    private Connection m_connection;
+    private static final Log s_traffic   = Log.get("traffic");
 
+    /* A burst is written in chunks of about this many bytes, not line by line */
+    private static final int BURST_CHUNK = 32768;
+
+    private IRCServer        m_ircserver;
+    private Connection       m_connection;
+    private Server           m_uplink;
+    private Server           m_link;
+    private ServerInfo       m_info;
+    private String           m_sid;
+    private boolean          m_bursting;
+    private long             m_burstStart;
+    private int              m_burstUsers;
+    private int              m_burstChannels;
+
+    /* A server linked to this one, the peer of the connection */
     public Server(Connection connection)
     {
+        m_ircserver = connection.getIRCServer();
         m_connection = connection;
+        m_uplink = null;
+        m_link = this;
+        m_info = connection.getServer();
+        m_sid = connection.getSid();
+        m_bursting = true;
+        m_burstStart = System.nanoTime();
+        m_burstUsers = 0;
+        m_burstChannels = 0;
+    }
+
+    /* A server behind a link, introduced by SID, it is reached through the connection of the link */
+    public Server(Server uplink, ServerInfo info, String sid)
+    {
+        m_ircserver = uplink.m_ircserver;
+        m_connection = uplink.m_connection;
+        m_uplink = uplink;
+        m_link = uplink.m_link;
+        m_info = info;
+        m_sid = sid;
+        m_bursting = false;
+        m_burstStart = 0;
+        m_burstUsers = 0;
+        m_burstChannels = 0;
     }
 
+    @Override
+    public String toString()
+    {
+        return String.format("Server[%s, %s, %d]", m_info.getName(), m_sid, m_info.getHopCount());
+    }
+
+    /*
+     * The link protocol. Users are named by their UID and servers by their SID, so a nick change never races
+     * with the lines that follow it. Everything that changes the state of the network is applied here and then
+     * relayed to the other links, with the hop count raised where the line carries one.
+     */
     public void updateIdentifiedServer()
     {
-        /* Read input from client */
-        List<String> input_data = new ArrayList<String>();
+        /* A link has no flood control, but it runs in turns like a client so its burst cannot hold up the loop */
+        CliMessage message;
 
-        try
+        while ((message = m_connection.peekInput()) != null)
         {
-            String line = null;
-            while (m_connection.getInput().ready() && (line = m_connection.getInput().readLine()) != null && !line.isEmpty())
+            if (!m_connection.admit(message, 0))
+            {
+                break;
+            }
+
+            m_connection.pollInput();
+
+            /* Log the input, it is only formatted if traffic logging is enabled */
+            s_traffic.debug("Input from %s: %s", m_connection, message.getMessage());
+
+            switch (message.getCommand())
+            {
+                case "PING":
+                    send(new ServMessage(m_ircserver, "PONG", m_ircserver.getHostName(), message.getParameter(0)));
+                    break;
+                case "PONG":
+                    /* Any input counts as activity, the ping timer is rescheduled from it */
+                    break;
+                case "ERROR":
+                    Macros.ERR("Link with %s reported an error: %s", getName(), message.getParameter(0));
+                    break;
+                case "SID":
+                    if (message.getParameterCount() >= 4)
+                    {
+                        introduceServer(message);
+                    }
+                    break;
+                case "UID":
+                    if (message.getParameterCount() >= 9)
+                    {
+                        introduceUser(message);
+                    }
+                    break;
+                case "NICK":
+                    if (message.getParameterCount() >= 2)
+                    {
+                        changeNick(message);
+                    }
+                    break;
+                case "QUIT":
+                    quit(message);
+                    break;
+                case "KILL":
+                    if (message.getParameterCount() >= 1)
+                    {
+                        kill(message);
+                    }
+                    break;
+                case "SJOIN":
+                    if (message.getParameterCount() >= 4)
+                    {
+                        sjoin(message);
+                    }
+                    break;
+                case "JOIN":
+                    if (message.getParameterCount() >= 2)
+                    {
+                        join(message);
+                    }
+                    break;
+                case "PART":
+                    if (message.getParameterCount() >= 1)
+                    {
+                        part(message);
+                    }
+                    break;
+                case "TOPIC":
+                    if (message.getParameterCount() >= 2)
+                    {
+                        topic(message);
+                    }
+                    break;
+                case "PRIVMSG":
+                case "NOTICE":
+                    if (message.getParameterCount() >= 2)
+                    {
+                        privmsg(message);
+                    }
+                    break;
+                case "SQUIT":
+                    if (message.getParameterCount() >= 1)
+                    {
+                        squit(message);
+                    }
+                    break;
+                case "EOB":
+                    endOfBurst(message);
+                    break;
+            }
+
+            if (m_connection.getState() != ConnState.CONNECTED_AS_SERVER)
             {
-                input_data.add(line);
+                return;
             }
-        } catch (IOException e)
+        }
+    }
+
+    private void introduceServer(CliMessage message)
+    {
+        Server uplink = m_ircserver.getServerBySid(message.getPrefix());
+        String name = message.getParameter(0);
+        String sid = message.getParameter(2).toUpperCase();
+
+        /* The same server twice means the network has a loop, this link is the one that closes it */
+        if (m_ircserver.getServerBySid(sid) != null || m_ircserver.getServer(name) != null || sid.equals(m_ircserver.getSid()) || name.equalsIgnoreCase(m_ircserver.getHostName()))
         {
-            e.printStackTrace();
+            m_connection.disconnect("Server " + name + " (" + sid + ") already exists");
+            return;
         }
 
-        /* Return if input data was empty */
-        if (input_data.isEmpty())
+        if (uplink == null || uplink.getLink() != this)
         {
+            Macros.ERR("Link with %s introduced %s behind an unknown server %s.", getName(), name, message.getPrefix());
             return;
         }
 
-        /* Log the input to console */
-        Macros.LOG("Input from %s: %s", m_connection, input_data);
+        Server server = new Server(uplink, new ServerInfo(name, message.getParameter(1), message.getParameter(3)), sid);
+        m_ircserver.addRemoteServer(server);
+        m_ircserver.sendToLinks(this, new ServMessage(uplink.getSid(), "SID", name, Integer.toString(server.getHops() + 1), sid, server.getInfo().getInfo()));
+    }
+
+    /*
+     * A new user, or one of a burst. A nick that is taken is a collision, the older nick wins and a tie is lost
+     * by both. The other end decides the same way with the same timestamps, so both agree on who is left.
+     */
+    private void introduceUser(CliMessage message)
+    {
+        Server server = m_ircserver.getServerBySid(message.getPrefix());
+        List<String> params = message.getParameters();
+        String nick = params.get(0);
+        long ts = parseTS(params.get(2));
+        String uid = params.get(7);
 
-        /* Parse input and handle it appropriately */
-        for (String l : input_data)
+        if (server == null || server.getLink() != this || m_ircserver.getClientByUid(uid) != null)
         {
-            CliMessage message = new CliMessage(l);
+            return;
+        }
 
-            switch (message.getCommand())
+        if (!resolveCollision(m_ircserver.getClient(nick), uid, ts))
+        {
+            return;
+        }
+
+        Connection connection = new Connection(m_ircserver, server, nick, new UserInfo(params.get(4), params.get(5), server.getName(), params.get(8)), params.get(6));
+        Client client = new Client(connection);
+        client.setUid(uid);
+        client.setNickTS(ts);
+        client.setServer(server);
+        connection.setParentClient(client);
+
+        if (!m_ircserver.addRemoteClient(client))
+        {
+            send(new ServMessage(m_ircserver.getSid(), "KILL", uid, "Nick collision"));
+            return;
+        }
+
+        if (m_bursting)
+        {
+            m_burstUsers++;
+        }
+
+        m_ircserver.sendToLinks(this, m_ircserver.getUidMessage(client));
+    }
+
+    /* Returns whether the incoming uid may have the nick, the holder that loses is removed here */
+    private boolean resolveCollision(Client holder, String uid, long ts)
+    {
+        if (holder == null || holder.getUid().equals(uid))
+        {
+            return true;
+        }
+
+        /* The incoming one is older or the same age, the current holder loses */
+        if (ts <= holder.getNickTS())
+        {
+            m_ircserver.killClient(holder, "Nick collision");
+        }
+
+        /* The current holder is older or the same age, the incoming one loses */
+        if (ts >= holder.getNickTS())
+        {
+            m_ircserver.sendToLinks(null, new ServMessage(m_ircserver.getSid(), "KILL", uid, "Nick collision"));
+            return false;
+        }
+
+        return true;
+    }
+
+    private void changeNick(CliMessage message)
+    {
+        Client client = getRemoteClient(message.getPrefix());
+
+        if (client == null)
+        {
+            return;
+        }
+
+        String nick = message.getParameter(0);
+        String old = client.getConnection().getNick();
+        long ts = parseTS(message.getParameter(1));
+
+        /* A change of case is still the same nick under the casemapping of the network, it is not a collision */
+        if (!CaseMapping.getDefault().equalsIgnoreCase(old, nick))
+        {
+            Client holder = m_ircserver.getClient(nick);
+
+            if (holder != null && holder != client && !resolveCollision(holder, client.getUid(), ts))
+            {
+                m_ircserver.removeRemoteClient(client, "Nick collision");
+                return;
+            }
+
+            Client previous = m_ircserver.getClients().putIfAbsent(nick, client);
+
+            if (previous != null && previous != client)
+            {
+                m_ircserver.sendToLinks(null, new ServMessage(m_ircserver.getSid(), "KILL", client.getUid(), "Nick collision"));
+                m_ircserver.removeRemoteClient(client, "Nick collision");
+                return;
+            }
+
+            m_ircserver.getClients().remove(old, client);
+        }
+
+        client.setNickTS(ts);
+        client.rename(nick);
+        relay(message);
+    }
+
+    private void quit(CliMessage message)
+    {
+        Client client = getRemoteClient(message.getPrefix());
+
+        if (client != null)
+        {
+            m_ircserver.removeRemoteClient(client, message.getParameter(0));
+            relay(message);
+        }
+    }
+
+    private void kill(CliMessage message)
+    {
+        Client client = m_ircserver.getClientByUid(message.getParameter(0));
+
+        if (client == null)
+        {
+            return;
+        }
+
+        /* A local user is disconnected, its QUIT goes out to every link as usual */
+        if (client.isLocal())
+        {
+            m_ircserver.killClient(client, message.getParameter(1));
+            return;
+        }
+
+        m_ircserver.removeRemoteClient(client, "Killed (" + message.getParameter(1) + ")");
+        relay(message);
+    }
+
+    /* Many members per line, each prefixed with the modes they have on the channel */
+    private void sjoin(CliMessage message)
+    {
+        String[] tokens = message.getParameter(3).split(" ");
+        List<Client> clients = new ArrayList<Client>(tokens.length);
+        byte[] modes = new byte[tokens.length];
+
+        for (String token : tokens)
+        {
+            byte mode = 0;
+            int i = 0;
+
+            for (; i < token.length() && (token.charAt(i) == '@' || token.charAt(i) == '+'); i++)
+            {
+                mode |= token.charAt(i) == '@' ? Members.MODE_OP : Members.MODE_VOICE;
+            }
+
+            Client client = getRemoteClient(token.substring(i));
+
+            if (client != null)
+            {
+                modes[clients.size()] = mode;
+                clients.add(client);
+            }
+        }
+
+        if (m_bursting)
+        {
+            m_burstChannels++;
+        }
+
+        serverJoin(message.getParameter(1), parseTS(message.getParameter(0)), clients, modes);
+        relay(message);
+    }
+
+    private void join(CliMessage message)
+    {
+        Client client = getRemoteClient(message.getPrefix());
+
+        if (client != null)
+        {
+            List<Client> clients = new ArrayList<Client>(1);
+            clients.add(client);
+            serverJoin(message.getParameter(1), parseTS(message.getParameter(0)), clients, new byte[1]);
+            relay(message);
+        }
+    }
+
+    private void serverJoin(String name, long ts, List<Client> clients, byte[] modes)
+    {
+        if (!name.startsWith("#") || clients.isEmpty())
+        {
+            return;
+        }
+
+        Channel channel = m_ircserver.getChannel(name);
+
+        if (channel == null)
+        {
+            channel = m_ircserver.createChannel(name);
+        }
+
+        channel.serverJoin(clients.toArray(new Client[clients.size()]), modes, ts);
+    }
+
+    private void part(CliMessage message)
+    {
+        Client client = getRemoteClient(message.getPrefix());
+
+        if (client == null)
+        {
+            return;
+        }
+
+        for (String name : message.getParameterAsList(0))
+        {
+            Channel channel = m_ircserver.getChannel(name);
+
+            if (channel != null)
+            {
+                channel.clientPart(client, message.getParameter(1));
+            }
+        }
+
+        relay(message);
+    }
+
+    private void topic(CliMessage message)
+    {
+        Channel channel = m_ircserver.getChannel(message.getParameter(0));
+
+        if (channel != null)
+        {
+            /* Set by a user or, in a burst, by a server */
+            channel.setTopic(getRemoteClient(message.getPrefix()), message.getParameter(1));
+            relay(message);
+        }
+    }
+
+    /*
+     * A message of a user behind this link, to a channel or to a user. It is not relayed as it is, the channel
+     * or the user passes it on only towards the links that lead to the recipients.
+     */
+    private void privmsg(CliMessage message)
+    {
+        Client client = getRemoteClient(message.getPrefix());
+        String target = message.getParameter(0);
+
+        if (client == null)
+        {
+            return;
+        }
+
+        if (target.startsWith("#"))
+        {
+            Channel channel = m_ircserver.getChannel(target);
+
+            if (channel != null)
             {
+                channel.clientMsg(client, message.getCommand(), message.getParameter(1));
+            }
+        }
+        else
+        {
+            Client recipient = m_ircserver.getClientByUid(target);
+
+            if (recipient != null)
+            {
+                recipient.privateMsg(client, message.getCommand(), message.getParameter(1));
             }
         }
     }
 
+    private void squit(CliMessage message)
+    {
+        Server server = m_ircserver.getServerBySid(message.getParameter(0).toUpperCase());
+
+        /* Only a server behind this link can be split off by it */
+        if (server == null || server == this || server.getLink() != this)
+        {
+            return;
+        }
+
+        m_ircserver.removeServer(server, server.getUplink().getName() + " " + server.getName());
+        relay(message);
+    }
+
+    private void endOfBurst(CliMessage message)
+    {
+        Server server = m_ircserver.getServerBySid(message.getPrefix());
+
+        if (server == this && m_bursting)
+        {
+            m_bursting = false;
+            Macros.LOG("Burst from %s complete, %d users and %d channel lines in %d ms.", getName(), m_burstUsers, m_burstChannels, (System.nanoTime() - m_burstStart) / 1000000);
+        }
+
+        if (server != null && server.getLink() == this)
+        {
+            relay(message);
+        }
+    }
+
+    /*
+     * The state of this side of the network, sent once when the link is up: the servers in the order they are
+     * reached, the users, then every channel with as many members per line as fit, and EOB. Lines are written
+     * in big chunks, a burst of a large network is one buffer per chunk and not one per line.
+     */
+    public void sendBurst()
+    {
+        long time = System.nanoTime();
+        String sid = m_ircserver.getSid();
+        StringBuilder sb = new StringBuilder(BURST_CHUNK + Consts.LINELEN);
+        List<Server> servers = new ArrayList<Server>(m_ircserver.getServers().values());
+        servers.sort(Comparator.comparingInt(Server::getHops));
+        int users = 0;
+        int channels = 0;
+
+        for (Server server : servers)
+        {
+            if (server.getLink() != this)
+            {
+                String uplink = server.m_uplink != null ? server.m_uplink.getSid() : sid;
+                append(sb, new ServMessage(uplink, "SID", server.getName(), Integer.toString(server.getHops() + 1), server.getSid(), server.getInfo().getInfo()).toString());
+            }
+        }
+
+        for (Client client : m_ircserver.getUidTable().values())
+        {
+            if (client.isLocal() || client.getServer().getLink() != this)
+            {
+                append(sb, m_ircserver.getUidMessage(client).toString());
+                users++;
+            }
+        }
+
+        for (Channel channel : m_ircserver.getChannels().values())
+        {
+            if (appendChannel(sb, sid, channel))
+            {
+                channels++;
+            }
+        }
+
+        append(sb, ":" + sid + " EOB\r\n");
+        flushBurst(sb);
+
+        Macros.LOG("Burst to %s sent, %d users and %d channels in %d ms.", getName(), users, channels, (System.nanoTime() - time) / 1000000);
+    }
+
+    private boolean appendChannel(StringBuilder sb, String sid, Channel channel)
+    {
+        Members members = channel.getMembers();
+        String header = ":" + sid + " SJOIN " + channel.getTS() + " " + channel.getName() + " + :";
+        StringBuilder line = new StringBuilder(Consts.LINELEN).append(header);
+        boolean sent = false;
+
+        for (int i = 0; i < members.size(); i++)
+        {
+            Client client = m_ircserver.getClientById(members.getId(i));
+
+            if (client == null || client.getUid().isEmpty() || (!client.isLocal() && client.getServer().getLink() == this))
+            {
+                continue;
+            }
+
+            String token = Members.getPrefix(members.getMode(i)) + client.getUid();
+
+            /* The line is full, start the next one */
+            if (line.length() > header.length() && line.length() + 1 + token.length() + 2 > Consts.LINELEN)
+            {
+                append(sb, line.append("\r\n").toString());
+                line.setLength(0);
+                line.append(header);
+            }
+
+            if (line.length() > header.length())
+            {
+                line.append(' ');
+            }
+
+            line.append(token);
+        }
+
+        if (line.length() > header.length())
+        {
+            append(sb, line.append("\r\n").toString());
+            sent = true;
+        }
+
+        if (sent && !channel.getTopic().isEmpty())
+        {
+            append(sb, new ServMessage(sid, "TOPIC", channel.getName(), channel.getTopic()).toString());
+        }
+
+        return sent;
+    }
+
+    private void append(StringBuilder sb, String line)
+    {
+        sb.append(line);
+
+        if (sb.length() >= BURST_CHUNK)
+        {
+            flushBurst(sb);
+        }
+    }
+
+    private void flushBurst(StringBuilder sb)
+    {
+        m_connection.sendBufferAndFlush(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        sb.setLength(0);
+    }
+
+    /*
+     * Lines to a link always go through the mailbox of its loop, also from that loop itself, so the lines from
+     * every thread reach the peer in the order they were sent, e.g. a UID before the JOIN of the same user.
+     */
+    public void send(ServMessage message)
+    {
+        Connection connection = getLink().m_connection;
+
+        connection.getEventLoop().execute(() -> connection.sendMsgAndFlush(message));
+    }
+
+    /* Passes a line on to the other links as it is */
+    private void relay(CliMessage message)
+    {
+        List<String> params = message.getParameters();
+
+        m_ircserver.sendToLinks(this, new ServMessage(message.getPrefix(), message.getCommand(), params.toArray(new String[params.size()])));
+    }
+
+    /* A user behind this link, anything else named by a line of this link is ignored */
+    private Client getRemoteClient(String uid)
+    {
+        Client client = m_ircserver.getClientByUid(uid);
+
+        return client != null && !client.isLocal() && client.getServer().getLink() == this ? client : null;
+    }
+
+    private static long parseTS(String ts)
+    {
+        try
+        {
+            return Long.parseLong(ts);
+        } catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    /*
+     * The next hop towards this server, itself for a server linked to this one. The servers form a tree, there
+     * is only one route to each, so it is fixed when the server is introduced and never looked up again.
+     */
+    public Server getLink()
+    {
+        return m_link;
+    }
+
+    public Server getUplink()
+    {
+        return m_uplink;
+    }
+
+    public boolean isLink()
+    {
+        return m_uplink == null;
+    }
+
     public Connection getConnection()
     {
         return m_connection;
     }
 
+    public ServerInfo getInfo()
+    {
+        return m_info;
+    }
+
+    public String getName()
+    {
+        return m_info.getName();
+    }
+
+    public String getSid()
+    {
+        return m_sid;
+    }
+
+    /* Distance from this server, 1 for a server linked to it */
+    public int getHops()
+    {
+        return m_info.getHopCount();
+    }
+
+    public boolean isBursting()
+    {
+        return m_bursting;
+    }
+
 }
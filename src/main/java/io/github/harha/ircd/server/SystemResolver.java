@@ -0,0 +1,24 @@
+package io.github.harha.ircd.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+public class SystemResolver implements Resolver
+{
+
+    @Override
+    public String lookupHost(InetAddress address) throws IOException
+    {
+        /* A fresh object without a cached name, so the lookup really happens */
+        String host = InetAddress.getByAddress(address.getAddress()).getHostName();
+
+        return host.equals(address.getHostAddress()) ? null : host;
+    }
+
+    @Override
+    public InetAddress[] lookupAddresses(String host) throws IOException
+    {
+        return InetAddress.getAllByName(host);
+    }
+
+}
@@ -0,0 +1,362 @@
+package io.github.harha.ircd.server;
+
+import io.github.harha.ircd.util.Macros;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class TcpBus implements ClusterBus
+{
+
+    private static final int   CONNECT_TIMEOUT = 5000;
+    private static final int   RETRY_DELAY     = 2000;
+    private static final int   MAX_QUEUED      = 65536;
+
+    /*
+     * A bus over plain TCP. Every node listens on its own address from [cluster] nodes and keeps one outgoing
+     * connection to each other node, written by a thread of its own from a queue, so a send never blocks the
+     * caller. The first line of a connection names the node and carries the shared password. A node that is
+     * not reachable has its queue dropped and is tried again a moment later. Lines that were lost on the way
+     * count as the node going down: the handler is told and the connection from that node is closed too, so
+     * it learns the same and both ends tell each other what they hold once they reconnect.
+     */
+    private String                        m_password;
+    private String                        m_node;
+    private Handler                       m_handler;
+    private volatile Map<String, String>  m_addresses;
+    private ConcurrentMap<String, Peer>   m_peers;
+    private ConcurrentMap<String, Socket> m_inbound;
+    private ServerSocket                  m_socket;
+    private volatile boolean              m_running;
+
+    public TcpBus(String password)
+    {
+        m_password = password;
+        m_peers = new ConcurrentHashMap<String, Peer>();
+        m_inbound = new ConcurrentHashMap<String, Socket>();
+    }
+
+    @Override
+    public void start(String node, Handler handler) throws IOException
+    {
+        String address = m_addresses != null ? m_addresses.get(node) : null;
+
+        if (address == null)
+        {
+            throw new IOException("Node " + node + " has no address in [cluster] nodes");
+        }
+
+        m_node = node;
+        m_handler = handler;
+        m_socket = new ServerSocket();
+        m_socket.bind(parseAddress(address));
+        m_running = true;
+
+        Thread thread = new Thread(this::accept, "mirage-bus-accept");
+        thread.setDaemon(true);
+        thread.start();
+
+        setNodes(m_addresses);
+    }
+
+    @Override
+    public synchronized void setNodes(Map<String, String> nodes)
+    {
+        m_addresses = nodes;
+
+        if (!m_running)
+        {
+            return;
+        }
+
+        /* A peer whose address changed is started again with the new one */
+        for (Map.Entry<String, Peer> e : m_peers.entrySet())
+        {
+            if (!e.getValue().m_address.equals(nodes.get(e.getKey())))
+            {
+                e.getValue().stop();
+                m_peers.remove(e.getKey(), e.getValue());
+            }
+        }
+
+        for (Map.Entry<String, String> e : nodes.entrySet())
+        {
+            if (!e.getKey().equals(m_node) && !m_peers.containsKey(e.getKey()))
+            {
+                Peer peer = new Peer(e.getKey(), e.getValue());
+                m_peers.put(e.getKey(), peer);
+                peer.start();
+            }
+        }
+    }
+
+    @Override
+    public void send(String node, String line)
+    {
+        Peer peer = m_peers.get(node);
+
+        /* A full queue loses lines, the connection is reset and the node is handled as down */
+        if (peer != null && !peer.m_queue.offer(line))
+        {
+            Macros.ERR("Cluster queue to %s is full, resetting the connection.", node);
+            peer.overflow();
+        }
+    }
+
+    @Override
+    public synchronized void shutdown()
+    {
+        m_running = false;
+
+        for (Peer peer : m_peers.values())
+        {
+            peer.stop();
+        }
+
+        m_peers.clear();
+
+        for (String node : m_inbound.keySet())
+        {
+            closeInbound(node);
+        }
+
+        close(m_socket);
+    }
+
+    private void closeInbound(String node)
+    {
+        Socket socket = m_inbound.remove(node);
+
+        if (socket != null)
+        {
+            close(socket);
+        }
+    }
+
+    private static void close(Closeable socket)
+    {
+        try
+        {
+            socket.close();
+        } catch (IOException e)
+        {
+            /* Closing anyway */
+        }
+    }
+
+    private void accept()
+    {
+        while (m_running)
+        {
+            try
+            {
+                Socket socket = m_socket.accept();
+                Thread thread = new Thread(() -> read(socket), "mirage-bus-in");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e)
+            {
+                if (m_running)
+                {
+                    Macros.ERR("Cluster bus accept failed: %s", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /* The lines of one other node, in order, until it goes away */
+    private void read(Socket socket)
+    {
+        String node = null;
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)))
+        {
+            socket.setTcpNoDelay(true);
+
+            /* NODE <name> <password> */
+            String[] hello = String.valueOf(in.readLine()).split(" ");
+
+            if (hello.length != 3 || !hello[0].equals("NODE") || !hello[2].equals(m_password) || !m_addresses.containsKey(hello[1]))
+            {
+                Macros.ERR("Cluster bus refused %s, unknown node or a wrong password.", socket.getRemoteSocketAddress());
+                socket.close();
+                return;
+            }
+
+            node = hello[1];
+            Macros.LOG("Cluster node %s connected from %s.", node, socket.getRemoteSocketAddress());
+
+            /* A node that connects again replaces its old connection */
+            Socket old = m_inbound.put(node, socket);
+
+            if (old != null)
+            {
+                close(old);
+            }
+
+            for (String line; (line = in.readLine()) != null;)
+            {
+                m_handler.receive(node, line);
+            }
+        } catch (IOException e)
+        {
+            /* Handled as the node going away */
+        }
+
+        /* Closed here on purpose when it was replaced or the lines to the node were lost, that was handled there */
+        if (node != null && m_running && m_inbound.remove(node, socket))
+        {
+            Macros.LOG("Cluster node %s disconnected.", node);
+            m_handler.nodeDown(node);
+        }
+    }
+
+    private static InetSocketAddress parseAddress(String address)
+    {
+        int colon = address.lastIndexOf(':');
+
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /* The outgoing connection to one other node */
+    private class Peer implements Runnable
+    {
+
+        private String                m_name;
+        private String                m_address;
+        private BlockingQueue<String> m_queue;
+        private volatile boolean      m_stopped;
+        private volatile boolean      m_overflow;
+        private volatile Socket       m_socket;
+        private boolean               m_up;
+        private Thread                m_thread;
+
+        public Peer(String name, String address)
+        {
+            m_name = name;
+            m_address = address;
+            m_queue = new LinkedBlockingQueue<String>(MAX_QUEUED);
+            m_stopped = false;
+            m_thread = new Thread(this, "mirage-bus-" + name);
+            m_thread.setDaemon(true);
+        }
+
+        public void start()
+        {
+            m_thread.start();
+        }
+
+        public void stop()
+        {
+            m_stopped = true;
+            m_thread.interrupt();
+        }
+
+        /* Makes the writer drop the connection, what is queued is lost with it */
+        public void overflow()
+        {
+            m_overflow = true;
+            Socket socket = m_socket;
+
+            if (socket != null)
+            {
+                close(socket);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            while (!m_stopped)
+            {
+                try (Socket socket = new Socket())
+                {
+                    m_socket = socket;
+                    socket.connect(parseAddress(m_address), CONNECT_TIMEOUT);
+                    socket.setTcpNoDelay(true);
+                    Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                    out.write("NODE " + m_node + " " + m_password + "\r\n");
+                    out.flush();
+                    m_up = true;
+                    m_handler.nodeUp(m_name);
+
+                    while (!m_stopped)
+                    {
+                        String line = m_queue.poll(1, TimeUnit.SECONDS);
+
+                        if (m_overflow)
+                        {
+                            throw new IOException("Queue overflow");
+                        }
+
+                        if (line == null)
+                        {
+                            continue;
+                        }
+
+                        out.write(line);
+                        out.write("\r\n");
+
+                        /* Write what is queued as one batch, flushed when the queue runs dry */
+                        while ((line = m_queue.poll()) != null)
+                        {
+                            out.write(line);
+                            out.write("\r\n");
+                        }
+
+                        out.flush();
+                    }
+                } catch (IOException e)
+                {
+                    lost();
+                } catch (InterruptedException e)
+                {
+                    return;
+                }
+
+                try
+                {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+
+        /* The node is down, what was queued or written without reaching it is lost */
+        private void lost()
+        {
+            boolean lost = m_up || m_overflow || !m_queue.isEmpty();
+
+            m_up = false;
+            m_overflow = false;
+            m_socket = null;
+            m_queue.clear();
+
+            if (lost && !m_stopped && m_running)
+            {
+                Macros.LOG("Cluster node %s is unreachable, lines to it were lost.", m_name);
+                closeInbound(m_name);
+                m_handler.nodeDown(m_name);
+            }
+        }
+
+    }
+
+}
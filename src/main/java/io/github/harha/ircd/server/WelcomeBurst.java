@@ -0,0 +1,192 @@
+package io.github.harha.ircd.server;
+
+import io.github.harha.ircd.util.Consts;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class WelcomeBurst
+{
+
+    /* A NUL and a code byte in the template stand for a value that is only known per connection */
+    private static final char MARK        = '\0';
+    private static final byte NICK        = 'N';
+    private static final byte USERS       = 'U';
+    private static final byte INVISIBLE   = 'I';
+    private static final byte ALLSERVERS  = 'A';
+    private static final byte OPERS       = 'O';
+    private static final byte UNKNOWN     = 'K';
+    private static final byte CHANNELS    = 'C';
+    private static final byte CLIENTS     = 'L';
+    private static final byte SERVERS     = 'S';
+    private static final byte GLOBAL      = 'G';
+    private static final byte MAXLOCAL    = 'X';
+    private static final byte MAXUSERS    = 'M';
+
+    /*
+     * The lines sent after registration, 001-005, LUSERS and the MOTD, encoded once per configuration. The
+     * literal runs between the marks are copied as they are, only the nick and the counters are encoded
+     * per connection, so a registration costs a few array copies and one buffer.
+     */
+    private final Template m_welcome;
+    private final Template m_lusers;
+
+    public WelcomeBurst(IRCServer ircserver, Config config)
+    {
+        String nick = mark(NICK);
+        List<ServMessage> lusers = new ArrayList<ServMessage>();
+        List<ServMessage> lines = new ArrayList<ServMessage>();
+
+        lusers.add(new ServMessage(ircserver, CMDs.RPL_LUSERCLIENT, nick, "There are " + mark(USERS) + " users and " + mark(INVISIBLE) + " invisible on " + mark(ALLSERVERS) + " servers."));
+        lusers.add(new ServMessage(ircserver, CMDs.RPL_LUSEROP, nick, mark(OPERS), "IRC Operators online."));
+        lusers.add(new ServMessage(ircserver, CMDs.RPL_LUSERUNKNOWN, nick, mark(UNKNOWN), "Unknown connections."));
+        lusers.add(new ServMessage(ircserver, CMDs.RPL_LUSERCHANNELS, nick, mark(CHANNELS), "Channels formed."));
+        lusers.add(new ServMessage(ircserver, CMDs.RPL_LUSERME, nick, "I have " + mark(CLIENTS) + " clients and " + mark(SERVERS) + " servers."));
+        lusers.add(new ServMessage(ircserver, CMDs.RPL_LOCALUSERS, nick, mark(CLIENTS), mark(MAXLOCAL), "Current local users " + mark(CLIENTS) + ", max " + mark(MAXLOCAL)));
+        lusers.add(new ServMessage(ircserver, CMDs.RPL_GLOBALUSERS, nick, mark(GLOBAL), mark(MAXUSERS), "Current global users " + mark(GLOBAL) + ", max " + mark(MAXUSERS)));
+
+        lines.add(new ServMessage(ircserver, "001", nick, "Welcome to the " + config.getName() + " IRC network, " + nick));
+        lines.add(new ServMessage(ircserver, "002", nick, "Your host is " + ircserver.getHostName() + ", running version mirage-ircd-" + Consts.VERSION));
+        lines.add(new ServMessage(ircserver, "003", nick, "This server was created on " + ircserver.getCreationDate()));
+        lines.add(new ServMessage(ircserver, CMDs.RPL_ISUPPORT, nick, "CASEMAPPING=" + config.getCaseMapping(), "CHANTYPES=#", "NICKLEN=" + Consts.NICKLEN, "are supported by this server"));
+        lines.addAll(lusers);
+        lines.add(new ServMessage(ircserver, CMDs.RPL_MOTDSTART, nick, "- Message of the day -"));
+
+        for (String s : config.getMotd())
+        {
+            lines.add(new ServMessage(ircserver, CMDs.RPL_MOTD, nick, "- " + s.replace(MARK, ' ')));
+        }
+
+        lines.add(new ServMessage(ircserver, CMDs.RPL_ENDOFMOTD, nick, "End of /MOTD command."));
+
+        m_welcome = new Template(lines);
+        m_lusers = new Template(lusers);
+    }
+
+    private static String mark(byte code)
+    {
+        return "" + MARK + (char) code;
+    }
+
+    /* The whole burst for one connection, the counters are the live values at the time of the registration */
+    public ByteBuffer render(String nick, Counters counters)
+    {
+        return m_welcome.render(nick, counters);
+    }
+
+    /* Only the LUSERS replies, for the LUSERS command */
+    public ByteBuffer renderLusers(String nick, Counters counters)
+    {
+        return m_lusers.render(nick, counters);
+    }
+
+    private static final class Template
+    {
+
+        private final byte[][] m_literals;
+        private final byte[]   m_values;
+
+        public Template(List<ServMessage> lines)
+        {
+            /* Split the encoded lines at the marks, the code byte after each mark says what goes there */
+            StringBuilder sb = new StringBuilder(4096);
+
+            for (ServMessage line : lines)
+            {
+                sb.append(line);
+            }
+
+            byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+            List<byte[]> literals = new ArrayList<byte[]>();
+            StringBuilder values = new StringBuilder();
+            int start = 0;
+
+            for (int i = 0; i < bytes.length; i++)
+            {
+                if (bytes[i] == MARK)
+                {
+                    literals.add(Arrays.copyOfRange(bytes, start, i));
+                    values.append((char) bytes[i + 1]);
+                    start = i + 2;
+                    i++;
+                }
+            }
+
+            literals.add(Arrays.copyOfRange(bytes, start, bytes.length));
+
+            m_literals = literals.toArray(new byte[literals.size()][]);
+            m_values = values.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        public ByteBuffer render(String nick, Counters counters)
+        {
+            byte[] nickBytes = nick.getBytes(StandardCharsets.UTF_8);
+            byte[][] values = new byte[m_values.length][];
+            int length = 0;
+
+            for (int i = 0; i < m_values.length; i++)
+            {
+                values[i] = m_values[i] == NICK ? nickBytes : Long.toString(value(m_values[i], counters)).getBytes(StandardCharsets.US_ASCII);
+                length += values[i].length;
+            }
+
+            for (byte[] literal : m_literals)
+            {
+                length += literal.length;
+            }
+
+            byte[] result = new byte[length];
+            int position = 0;
+
+            for (int i = 0; i < m_literals.length; i++)
+            {
+                System.arraycopy(m_literals[i], 0, result, position, m_literals[i].length);
+                position += m_literals[i].length;
+
+                if (i < values.length)
+                {
+                    System.arraycopy(values[i], 0, result, position, values[i].length);
+                    position += values[i].length;
+                }
+            }
+
+            return ByteBuffer.wrap(result);
+        }
+
+        private static long value(byte code, Counters counters)
+        {
+            switch (code)
+            {
+                case USERS:
+                    return counters.getUsers() + counters.getRemoteUsers() - counters.getInvisible();
+                case INVISIBLE:
+                    return counters.getInvisible();
+                case ALLSERVERS:
+                    return counters.getServers() + counters.getRemoteServers() + 1;
+                case OPERS:
+                    return counters.getOpers();
+                case UNKNOWN:
+                    return counters.getUnknown();
+                case CHANNELS:
+                    return counters.getChannels();
+                case CLIENTS:
+                    return counters.getUsers();
+                case SERVERS:
+                    return counters.getServers();
+                case GLOBAL:
+                    return counters.getUsers() + counters.getRemoteUsers();
+                case MAXLOCAL:
+                    return counters.getMaxLocalUsers();
+                case MAXUSERS:
+                    return counters.getMaxUsers();
+                default:
+                    return 0;
+            }
+        }
+
+    }
+
+}
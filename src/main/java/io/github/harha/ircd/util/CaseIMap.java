@@ -1,63 +1,269 @@
 package io.github.harha.ircd.util;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-public class CaseIMap<K, V> extends ConcurrentHashMap<K, V>
+public class CaseIMap<V> extends AbstractMap<String, V> implements ConcurrentMap<String, V>
 {
 
-    private static final long serialVersionUID = -5486480749633612793L;
+    /* One reusable lookup key per thread, so a lookup with a plain String does not allocate */
+    private static final ThreadLocal<Key> s_probe = ThreadLocal.withInitial(Key::new);
+
+    private CaseMapping                   m_mapping;
+    private ConcurrentHashMap<Key, V>     m_map;
+    private EntrySet                      m_entrySet;
+
+    public CaseIMap()
+    {
+        this(CaseMapping.getDefault());
+    }
+
+    public CaseIMap(CaseMapping mapping)
+    {
+        m_mapping = mapping;
+        m_map = new ConcurrentHashMap<Key, V>();
+        m_entrySet = null;
+    }
+
+    private Key probe(Object key)
+    {
+        Key probe = s_probe.get();
+        probe.set(m_mapping, (String) key);
+
+        return probe;
+    }
+
+    @Override
+    public V put(String key, V value)
+    {
+        return m_map.put(new Key(m_mapping, key), value);
+    }
 
-    @SuppressWarnings("unchecked")
     @Override
-    public V put(K key, V value)
+    public V putIfAbsent(String key, V value)
+    {
+        return m_map.putIfAbsent(new Key(m_mapping, key), value);
+    }
+
+    @Override
+    public V get(Object key)
     {
-        if (key instanceof String)
+        if (!(key instanceof String))
         {
-            String key_s = (String) key;
-            key_s = key_s.toLowerCase();
-            return super.put((K) key_s, value);
+            return null;
         }
 
-        return super.put(key, value);
+        Key probe = probe(key);
+        V result = m_map.get(probe);
+        probe.clear();
+
+        return result;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return get(key) != null;
     }
 
     @Override
     public V remove(Object key)
     {
-        if (key instanceof String)
+        if (!(key instanceof String))
         {
-            String key_s = (String) key;
-            key_s = key_s.toLowerCase();
-            return super.remove((Object) key_s);
+            return null;
         }
 
-        return super.remove(key);
+        Key probe = probe(key);
+        V result = m_map.remove(probe);
+        probe.clear();
+
+        return result;
     }
 
     @Override
-    public V get(Object key)
+    public boolean remove(Object key, Object value)
     {
-        if (key instanceof String)
+        if (!(key instanceof String))
         {
-            String key_s = (String) key;
-            key_s = key_s.toLowerCase();
-            return super.get((Object) key_s);
+            return false;
         }
 
-        return super.get(key);
+        Key probe = probe(key);
+        boolean result = m_map.remove(probe, value);
+        probe.clear();
+
+        return result;
     }
 
     @Override
-    public boolean containsKey(Object key)
+    public boolean replace(String key, V oldValue, V newValue)
+    {
+        Key probe = probe(key);
+        boolean result = m_map.replace(probe, oldValue, newValue);
+        probe.clear();
+
+        return result;
+    }
+
+    @Override
+    public V replace(String key, V value)
+    {
+        Key probe = probe(key);
+        V result = m_map.replace(probe, value);
+        probe.clear();
+
+        return result;
+    }
+
+    @Override
+    public int size()
+    {
+        return m_map.size();
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return m_map.isEmpty();
+    }
+
+    @Override
+    public void clear()
+    {
+        m_map.clear();
+    }
+
+    @Override
+    public Collection<V> values()
+    {
+        return m_map.values();
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet()
+    {
+        if (m_entrySet == null)
+        {
+            m_entrySet = new EntrySet();
+        }
+
+        return m_entrySet;
+    }
+
+    public CaseMapping getMapping()
+    {
+        return m_mapping;
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<String, V>>
     {
-        if (key instanceof String)
+
+        @Override
+        public Iterator<Map.Entry<String, V>> iterator()
+        {
+            Iterator<Map.Entry<Key, V>> it = m_map.entrySet().iterator();
+
+            return new Iterator<Map.Entry<String, V>>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, V> next()
+                {
+                    Map.Entry<Key, V> e = it.next();
+
+                    return new AbstractMap.SimpleImmutableEntry<String, V>(e.getKey().m_key, e.getValue());
+                }
+
+                @Override
+                public void remove()
+                {
+                    it.remove();
+                }
+            };
+        }
+
+        @Override
+        public int size()
+        {
+            return m_map.size();
+        }
+
+    }
+
+    /* Key with its casemapped hash computed once, compared by folding in place */
+    private static class Key
+    {
+
+        private CaseMapping m_mapping;
+        private String      m_key;
+        private int         m_hash;
+
+        public Key()
+        {
+            clear();
+        }
+
+        public Key(CaseMapping mapping, String key)
+        {
+            set(mapping, key);
+        }
+
+        public void set(CaseMapping mapping, String key)
+        {
+            m_mapping = mapping;
+            m_key = key;
+            m_hash = mapping.hash(key);
+        }
+
+        public void clear()
+        {
+            m_mapping = null;
+            m_key = null;
+            m_hash = 0;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return m_hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+
+            Key k = (Key) o;
+
+            return m_hash == k.m_hash && m_mapping.equalsIgnoreCase(m_key, k.m_key);
+        }
+
+        @Override
+        public String toString()
         {
-            String key_s = (String) key;
-            key_s = key_s.toLowerCase();
-            return super.containsKey((Object) key_s);
+            return m_key;
         }
 
-        return super.containsKey(key);
     }
 
 }
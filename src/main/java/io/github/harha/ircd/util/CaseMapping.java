@@ -0,0 +1,104 @@
+package io.github.harha.ircd.util;
+
+public enum CaseMapping
+{
+
+    ASCII("ascii", 'z'), RFC1459("rfc1459", '~'), STRICT_RFC1459("strict-rfc1459", '}');
+
+    private static volatile CaseMapping s_default = RFC1459;
+
+    private String                      m_name;
+    private char                        m_last;
+
+    private CaseMapping(String name, char last)
+    {
+        m_name = name;
+        m_last = last;
+    }
+
+    /*
+     * ascii folds A-Z, rfc1459 also folds []\~ to {}|^ and strict-rfc1459 folds []\ to {}| only.
+     * The upper case characters of each mapping are a contiguous range from 'A' to the last one minus 32.
+     */
+    public char fold(char c)
+    {
+        if (c >= 'A' && c <= m_last - 32)
+        {
+            return (char) (c + 32);
+        }
+
+        return c;
+    }
+
+    public int hash(CharSequence s)
+    {
+        int h = 0;
+
+        for (int i = 0; i < s.length(); i++)
+        {
+            h = 31 * h + fold(s.charAt(i));
+        }
+
+        return h;
+    }
+
+    public boolean equalsIgnoreCase(CharSequence a, CharSequence b)
+    {
+        if (a.length() != b.length())
+        {
+            return false;
+        }
+
+        for (int i = 0; i < a.length(); i++)
+        {
+            if (fold(a.charAt(i)) != fold(b.charAt(i)))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public String toLowerCase(String s)
+    {
+        char[] result = new char[s.length()];
+
+        for (int i = 0; i < result.length; i++)
+        {
+            result[i] = fold(s.charAt(i));
+        }
+
+        return new String(result);
+    }
+
+    @Override
+    public String toString()
+    {
+        return m_name;
+    }
+
+    public static CaseMapping fromName(String name)
+    {
+        for (CaseMapping mapping : values())
+        {
+            if (mapping.m_name.equalsIgnoreCase(name))
+            {
+                return mapping;
+            }
+        }
+
+        return null;
+    }
+
+    public static CaseMapping getDefault()
+    {
+        return s_default;
+    }
+
+    public static void setDefault(CaseMapping mapping)
+    {
+        s_default = mapping;
+    }
+
+}
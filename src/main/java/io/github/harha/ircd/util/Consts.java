@@ -4,5 +4,7 @@ public class Consts
 {
 
     public static final String VERSION = "0.0.1";
+    public static final int    NICKLEN = 9;
+    public static final int    LINELEN = 512;
 
 }
@@ -55,4 +55,23 @@ public class FileUtils
         return result;
     }
 
+    /* The file on disk behind a resource, null if it is not a plain file (e.g. inside a jar) */
+    public static File getFile(String filepath)
+    {
+        URL url = FileUtils.class.getClassLoader().getResource(filepath);
+
+        if (url == null || !url.getProtocol().equals("file"))
+        {
+            return null;
+        }
+
+        try
+        {
+            return new File(url.toURI());
+        } catch (URISyntaxException e)
+        {
+            return null;
+        }
+    }
+
 }
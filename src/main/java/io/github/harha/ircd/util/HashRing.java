@@ -0,0 +1,98 @@
+package io.github.harha.ircd.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+public final class HashRing
+{
+
+    /*
+     * An immutable consistent hash ring. Every node is placed on the ring at a number of points and a key
+     * belongs to the first point at or after its own hash, wrapping around. Adding a node only moves the keys
+     * that now fall on its points, about 1/n of them, the rest keep their owner.
+     */
+    private final List<String> m_nodes;
+    private final long[]       m_points;
+    private final String[]     m_owners;
+
+    public HashRing(Collection<String> nodes, int vnodes)
+    {
+        List<String> sorted = new ArrayList<String>(nodes);
+        Collections.sort(sorted);
+
+        long[] packed = new long[sorted.size() * vnodes];
+        int k = 0;
+
+        /* Each point is its hash in the high bits and the index of its node in the low 16 bits */
+        for (int n = 0; n < sorted.size(); n++)
+        {
+            for (int v = 0; v < vnodes; v++)
+            {
+                packed[k++] = (hash(sorted.get(n) + "#" + v) & ~0xffffL) | n;
+            }
+        }
+
+        Arrays.sort(packed);
+
+        m_nodes = Collections.unmodifiableList(sorted);
+        m_points = new long[packed.length];
+        m_owners = new String[packed.length];
+
+        for (int i = 0; i < packed.length; i++)
+        {
+            m_points[i] = packed[i] & ~0xffffL;
+            m_owners[i] = sorted.get((int) (packed[i] & 0xffff));
+        }
+    }
+
+    /* The node that owns the key, null for an empty ring */
+    public String getOwner(String key)
+    {
+        if (m_points.length == 0)
+        {
+            return null;
+        }
+
+        int i = Arrays.binarySearch(m_points, hash(key) & ~0xffffL);
+
+        if (i < 0)
+        {
+            i = -i - 1;
+        }
+
+        return m_owners[i < m_points.length ? i : 0];
+    }
+
+    public List<String> getNodes()
+    {
+        return m_nodes;
+    }
+
+    public boolean contains(String node)
+    {
+        return Collections.binarySearch(m_nodes, node) >= 0;
+    }
+
+    /* 64 bit FNV-1a with a final mix, every node computes the same ring from the same names */
+    private static long hash(String key)
+    {
+        long h = 0xcbf29ce484222325L;
+
+        for (byte b : key.getBytes(StandardCharsets.UTF_8))
+        {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+}
@@ -0,0 +1,91 @@
+package io.github.harha.ircd.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram
+{
+
+    /* Bucket 0 counts durations under 1 us, bucket i durations in [2^(i-1), 2^i) us */
+    private static final int BUCKETS = 40;
+
+    private AtomicLongArray  m_counts;
+    private LongAdder        m_count;
+    private LongAdder        m_sum;
+    private AtomicLong       m_max;
+
+    public Histogram()
+    {
+        m_counts = new AtomicLongArray(BUCKETS);
+        m_count = new LongAdder();
+        m_sum = new LongAdder();
+        m_max = new AtomicLong(0);
+    }
+
+    public void record(long nanos)
+    {
+        long micros = Math.max(nanos, 0) / 1000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+
+        m_counts.incrementAndGet(bucket);
+        m_count.increment();
+        m_sum.add(nanos);
+
+        long max;
+
+        while (nanos > (max = m_max.get()) && !m_max.compareAndSet(max, nanos))
+        {
+        }
+    }
+
+    public long getCount()
+    {
+        return m_count.sum();
+    }
+
+    public long getMeanMicros()
+    {
+        long count = m_count.sum();
+
+        return count > 0 ? m_sum.sum() / count / 1000 : 0;
+    }
+
+    public long getMaxMicros()
+    {
+        return m_max.get() / 1000;
+    }
+
+    /* Upper bound of the bucket the given percentile falls into, in microseconds */
+    public long getPercentileMicros(double percentile)
+    {
+        long count = m_count.sum();
+
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += m_counts.get(i);
+
+            if (seen >= rank)
+            {
+                return 1L << i;
+            }
+        }
+
+        return 1L << (BUCKETS - 1);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("count=%d mean=%dus p50=%dus p99=%dus max=%dus", getCount(), getMeanMicros(), getPercentileMicros(50), getPercentileMicros(99), getMaxMicros());
+    }
+
+}
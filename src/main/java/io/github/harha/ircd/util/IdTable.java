@@ -0,0 +1,109 @@
+package io.github.harha.ircd.util;
+
+import java.util.Arrays;
+
+public class IdTable<T>
+{
+
+    /*
+     * Lookups read the array without locking. An id is only ever handed out after the item is stored,
+     * so whoever got the id through a later publication (e.g. a channel member list) also sees the item.
+     */
+    private volatile Object[] m_items;
+    private int[]             m_free;
+    private int               m_freeHead;
+    private int               m_freeCount;
+    private int               m_next;
+    private int               m_size;
+
+    public IdTable()
+    {
+        this(64);
+    }
+
+    public IdTable(int capacity)
+    {
+        m_items = new Object[Math.max(capacity, 1)];
+        m_free = new int[Math.max(capacity, 1)];
+        m_freeHead = 0;
+        m_freeCount = 0;
+        m_next = 0;
+        m_size = 0;
+    }
+
+    public synchronized int add(T item)
+    {
+        int id;
+
+        /* Freed ids are reused oldest first, so an id that was just released is not handed out again right away */
+        if (m_freeCount > 0)
+        {
+            id = m_free[m_freeHead];
+            m_freeHead = (m_freeHead + 1) % m_free.length;
+            m_freeCount--;
+        }
+        else
+        {
+            id = m_next++;
+
+            if (id >= m_items.length)
+            {
+                m_items = Arrays.copyOf(m_items, m_items.length * 2);
+            }
+        }
+
+        m_items[id] = item;
+        m_size++;
+
+        return id;
+    }
+
+    public synchronized boolean remove(int id, T item)
+    {
+        if (id < 0 || id >= m_next || m_items[id] != item)
+        {
+            return false;
+        }
+
+        m_items[id] = null;
+        m_size--;
+
+        if (m_freeCount == m_free.length)
+        {
+            int[] free = new int[m_free.length * 2];
+
+            for (int i = 0; i < m_freeCount; i++)
+            {
+                free[i] = m_free[(m_freeHead + i) % m_free.length];
+            }
+
+            m_free = free;
+            m_freeHead = 0;
+        }
+
+        m_free[(m_freeHead + m_freeCount) % m_free.length] = id;
+        m_freeCount++;
+
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int id)
+    {
+        Object[] items = m_items;
+
+        return id >= 0 && id < items.length ? (T) items[id] : null;
+    }
+
+    public synchronized int size()
+    {
+        return m_size;
+    }
+
+    /* One past the highest id handed out so far */
+    public synchronized int getCapacity()
+    {
+        return m_next;
+    }
+
+}
@@ -1,6 +1,7 @@
 package io.github.harha.ircd.util;
 
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -15,12 +16,14 @@ public class IniFile
     private String                           m_filepath;
     private List<String>                     m_lines;
     private Map<String, Map<String, String>> m_entries;
+    private List<String>                     m_sections;
 
     public IniFile(String filepath)
     {
         m_filepath = filepath;
         m_lines = FileUtils.loadTextFile(filepath, true);
         m_entries = new CaseIMap<>();
+        m_sections = new ArrayList<String>();
 
         if (m_lines != null && !m_lines.isEmpty())
         {
@@ -29,11 +32,22 @@ public class IniFile
 
             for (String l : m_lines)
             {
+                /* Comment lines */
+                if (l.startsWith(";") || l.startsWith("#"))
+                {
+                    continue;
+                }
+
                 matcher = s_section.matcher(l);
 
                 if (matcher.matches())
                 {
                     section = l;
+
+                    if (!m_sections.contains(section))
+                    {
+                        m_sections.add(section);
+                    }
                 }
                 else if (section != null)
                 {
@@ -62,52 +76,52 @@ public class IniFile
         return m_filepath;
     }
 
+    public boolean isLoaded()
+    {
+        return m_lines != null;
+    }
+
+    /* Section headers in the order they appear in the file, e.g. "[server]" */
+    public List<String> getSections()
+    {
+        return m_sections;
+    }
+
     public String getString(String section, String key, String defaultvalue)
     {
         Map<String, String> kv = m_entries.get(section);
+        String value = kv != null ? kv.get(key) : null;
 
-        if (kv == null)
-        {
-            return defaultvalue;
-        }
-
-        return kv.get(key);
+        /* A missing section and a key missing from an existing section both give the default */
+        return value != null ? value : defaultvalue;
     }
 
     public int getInt(String section, String key, int defaultvalue)
     {
-        Map<String, String> kv = m_entries.get(section);
-
-        if (kv == null)
-        {
-            return defaultvalue;
-        }
+        String value = getString(section, key, null);
 
-        return Integer.parseInt(kv.get(key));
+        return value != null ? Integer.parseInt(value) : defaultvalue;
     }
 
     public float getFloat(String section, String key, float defaultvalue)
     {
-        Map<String, String> kv = m_entries.get(section);
-
-        if (kv == null)
-        {
-            return defaultvalue;
-        }
+        String value = getString(section, key, null);
 
-        return Float.parseFloat(kv.get(key));
+        return value != null ? Float.parseFloat(value) : defaultvalue;
     }
 
     public double getDouble(String section, String key, double defaultvalue)
     {
-        Map<String, String> kv = m_entries.get(section);
+        String value = getString(section, key, null);
 
-        if (kv == null)
-        {
-            return defaultvalue;
-        }
+        return value != null ? Double.parseDouble(value) : defaultvalue;
+    }
+
+    public boolean getBoolean(String section, String key, boolean defaultvalue)
+    {
+        String value = getString(section, key, null);
 
-        return Double.parseDouble(kv.get(key));
+        return value != null ? Boolean.parseBoolean(value) : defaultvalue;
     }
 
-}
\ No newline at end of file
+}
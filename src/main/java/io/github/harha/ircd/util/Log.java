@@ -0,0 +1,175 @@
+package io.github.harha.ircd.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class Log
+{
+
+    private static final ConcurrentMap<String, Log> s_logs    = new ConcurrentHashMap<String, Log>();
+    private static volatile LogLevel                s_level   = LogLevel.INFO;
+    private static volatile LogWriter               s_writer  = new LogWriter(LogWriter.DEFAULT_CAPACITY, false, true, null, 0, 0);
+
+    static
+    {
+        /* Whatever is still buffered is written out when the process exits */
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::shutdown, "mirage-log-shutdown"));
+    }
+
+    private String                                  m_category;
+    private volatile LogLevel                       m_level;
+
+    private Log(String category)
+    {
+        m_category = category;
+        m_level = null;
+    }
+
+    public static Log get(String category)
+    {
+        Log result = s_logs.get(category);
+
+        if (result == null)
+        {
+            Log log = new Log(category);
+            result = s_logs.putIfAbsent(category, log);
+
+            if (result == null)
+            {
+                result = log;
+            }
+        }
+
+        return result;
+    }
+
+    /*
+     * [log] level, categories (e.g. traffic:debug,dns:warn), console, file, maxsize, maxfiles, buffer
+     * and policy (drop or block). The previous writer drains on its own thread after it is replaced, so a
+     * REHASH on an event loop does not wait for it, records that still reach it are counted as dropped.
+     */
+    public static void configure(IniFile ini)
+    {
+        LogLevel level = LogLevel.fromName(getString(ini, "level", "info"));
+        s_level = level != null ? level : LogLevel.INFO;
+
+        for (Log log : s_logs.values())
+        {
+            log.m_level = null;
+        }
+
+        for (String c : getString(ini, "categories", "").split(","))
+        {
+            int i = c.indexOf(':');
+
+            if (i > 0)
+            {
+                get(c.substring(0, i).trim()).m_level = LogLevel.fromName(c.substring(i + 1));
+            }
+        }
+
+        String file = getString(ini, "file", "");
+        LogWriter writer = new LogWriter(getInt(ini, "buffer", LogWriter.DEFAULT_CAPACITY),
+                                         getString(ini, "policy", "drop").equalsIgnoreCase("block"),
+                                         Boolean.parseBoolean(getString(ini, "console", "true")),
+                                         file.isEmpty() ? null : file,
+                                         getInt(ini, "maxsize", 10485760),
+                                         getInt(ini, "maxfiles", 5));
+
+        LogWriter old = s_writer;
+        s_writer = writer;
+        old.stop();
+    }
+
+    private static String getString(IniFile ini, String key, String defaultvalue)
+    {
+        String result = ini.getString("[log]", key, defaultvalue);
+
+        return result != null ? result : defaultvalue;
+    }
+
+    private static int getInt(IniFile ini, String key, int defaultvalue)
+    {
+        try
+        {
+            return Integer.parseInt(getString(ini, key, Integer.toString(defaultvalue)));
+        } catch (NumberFormatException e)
+        {
+            return defaultvalue;
+        }
+    }
+
+    public static void shutdown()
+    {
+        s_writer.close();
+    }
+
+    public static long getDropped()
+    {
+        return s_writer.getDropped();
+    }
+
+    public String getCategory()
+    {
+        return m_category;
+    }
+
+    public boolean isEnabled(LogLevel level)
+    {
+        LogLevel limit = m_level;
+
+        return level.ordinal() <= (limit != null ? limit : s_level).ordinal();
+    }
+
+    /* The message is formatted by the writer thread, only if the record is enabled at all, from arguments captured here */
+    public void log(LogLevel level, String msg, Object... args)
+    {
+        if (isEnabled(level))
+        {
+            s_writer.append(level, m_category, msg, args);
+        }
+    }
+
+    public void error(String msg, Object... args)
+    {
+        log(LogLevel.ERROR, msg, args);
+    }
+
+    public void warn(String msg, Object... args)
+    {
+        log(LogLevel.WARN, msg, args);
+    }
+
+    public void info(String msg, Object... args)
+    {
+        log(LogLevel.INFO, msg, args);
+    }
+
+    /* Fixed arity variants for the hot paths, a disabled call does not even allocate the varargs array */
+    public void debug(String msg, Object arg0, Object arg1)
+    {
+        if (isEnabled(LogLevel.DEBUG))
+        {
+            s_writer.append(LogLevel.DEBUG, m_category, msg, new Object[] { arg0, arg1 });
+        }
+    }
+
+    public void debug(String msg, Object... args)
+    {
+        log(LogLevel.DEBUG, msg, args);
+    }
+
+    public void trace(String msg, Object arg0, Object arg1)
+    {
+        if (isEnabled(LogLevel.TRACE))
+        {
+            s_writer.append(LogLevel.TRACE, m_category, msg, new Object[] { arg0, arg1 });
+        }
+    }
+
+    public void trace(String msg, Object... args)
+    {
+        log(LogLevel.TRACE, msg, args);
+    }
+
+}
@@ -0,0 +1,21 @@
+package io.github.harha.ircd.util;
+
+import java.util.Locale;
+
+public enum LogLevel
+{
+
+    OFF, ERROR, WARN, INFO, DEBUG, TRACE;
+
+    public static LogLevel fromName(String name)
+    {
+        try
+        {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException | NullPointerException e)
+        {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,412 @@
+package io.github.harha.ircd.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.IllegalFormatException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class LogWriter implements Runnable
+{
+
+    public static final int   DEFAULT_CAPACITY = 8192;
+    private static final long IDLE_TIME        = 100000000;
+    private static final long CLOSED           = 1L << 62;
+
+    /*
+     * Bounded multi-producer ring, a slot is free for position p when its sequence is p and full when it is p + 1.
+     * Closing sets the CLOSED bit of the tail, so no position can be claimed after it and the writer knows the
+     * last one it has to wait for.
+     */
+    private int               m_mask;
+    private AtomicLongArray   m_sequence;
+    private long[]            m_times;
+    private LogLevel[]        m_levels;
+    private String[]          m_categories;
+    private String[]          m_messages;
+    private Object[][]        m_args;
+    private AtomicLong        m_tail;
+    private long              m_head;
+    private boolean           m_block;
+    private AtomicLong        m_dropped;
+    private long              m_reported;
+    private volatile boolean  m_sleeping;
+    private volatile boolean  m_closed;
+    private Thread            m_thread;
+
+    /* Everything below is only touched by the writer thread */
+    private boolean           m_console;
+    private File              m_file;
+    private long              m_maxSize;
+    private int               m_maxFiles;
+    private OutputStream      m_out;
+    private long              m_size;
+    private StringBuilder     m_sb;
+    private SimpleDateFormat  m_dateFormat;
+    private long              m_second;
+    private String            m_secondString;
+
+    public LogWriter(int capacity, boolean block, boolean console, String file, long maxsize, int maxfiles)
+    {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        m_mask = size - 1;
+        m_sequence = new AtomicLongArray(size);
+        m_times = new long[size];
+        m_levels = new LogLevel[size];
+        m_categories = new String[size];
+        m_messages = new String[size];
+        m_args = new Object[size][];
+        m_tail = new AtomicLong(0);
+        m_head = 0;
+        m_block = block;
+        m_dropped = new AtomicLong(0);
+        m_reported = 0;
+        m_sleeping = false;
+        m_closed = false;
+        m_console = console;
+        m_file = file != null ? new File(file) : null;
+        m_maxSize = maxsize;
+        m_maxFiles = maxfiles;
+        m_out = null;
+        m_size = 0;
+        m_sb = new StringBuilder(256);
+        m_dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        m_second = -1;
+        m_secondString = null;
+
+        for (int i = 0; i < size; i++)
+        {
+            m_sequence.set(i, i);
+        }
+
+        m_thread = new Thread(this, "mirage-log");
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    public void append(LogLevel level, String category, String msg, Object[] args)
+    {
+        long time = System.currentTimeMillis();
+        args = capture(args);
+
+        while (true)
+        {
+            long pos = m_tail.get();
+
+            /* Closed, the record is lost but still counted */
+            if ((pos & CLOSED) != 0)
+            {
+                m_dropped.incrementAndGet();
+                return;
+            }
+
+            int i = (int) (pos & m_mask);
+            long seq = m_sequence.get(i);
+
+            if (seq == pos)
+            {
+                if (m_tail.compareAndSet(pos, pos + 1))
+                {
+                    m_times[i] = time;
+                    m_levels[i] = level;
+                    m_categories[i] = category;
+                    m_messages[i] = msg;
+                    m_args[i] = args;
+                    m_sequence.lazySet(i, pos + 1);
+
+                    if (m_sleeping)
+                    {
+                        LockSupport.unpark(m_thread);
+                    }
+
+                    return;
+                }
+            }
+            else if (seq < pos)
+            {
+                /* The ring is full, either lose the record or wait for the writer to make room */
+                if (!m_block)
+                {
+                    m_dropped.incrementAndGet();
+                    return;
+                }
+
+                LockSupport.unpark(m_thread);
+                LockSupport.parkNanos(10000);
+            }
+        }
+    }
+
+    /*
+     * The arguments are formatted later on the writer thread, by then e.g. a connection may have changed. Only
+     * values that cannot change are passed on as they are, anything else is rendered here on the caller's thread.
+     */
+    private static Object[] capture(Object[] args)
+    {
+        if (args == null)
+        {
+            return null;
+        }
+
+        Object[] result = args;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (!isImmutable(args[i]))
+            {
+                if (result == args)
+                {
+                    result = args.clone();
+                }
+
+                result[i] = String.valueOf(args[i]);
+            }
+        }
+
+        return result;
+    }
+
+    private static boolean isImmutable(Object arg)
+    {
+        return arg == null || arg instanceof String || arg instanceof Integer || arg instanceof Long || arg instanceof Double || arg instanceof Float
+               || arg instanceof Short || arg instanceof Byte || arg instanceof Character || arg instanceof Boolean || arg instanceof Enum;
+    }
+
+    @Override
+    public void run()
+    {
+        /* Once closed, every position that was claimed before the tail was closed is still written */
+        while (!m_closed || m_head < (m_tail.get() & ~CLOSED))
+        {
+            if (!drain())
+            {
+                flushOutput();
+
+                m_sleeping = true;
+
+                if (!hasNext())
+                {
+                    /* A record claimed before the close may still be being filled in, it is waited for briefly */
+                    LockSupport.parkNanos(this, m_closed ? 10000 : IDLE_TIME);
+                }
+
+                m_sleeping = false;
+            }
+        }
+
+        flushOutput();
+
+        if (m_out != null)
+        {
+            try
+            {
+                m_out.close();
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private boolean hasNext()
+    {
+        return m_sequence.get((int) (m_head & m_mask)) == m_head + 1;
+    }
+
+    private boolean drain()
+    {
+        boolean result = false;
+
+        while (hasNext())
+        {
+            int i = (int) (m_head & m_mask);
+            long time = m_times[i];
+            LogLevel level = m_levels[i];
+            String category = m_categories[i];
+            String msg = m_messages[i];
+            Object[] args = m_args[i];
+
+            /* Hand the slot back before formatting, producers are only held up by a full ring */
+            m_categories[i] = null;
+            m_messages[i] = null;
+            m_args[i] = null;
+            m_sequence.lazySet(i, m_head + m_mask + 1);
+            m_head++;
+
+            write(time, level, category, format(msg, args));
+            result = true;
+        }
+
+        long dropped = m_dropped.get();
+
+        if (dropped != m_reported)
+        {
+            write(System.currentTimeMillis(), LogLevel.WARN, "log", (dropped - m_reported) + " log records were dropped, the buffer was full.");
+            m_reported = dropped;
+        }
+
+        return result;
+    }
+
+    private String format(String msg, Object[] args)
+    {
+        if (args == null || args.length == 0)
+        {
+            return msg;
+        }
+
+        try
+        {
+            return String.format(msg, args);
+        } catch (IllegalFormatException e)
+        {
+            return msg + " " + Arrays.toString(args);
+        }
+    }
+
+    private void write(long time, LogLevel level, String category, String msg)
+    {
+        long second = time / 1000;
+
+        if (second != m_second)
+        {
+            m_second = second;
+            m_secondString = m_dateFormat.format(new Date(second * 1000));
+        }
+
+        m_sb.setLength(0);
+        m_sb.append(m_secondString).append('.');
+        m_sb.append((char) ('0' + time % 1000 / 100)).append((char) ('0' + time % 100 / 10)).append((char) ('0' + time % 10));
+        m_sb.append(' ').append(level);
+
+        for (int i = level.name().length(); i < 5; i++)
+        {
+            m_sb.append(' ');
+        }
+
+        m_sb.append(" [").append(category).append("] ").append(msg).append(System.lineSeparator());
+
+        byte[] bytes = m_sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        if (m_console)
+        {
+            System.out.write(bytes, 0, bytes.length);
+        }
+
+        if (m_file != null)
+        {
+            writeFile(bytes);
+        }
+    }
+
+    private void writeFile(byte[] bytes)
+    {
+        try
+        {
+            if (m_out != null && m_maxSize > 0 && m_size > 0 && m_size + bytes.length > m_maxSize)
+            {
+                rotate();
+            }
+
+            if (m_out == null)
+            {
+                m_out = new BufferedOutputStream(new FileOutputStream(m_file, true), 65536);
+                m_size = m_file.length();
+            }
+
+            m_out.write(bytes);
+            m_size += bytes.length;
+        } catch (IOException e)
+        {
+            /* Keep going with the console only, the file is retried with the next record */
+            System.err.println("Failed to write the log file " + m_file + ": " + e.getMessage());
+            m_out = null;
+        }
+    }
+
+    private void rotate() throws IOException
+    {
+        m_out.close();
+        m_out = null;
+
+        /* mirage.log -> mirage.log.1 -> ... -> mirage.log.<maxfiles>, the oldest one is overwritten */
+        for (int i = m_maxFiles - 1; i >= 0; i--)
+        {
+            File from = i == 0 ? m_file : new File(m_file.getPath() + "." + i);
+
+            if (from.exists())
+            {
+                Files.move(from.toPath(), new File(m_file.getPath() + "." + (i + 1)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        if (m_maxFiles <= 0)
+        {
+            Files.deleteIfExists(m_file.toPath());
+        }
+    }
+
+    private void flushOutput()
+    {
+        if (m_console)
+        {
+            System.out.flush();
+        }
+
+        if (m_out != null)
+        {
+            try
+            {
+                m_out.flush();
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /* Stops taking records, the writer thread writes what is already in the ring and then ends */
+    public void stop()
+    {
+        long tail = m_tail.get();
+
+        while ((tail & CLOSED) == 0 && !m_tail.compareAndSet(tail, tail | CLOSED))
+        {
+            tail = m_tail.get();
+        }
+
+        m_closed = true;
+        LockSupport.unpark(m_thread);
+    }
+
+    /* The same, and waits until everything already in the ring has been written */
+    public void close()
+    {
+        stop();
+
+        try
+        {
+            m_thread.join(5000);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getDropped()
+    {
+        return m_dropped.get();
+    }
+
+}
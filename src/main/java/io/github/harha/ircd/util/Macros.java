@@ -3,14 +3,16 @@ package io.github.harha.ircd.util;
 public class Macros
 {
 
+    private static final Log s_log = Log.get("server");
+
     public static void LOG(String msg, Object... args)
     {
-        System.out.println("LOG: " + String.format(msg, args));
+        s_log.info(msg, args);
     }
 
     public static void ERR(String msg, Object... args)
     {
-        System.out.println("ERR: " + String.format(msg, args));
+        s_log.error(msg, args);
     }
 
 }
@@ -0,0 +1,124 @@
+package io.github.harha.ircd.util;
+
+import java.util.Arrays;
+
+public final class RefCounts<T>
+{
+
+    private static final RefCounts<?> EMPTY = new RefCounts<Object>(new Object[0], new int[0]);
+
+    /*
+     * An immutable set of distinct objects with a count of references to each. An object is in the set while
+     * its count is above zero and is dropped when the last reference goes. Meant for a handful of entries, e.g.
+     * the links of a channel, lookups are a linear scan by identity.
+     */
+    private final Object[] m_items;
+    private final int[]    m_counts;
+
+    private RefCounts(Object[] items, int[] counts)
+    {
+        m_items = items;
+        m_counts = counts;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> RefCounts<T> empty()
+    {
+        return (RefCounts<T>) EMPTY;
+    }
+
+    public RefCounts<T> with(T item, int count)
+    {
+        if (count <= 0)
+        {
+            return this;
+        }
+
+        int i = indexOf(item);
+
+        if (i >= 0)
+        {
+            int[] counts = m_counts.clone();
+            counts[i] += count;
+
+            return new RefCounts<T>(m_items, counts);
+        }
+
+        Object[] items = Arrays.copyOf(m_items, m_items.length + 1);
+        int[] counts = Arrays.copyOf(m_counts, m_counts.length + 1);
+        items[m_items.length] = item;
+        counts[m_counts.length] = count;
+
+        return new RefCounts<T>(items, counts);
+    }
+
+    /* One reference less, the item is dropped with its last one */
+    public RefCounts<T> without(T item)
+    {
+        int i = indexOf(item);
+
+        if (i < 0)
+        {
+            return this;
+        }
+
+        if (m_counts[i] > 1)
+        {
+            int[] counts = m_counts.clone();
+            counts[i]--;
+
+            return new RefCounts<T>(m_items, counts);
+        }
+
+        if (m_items.length == 1)
+        {
+            return empty();
+        }
+
+        Object[] items = new Object[m_items.length - 1];
+        int[] counts = new int[m_items.length - 1];
+        System.arraycopy(m_items, 0, items, 0, i);
+        System.arraycopy(m_counts, 0, counts, 0, i);
+        System.arraycopy(m_items, i + 1, items, i, m_items.length - i - 1);
+        System.arraycopy(m_counts, i + 1, counts, i, m_items.length - i - 1);
+
+        return new RefCounts<T>(items, counts);
+    }
+
+    private int indexOf(T item)
+    {
+        for (int i = 0; i < m_items.length; i++)
+        {
+            if (m_items[i] == item)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    public int size()
+    {
+        return m_items.length;
+    }
+
+    public boolean isEmpty()
+    {
+        return m_items.length == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index)
+    {
+        return (T) m_items[index];
+    }
+
+    public int getCount(T item)
+    {
+        int i = indexOf(item);
+
+        return i >= 0 ? m_counts[i] : 0;
+    }
+
+}
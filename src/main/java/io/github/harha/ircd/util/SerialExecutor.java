@@ -0,0 +1,77 @@
+package io.github.harha.ircd.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SerialExecutor implements Executor
+{
+
+    /*
+     * Runs its tasks one at a time in submission order, without a thread of its own. Whoever submits
+     * while it is idle runs the queue on the spot; tasks submitted meanwhile by other threads are queued
+     * and run by that same thread. After a batch of tasks the rest is handed to the continuation
+     * executor, so one busy queue cannot hold its runner forever.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    private Queue<Runnable>  m_tasks;
+    private AtomicBoolean    m_running;
+    private Executor         m_continuation;
+
+    public SerialExecutor(Executor continuation)
+    {
+        m_tasks = new ConcurrentLinkedQueue<Runnable>();
+        m_running = new AtomicBoolean(false);
+        m_continuation = continuation;
+    }
+
+    @Override
+    public void execute(Runnable task)
+    {
+        m_tasks.add(task);
+        drain();
+    }
+
+    private void drain()
+    {
+        while (!m_tasks.isEmpty() && m_running.compareAndSet(false, true))
+        {
+            int count = 0;
+
+            try
+            {
+                Runnable task;
+
+                while (count < BATCH_SIZE && (task = m_tasks.poll()) != null)
+                {
+                    count++;
+
+                    try
+                    {
+                        task.run();
+                    } catch (RuntimeException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+            } finally
+            {
+                m_running.set(false);
+            }
+
+            if (count == BATCH_SIZE && !m_tasks.isEmpty())
+            {
+                m_continuation.execute(this::drain);
+                return;
+            }
+        }
+    }
+
+    public boolean isIdle()
+    {
+        return !m_running.get() && m_tasks.isEmpty();
+    }
+
+}
@@ -0,0 +1,84 @@
+package io.github.harha.ircd.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class TTLCache<K, V>
+{
+
+    private int                        m_capacity;
+    private LinkedHashMap<K, Entry<V>> m_entries;
+
+    public TTLCache(int capacity)
+    {
+        m_capacity = capacity;
+
+        /* Access ordered, so the least recently used entry is evicted first */
+        m_entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 2364018530125867531L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest)
+            {
+                return size() > m_capacity;
+            }
+        };
+    }
+
+    public synchronized void put(K key, V value, long ttl)
+    {
+        m_entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl));
+    }
+
+    public synchronized boolean containsKey(K key)
+    {
+        return getEntry(key) != null;
+    }
+
+    public synchronized V get(K key)
+    {
+        Entry<V> entry = getEntry(key);
+
+        return entry != null ? entry.m_value : null;
+    }
+
+    public synchronized int size()
+    {
+        return m_entries.size();
+    }
+
+    public synchronized void clear()
+    {
+        m_entries.clear();
+    }
+
+    private Entry<V> getEntry(K key)
+    {
+        Entry<V> entry = m_entries.get(key);
+
+        /* Expired entries are dropped lazily on access */
+        if (entry != null && entry.m_expires < System.currentTimeMillis())
+        {
+            m_entries.remove(key);
+            return null;
+        }
+
+        return entry;
+    }
+
+    private static class Entry<V>
+    {
+
+        private V    m_value;
+        private long m_expires;
+
+        public Entry(V value, long expires)
+        {
+            m_value = value;
+            m_expires = expires;
+        }
+
+    }
+
+}
@@ -0,0 +1,211 @@
+package io.github.harha.ircd.util;
+
+public class TimingWheel
+{
+
+    /* Four levels of 64 slots with a resolution of 1 ms cover deadlines up to ~4.6 hours */
+    private static final int  LEVELS     = 4;
+    private static final int  SLOT_BITS  = 6;
+    private static final int  SLOTS      = 1 << SLOT_BITS;
+    private static final int  SLOT_MASK  = SLOTS - 1;
+    private static final long MAX_DELAY  = (1L << (LEVELS * SLOT_BITS)) - 1;
+
+    private Timer[]           m_slots;
+    private long              m_time;
+    private int               m_count;
+
+    public TimingWheel(long time)
+    {
+        m_slots = new Timer[LEVELS * SLOTS];
+        m_time = time;
+        m_count = 0;
+    }
+
+    public void schedule(Timer timer, long delay)
+    {
+        cancel(timer);
+
+        /* Never due before the next millisecond, the current slot may be being expired */
+        timer.m_deadline = m_time + Math.max(delay, 1);
+        place(timer);
+        m_count++;
+    }
+
+    public void cancel(Timer timer)
+    {
+        if (timer.m_slot >= 0)
+        {
+            unlink(timer);
+            m_count--;
+        }
+    }
+
+    /* Expires every timer due at or before the given time, the run is O(1) per slot visited */
+    public void advance(long time)
+    {
+        while (m_time < time)
+        {
+            if (m_count == 0)
+            {
+                m_time = time;
+                break;
+            }
+
+            /* Skip straight past the milliseconds where nothing is due and nothing cascades */
+            m_time = Math.min(time, m_time + timeUntilNext()) - 1;
+            step();
+        }
+    }
+
+    /* Milliseconds until the wheel next has work to do, -1 if it is empty */
+    public long timeUntilNext()
+    {
+        if (m_count == 0)
+        {
+            return -1;
+        }
+
+        long result = Long.MAX_VALUE;
+
+        for (int level = 0; level < LEVELS; level++)
+        {
+            int shift = level * SLOT_BITS;
+            long index = m_time >> shift;
+
+            for (int k = 1; k <= SLOTS; k++)
+            {
+                if (m_slots[level * SLOTS + (int) ((index + k) & SLOT_MASK)] != null)
+                {
+                    result = Math.min(result, ((index + k) << shift) - m_time);
+                    break;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private void step()
+    {
+        m_time++;
+
+        /* Move the timers of every higher level slot that has come due one level closer */
+        int level = 1;
+
+        while (level < LEVELS && ((m_time >> ((level - 1) * SLOT_BITS)) & SLOT_MASK) == 0)
+        {
+            level++;
+        }
+
+        for (int l = level - 1; l > 0; l--)
+        {
+            int slot = l * SLOTS + (int) ((m_time >> (l * SLOT_BITS)) & SLOT_MASK);
+            Timer timer;
+
+            while ((timer = m_slots[slot]) != null)
+            {
+                unlink(timer);
+                place(timer);
+            }
+        }
+
+        /* Expire the current slot, tasks may schedule or cancel any timer while it runs */
+        int slot = (int) (m_time & SLOT_MASK);
+        Timer timer;
+
+        while ((timer = m_slots[slot]) != null)
+        {
+            unlink(timer);
+            m_count--;
+            timer.m_task.run();
+        }
+    }
+
+    private void place(Timer timer)
+    {
+        long delay = Math.min(timer.m_deadline - m_time, MAX_DELAY);
+        long deadline = m_time + Math.max(delay, 0);
+        int level = 0;
+
+        while (level < LEVELS - 1 && delay >= (1L << ((level + 1) * SLOT_BITS)))
+        {
+            level++;
+        }
+
+        int slot = level * SLOTS + (int) ((deadline >> (level * SLOT_BITS)) & SLOT_MASK);
+
+        timer.m_slot = slot;
+        timer.m_prev = null;
+        timer.m_next = m_slots[slot];
+
+        if (timer.m_next != null)
+        {
+            timer.m_next.m_prev = timer;
+        }
+
+        m_slots[slot] = timer;
+    }
+
+    private void unlink(Timer timer)
+    {
+        if (timer.m_prev != null)
+        {
+            timer.m_prev.m_next = timer.m_next;
+        }
+        else
+        {
+            m_slots[timer.m_slot] = timer.m_next;
+        }
+
+        if (timer.m_next != null)
+        {
+            timer.m_next.m_prev = timer.m_prev;
+        }
+
+        timer.m_slot = -1;
+        timer.m_prev = null;
+        timer.m_next = null;
+    }
+
+    public long getTime()
+    {
+        return m_time;
+    }
+
+    public int size()
+    {
+        return m_count;
+    }
+
+    /* A reusable timer entry, linked into one slot of the wheel while scheduled */
+    public static class Timer
+    {
+
+        private Runnable m_task;
+        private long     m_deadline;
+        private int      m_slot;
+        private Timer    m_prev;
+        private Timer    m_next;
+
+        public Timer(Runnable task)
+        {
+            m_task = task;
+            m_deadline = 0;
+            m_slot = -1;
+            m_prev = null;
+            m_next = null;
+        }
+
+        public boolean isScheduled()
+        {
+            return m_slot >= 0;
+        }
+
+        public long getDeadline()
+        {
+            return m_deadline;
+        }
+
+    }
+
+}
@@ -0,0 +1,59 @@
+package io.github.harha.ircd.util;
+
+import java.util.Arrays;
+
+public class VisitMarks
+{
+
+    /*
+     * A reusable set of small integer ids. Every mark holds the number of the pass that set it, so starting a
+     * new pass is just a counter increment instead of clearing the array. The array is only cleared when the
+     * counter wraps around.
+     */
+    private int[] m_marks;
+    private int   m_epoch;
+
+    public VisitMarks()
+    {
+        this(64);
+    }
+
+    public VisitMarks(int capacity)
+    {
+        m_marks = new int[Math.max(capacity, 1)];
+        m_epoch = 1;
+    }
+
+    public void clear()
+    {
+        if (++m_epoch == 0)
+        {
+            Arrays.fill(m_marks, 0);
+            m_epoch = 1;
+        }
+    }
+
+    /* Marks the id, true if it was not marked yet during this pass */
+    public boolean visit(int id)
+    {
+        if (id >= m_marks.length)
+        {
+            m_marks = Arrays.copyOf(m_marks, Math.max(m_marks.length * 2, id + 1));
+        }
+
+        if (m_marks[id] == m_epoch)
+        {
+            return false;
+        }
+
+        m_marks[id] = m_epoch;
+
+        return true;
+    }
+
+    public boolean isVisited(int id)
+    {
+        return id < m_marks.length && m_marks[id] == m_epoch;
+    }
+
+}
@@ -0,0 +1,60 @@
+package io.github.harha.ircd;
+
+import io.github.harha.ircd.util.CaseIMap;
+import io.github.harha.ircd.util.CaseMapping;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class CaseIMapTests
+{
+
+    @Test
+    public void testRFC1459Mapping()
+    {
+        CaseIMap<Integer> map = new CaseIMap<>(CaseMapping.RFC1459);
+        map.put("Nick[A]\\~", 1);
+        assertEquals(map.get("nick{a}|^"), Integer.valueOf(1));
+        assertTrue(map.containsKey("NICK[a]\\^"));
+        assertEquals(map.putIfAbsent("NiCk{A}|~", 2), Integer.valueOf(1));
+        assertEquals(map.size(), 1);
+        assertEquals(map.remove("nick{A}|^"), Integer.valueOf(1));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testStrictAndAsciiMappings()
+    {
+        CaseIMap<Integer> strict = new CaseIMap<>(CaseMapping.STRICT_RFC1459);
+        strict.put("a[b]^", 1);
+        assertEquals(strict.get("A{B}^"), Integer.valueOf(1));
+        assertNull(strict.get("a{b}~"));
+
+        CaseIMap<Integer> ascii = new CaseIMap<>(CaseMapping.ASCII);
+        ascii.put("Nick[1]", 1);
+        assertEquals(ascii.get("NICK[1]"), Integer.valueOf(1));
+        assertNull(ascii.get("nick{1}"));
+    }
+
+    @Test
+    public void testIterationKeepsOriginalKeys()
+    {
+        CaseIMap<Integer> map = new CaseIMap<>(CaseMapping.RFC1459);
+        map.put("#Mirage", 1);
+        assertFalse(map.remove("#mirage", 2));
+
+        for (Map.Entry<String, Integer> e : map.entrySet())
+        {
+            assertEquals(e.getKey(), "#Mirage");
+        }
+
+        assertTrue(map.remove("#MIRAGE", 1));
+        assertEquals(map.size(), 0);
+    }
+
+}
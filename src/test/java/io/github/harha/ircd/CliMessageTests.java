@@ -0,0 +1,165 @@
+package io.github.harha.ircd;
+
+import com.sun.management.ThreadMXBean;
+import io.github.harha.ircd.server.CliMessage;
+import io.github.harha.ircd.server.ServMessage;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class CliMessageTests
+{
+
+    private static final String[] LINES = { "PRIVMSG #chan :hello there, how is everyone doing today?", "JOIN #a,#b,#c", "PONG :irc.example.net", "NOTICE nick :ok" };
+
+    private static long           s_sink;
+
+    @Test
+    public void testPrefixCommandAndTrailing()
+    {
+        CliMessage message = new CliMessage(":nick!user@host PRIVMSG #chan :hello: there  world");
+        assertEquals(message.getPrefix(), "nick!user@host");
+        assertEquals(message.getCommand(), "PRIVMSG");
+        assertEquals(message.getParameterCount(), 2);
+        assertEquals(message.getParameter(0), "#chan");
+        assertEquals(message.getParameter(1), "hello: there  world");
+        assertTrue(message.hasTrailing());
+    }
+
+    @Test
+    public void testTagsAndLowerCaseCommand()
+    {
+        CliMessage message = new CliMessage("@time=12:00;id=1 privmsg bob ::)");
+        assertEquals(message.getTags(), "time=12:00;id=1");
+        assertEquals(message.getPrefix(), "");
+        assertEquals(message.getCommand(), "PRIVMSG");
+        assertTrue(message.isCommand("privMSG"));
+        assertEquals(message.getParameters(), Arrays.asList("bob", ":)"));
+    }
+
+    @Test
+    public void testMiddleParametersAndCommaLists()
+    {
+        CliMessage message = new CliMessage("JOIN #a,#b,,#c key1,key2");
+        assertEquals(message.getParameterAsList(0), Arrays.asList("#a", "#b", "#c"));
+        assertEquals(message.getParameter(1), "key1,key2");
+        assertEquals(message.getParameter(2), "");
+        assertEquals(new CliMessage("PING").getParameterCount(), 0);
+    }
+
+    @Test
+    public void testFifteenthParameterIsTrailing()
+    {
+        CliMessage message = new CliMessage("CMD 1 2 3 4 5 6 7 8 9 10 11 12 13 14 15 16");
+        assertEquals(message.getParameterCount(), CliMessage.MAX_PARAMETERS);
+        assertEquals(message.getParameter(14), "15 16");
+    }
+
+    @Test
+    public void testServMessageRoundTrip()
+    {
+        ServMessage message = new ServMessage("server", "PRIVMSG", "#chan", ":) hi");
+        assertEquals(message.toString(), ":server PRIVMSG #chan ::) hi\r\n");
+
+        CliMessage parsed = new CliMessage(message.toString().trim());
+        assertEquals(parsed.getParameter(1), ":) hi");
+        assertEquals(new ServMessage("", "PING", "nick").toString(), "PING nick\r\n");
+    }
+
+    @Test
+    public void testAllocationPerLine()
+    {
+        if (!(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean))
+        {
+            throw new SkipException("Allocation counting is not supported by this JVM");
+        }
+
+        /* What a handler does with a line, against the regex split parser CliMessage replaced */
+        long parsed = allocatedPerLine(line ->
+        {
+            CliMessage message = new CliMessage(line);
+            s_sink += message.getCommand().length() + message.getParameterCount() + message.getParameter(0).length() + message.getParameter(1).length();
+        });
+        long split = allocatedPerLine(line ->
+        {
+            List<String> parameters = splitParse(line);
+            s_sink += parameters.size() + parameters.get(0).length();
+        });
+
+        assertTrue(parsed * 10 <= split, parsed + " bytes per line parsed, " + split + " split");
+    }
+
+    private static long allocatedPerLine(Consumer<String> parse)
+    {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        int count = 100000;
+
+        /* Warmed up first, so the compiled code is measured */
+        for (int i = 0; i < count; i++)
+        {
+            parse.accept(LINES[i % LINES.length]);
+        }
+
+        long before = threads.getThreadAllocatedBytes(id);
+
+        for (int i = 0; i < count; i++)
+        {
+            parse.accept(LINES[i % LINES.length]);
+        }
+
+        return (threads.getThreadAllocatedBytes(id) - before) / count;
+    }
+
+    /* The earlier parser: the line split on spaces, joined again and split twice more */
+    private static List<String> splitParse(String line)
+    {
+        String[] words = line.split("\\s+");
+        List<String> result = new ArrayList<String>();
+        String parameters = "";
+
+        for (int i = 1; i < words.length; i++)
+        {
+            parameters += (i == 1 ? "" : " ") + words[i];
+        }
+
+        String[] spaces = parameters.split("\\s+");
+        String[] commas = parameters.split("\\s*,\\s*");
+
+        if (words[0].equals("JOIN") && commas.length > 1)
+        {
+            result.addAll(Arrays.asList(commas));
+            return result;
+        }
+
+        String trailing = "";
+
+        for (String word : spaces)
+        {
+            if (trailing.isEmpty() && !word.startsWith(":"))
+            {
+                result.add(word);
+            }
+            else
+            {
+                trailing += word + " ";
+            }
+        }
+
+        if (!trailing.isEmpty())
+        {
+            result.add(trailing.replace(":", "").trim());
+        }
+
+        return result;
+    }
+
+}
@@ -0,0 +1,208 @@
+package io.github.harha.ircd;
+
+import io.github.harha.ircd.server.Cluster;
+import io.github.harha.ircd.server.ClusterBus;
+import io.github.harha.ircd.server.IRCServer;
+import io.github.harha.ircd.server.LoopbackBus;
+import io.github.harha.ircd.server.TcpBus;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ClusterTests
+{
+
+    @Test
+    public void testNickClaimsGoThroughTheOwner() throws Exception
+    {
+        IRCServer server = new IRCServer("127.0.0.1", "6669");
+        Map<String, String> nodes = new LinkedHashMap<String, String>();
+        nodes.put("irc1", "");
+        nodes.put("irc2", "");
+        nodes.put("irc3", "");
+
+        Cluster irc1 = start(server, "irc1", nodes);
+        Cluster irc2 = start(server, "irc2", nodes);
+        Cluster irc3 = start(server, "irc3", nodes);
+
+        /* Nicks that neither claiming node owns, so the claims travel the bus */
+        String nick = ownedBy(irc1, "alice", "irc3");
+        String other = ownedBy(irc1, "bob", "irc3");
+
+        assertTrue(claim(irc1, nick));
+        assertTrue(claim(irc1, nick));
+        assertFalse(claim(irc2, nick.toUpperCase()));
+        assertEquals(irc3.getOwnedNicks(), 1);
+        assertEquals(irc2.getOwnedNicks(), 0);
+
+        /* Lines from one node arrive in order, once a later claim is answered the release is done */
+        irc1.releaseNick(nick);
+        assertTrue(claim(irc1, other));
+        assertTrue(claim(irc2, nick));
+        assertFalse(claim(irc1, nick));
+
+        /* A node that goes away gives up its nicks */
+        irc2.shutdown();
+        assertTrue(claim(irc1, nick));
+
+        irc1.shutdown();
+        irc3.shutdown();
+    }
+
+    @Test
+    public void testUnansweredClaimsAreRefusedAndLateGrantsGivenBack() throws Exception
+    {
+        IRCServer server = new IRCServer("127.0.0.1", "6672");
+        Map<String, String> nodes = new LinkedHashMap<String, String>();
+        nodes.put("irc1", "");
+        nodes.put("irc2", "");
+
+        /* A bus that loses every line without telling, only the deadline ends the claim */
+        List<String> sent = new ArrayList<String>();
+        Cluster irc1 = new Cluster(server, "irc1", nodes, 64, 50, new ClusterBus()
+        {
+            @Override
+            public void start(String node, Handler handler)
+            {
+            }
+
+            @Override
+            public void setNodes(Map<String, String> nodes)
+            {
+            }
+
+            @Override
+            public synchronized void send(String node, String line)
+            {
+                sent.add(node + " " + line);
+            }
+
+            @Override
+            public void shutdown()
+            {
+            }
+        });
+
+        String nick = ownedBy(irc1, "carol", "irc2");
+        assertFalse(claim(irc1, nick));
+        assertEquals(sent.get(0), "irc2 CLAIM 1 " + nick);
+
+        irc1.receive("irc2", "CLAIMED 1 1 " + nick);
+        assertEquals(sent.get(1), "irc2 RELEASE " + nick);
+        irc1.shutdown();
+    }
+
+    @Test
+    public void testTcpBusReportsLostLinesAsNodeDown() throws Exception
+    {
+        Map<String, String> nodes = new LinkedHashMap<String, String>();
+        nodes.put("irc1", "127.0.0.1:17101");
+        nodes.put("irc2", "127.0.0.1:17102");
+
+        BlockingQueue<String> events1 = new LinkedBlockingQueue<String>();
+        BlockingQueue<String> events2 = new LinkedBlockingQueue<String>();
+        TcpBus bus1 = new TcpBus("secret");
+        TcpBus bus2 = new TcpBus("secret");
+        bus1.setNodes(nodes);
+        bus2.setNodes(nodes);
+        bus1.start("irc1", recorder(events1));
+
+        try
+        {
+            /* Nobody listens yet, the line is lost and that is reported */
+            bus1.send("irc2", "CLAIM 1 alice");
+            assertEquals(events1.poll(10, TimeUnit.SECONDS), "down irc2");
+
+            /* Once the node is up both ends hear of each other and lines get through */
+            bus2.start("irc2", recorder(events2));
+            assertEquals(events1.poll(10, TimeUnit.SECONDS), "up irc2");
+            bus1.send("irc2", "CLAIM 2 alice");
+            assertEquals(take(events2, "irc1 "), "irc1 CLAIM 2 alice");
+
+            bus2.shutdown();
+            assertEquals(events1.poll(10, TimeUnit.SECONDS), "down irc2");
+        } finally
+        {
+            bus1.shutdown();
+            bus2.shutdown();
+        }
+    }
+
+    private static ClusterBus.Handler recorder(BlockingQueue<String> events)
+    {
+        return new ClusterBus.Handler()
+        {
+            @Override
+            public void receive(String from, String line)
+            {
+                events.add(from + " " + line);
+            }
+
+            @Override
+            public void nodeUp(String node)
+            {
+                events.add("up " + node);
+            }
+
+            @Override
+            public void nodeDown(String node)
+            {
+                events.add("down " + node);
+            }
+        };
+    }
+
+    /* The next event that starts with the prefix, others are skipped */
+    private static String take(BlockingQueue<String> events, String prefix) throws InterruptedException
+    {
+        for (String event; (event = events.poll(10, TimeUnit.SECONDS)) != null;)
+        {
+            if (event.startsWith(prefix))
+            {
+                return event;
+            }
+        }
+
+        return null;
+    }
+
+    private static String ownedBy(Cluster cluster, String prefix, String node)
+    {
+        for (int i = 0;; i++)
+        {
+            if (cluster.getOwner(prefix + i).equals(node))
+            {
+                return prefix + i;
+            }
+        }
+    }
+
+    private static Cluster start(IRCServer server, String node, Map<String, String> nodes) throws IOException
+    {
+        Cluster cluster = new Cluster(server, node, nodes, 64, 5000, new LoopbackBus("ClusterTests"));
+        cluster.start();
+
+        return cluster;
+    }
+
+    private static boolean claim(Cluster cluster, String nick) throws Exception
+    {
+        CompletableFuture<Boolean> granted = new CompletableFuture<Boolean>();
+        cluster.claimNick(nick, granted::complete);
+
+        return granted.get(5, TimeUnit.SECONDS);
+    }
+
+}
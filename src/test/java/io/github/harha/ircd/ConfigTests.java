@@ -0,0 +1,73 @@
+package io.github.harha.ircd;
+
+import io.github.harha.ircd.server.Config;
+import io.github.harha.ircd.server.ConnClass;
+import io.github.harha.ircd.util.IniFile;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ConfigTests
+{
+
+    @Test
+    public void testMissingKeysGiveDefaults()
+    {
+        IniFile ini = new IniFile("classes.ini");
+
+        assertEquals(ini.getInt("[client]", "identtime", 30), 30);
+        assertEquals(ini.getString("[client]", "nothing", "x"), "x");
+        assertEquals(ini.getInt("[nothing]", "pingtime", 5), 5);
+        assertNull(ini.getString("[client]", ";mask", null));
+    }
+
+    @Test
+    public void testConnectionClasses()
+    {
+        Config config = Config.load("classes.ini");
+
+        assertEquals(config.getName(), "classes test");
+        assertEquals(config.getFanout(), 50);
+        assertEquals(config.getQuantum(), 1024);
+        assertEquals(config.getLinkQuantum(), 16384);
+        assertEquals(config.getClasses().size(), 2);
+
+        ConnClass local = config.getConnClass("127.0.1.2");
+        assertEquals(local.getName(), "local");
+        assertEquals(local.getMaxConns(), 100);
+        assertEquals(local.getPingTime(), 90);
+        assertEquals(local.getFloodRate(), 0);
+        assertEquals(local.getFloodBurst(), 10);
+        assertEquals(config.getConnClass("::1").getName(), "local");
+
+        ConnClass lan = config.getConnClass("10.0.3.77");
+        assertEquals(lan.getName(), "lan");
+        assertEquals(lan.getSendQ(), 1024);
+        assertEquals(lan.getMaxConns(), 3);
+        assertEquals(lan.getFloodRate(), 500);
+
+        assertSame(config.getConnClass("10.0.33.1"), config.getDefaultClass());
+        assertEquals(config.getDefaultClass().getIdentTime(), 30);
+    }
+
+    @Test
+    public void testInvalidFilesAreRejected()
+    {
+        for (String file : new String[] { "broken.ini", "missing.ini" })
+        {
+            try
+            {
+                Config.load(file);
+                fail(file + " should not load");
+            } catch (IllegalArgumentException e)
+            {
+                assertTrue(e.getMessage() != null && !e.getMessage().isEmpty());
+            }
+        }
+    }
+
+}
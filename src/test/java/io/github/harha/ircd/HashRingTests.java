@@ -0,0 +1,64 @@
+package io.github.harha.ircd;
+
+import io.github.harha.ircd.util.HashRing;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class HashRingTests
+{
+
+    @Test
+    public void testOwnersDoNotDependOnTheOrderOfNodes()
+    {
+        HashRing ring = new HashRing(Arrays.asList("irc1", "irc2", "irc3"), 64);
+        HashRing other = new HashRing(Arrays.asList("irc3", "irc1", "irc2"), 64);
+
+        for (int i = 0; i < 1000; i++)
+        {
+            assertEquals(ring.getOwner("nick" + i), other.getOwner("nick" + i));
+        }
+
+        assertEquals(ring.getNodes(), Arrays.asList("irc1", "irc2", "irc3"));
+        assertTrue(ring.contains("irc2"));
+        assertNull(new HashRing(Collections.<String>emptyList(), 64).getOwner("nick"));
+    }
+
+    @Test
+    public void testAddingANodeMovesItsShareOnly()
+    {
+        HashRing ring = new HashRing(Arrays.asList("irc1", "irc2", "irc3"), 64);
+        HashRing grown = new HashRing(Arrays.asList("irc1", "irc2", "irc3", "irc4"), 64);
+        Map<String, Integer> owned = new HashMap<String, Integer>();
+        int moved = 0;
+
+        for (int i = 0; i < 10000; i++)
+        {
+            String before = ring.getOwner("#chan" + i);
+            String after = grown.getOwner("#chan" + i);
+            owned.merge(before, 1, Integer::sum);
+
+            /* A key only ever moves to the new node */
+            if (!before.equals(after))
+            {
+                assertEquals(after, "irc4");
+                moved++;
+            }
+        }
+
+        assertTrue(moved > 1500 && moved < 3500, "moved " + moved);
+
+        for (int count : owned.values())
+        {
+            assertTrue(count > 2000 && count < 4700, "owned " + owned);
+        }
+    }
+
+}
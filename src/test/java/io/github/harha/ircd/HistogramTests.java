@@ -0,0 +1,31 @@
+package io.github.harha.ircd;
+
+import io.github.harha.ircd.util.Histogram;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class HistogramTests
+{
+
+    @Test
+    public void testPercentiles()
+    {
+        Histogram histogram = new Histogram();
+
+        for (int i = 0; i < 99; i++)
+        {
+            histogram.record(3000);
+        }
+
+        histogram.record(1000000);
+
+        assertEquals(histogram.getCount(), 100);
+        assertEquals(histogram.getPercentileMicros(50), 4);
+        assertEquals(histogram.getPercentileMicros(99), 4);
+        assertEquals(histogram.getPercentileMicros(100), 1024);
+        assertEquals(histogram.getMaxMicros(), 1000);
+        assertEquals(histogram.getMeanMicros(), 12);
+    }
+
+}
@@ -0,0 +1,115 @@
+package io.github.harha.ircd;
+
+import io.github.harha.ircd.server.HostResolver;
+import io.github.harha.ircd.server.Resolver;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class HostResolverTests
+{
+
+    /* In-memory stand-in for the system resolver */
+    private static class MapResolver implements Resolver
+    {
+
+        private Map<InetAddress, String>   m_reverse = new HashMap<InetAddress, String>();
+        private Map<String, InetAddress[]> m_forward = new HashMap<String, InetAddress[]>();
+        private AtomicInteger              m_lookups = new AtomicInteger(0);
+        private long                       m_delay   = 0;
+
+        @Override
+        public String lookupHost(InetAddress address) throws IOException
+        {
+            m_lookups.incrementAndGet();
+
+            try
+            {
+                Thread.sleep(m_delay);
+            } catch (InterruptedException e)
+            {
+                throw new IOException(e);
+            }
+
+            return m_reverse.get(address);
+        }
+
+        @Override
+        public InetAddress[] lookupAddresses(String host) throws IOException
+        {
+            InetAddress[] result = m_forward.get(host);
+
+            if (result == null)
+            {
+                throw new IOException("Unknown host " + host);
+            }
+
+            return result;
+        }
+
+    }
+
+    private static String resolve(HostResolver resolver, InetAddress address) throws Exception
+    {
+        CompletableFuture<String> result = new CompletableFuture<String>();
+        resolver.resolve(address, host -> result.complete(host));
+
+        return result.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testForwardConfirmedAndCached() throws Exception
+    {
+        InetAddress address = InetAddress.getByName("10.0.0.1");
+        MapResolver stub = new MapResolver();
+        stub.m_reverse.put(address, "host.example.org");
+        stub.m_forward.put("host.example.org", new InetAddress[] { InetAddress.getByName("10.0.0.2"), address });
+
+        HostResolver resolver = new HostResolver(stub, 2, 1000, 16, 60000);
+        assertEquals(resolve(resolver, address), "host.example.org");
+        assertEquals(resolve(resolver, address), "host.example.org");
+        assertEquals(stub.m_lookups.get(), 1);
+        resolver.shutdown();
+    }
+
+    @Test
+    public void testSpoofedAndMissingNames() throws Exception
+    {
+        InetAddress spoofed = InetAddress.getByName("10.0.0.3");
+        InetAddress missing = InetAddress.getByName("10.0.0.4");
+        MapResolver stub = new MapResolver();
+        stub.m_reverse.put(spoofed, "trusted.example.org");
+        stub.m_forward.put("trusted.example.org", new InetAddress[] { InetAddress.getByName("10.0.0.5") });
+
+        HostResolver resolver = new HostResolver(stub, 2, 1000, 16, 60000);
+        assertNull(resolve(resolver, spoofed));
+        assertNull(resolve(resolver, missing));
+        resolver.shutdown();
+    }
+
+    @Test
+    public void testTimeout() throws Exception
+    {
+        InetAddress address = InetAddress.getByName("10.0.0.6");
+        MapResolver stub = new MapResolver();
+        stub.m_reverse.put(address, "slow.example.org");
+        stub.m_forward.put("slow.example.org", new InetAddress[] { address });
+        stub.m_delay = 2000;
+
+        HostResolver resolver = new HostResolver(stub, 1, 100, 16, 60000);
+        long time_s = System.currentTimeMillis();
+        assertNull(resolve(resolver, address));
+        assertEquals(System.currentTimeMillis() - time_s < 1500, true);
+        resolver.shutdown();
+    }
+
+}
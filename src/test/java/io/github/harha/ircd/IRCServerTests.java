@@ -1,11 +1,28 @@
 package io.github.harha.ircd;
 
+import io.github.harha.ircd.server.Client;
+import io.github.harha.ircd.server.ConnState;
+import io.github.harha.ircd.server.Connection;
+import io.github.harha.ircd.server.Counters;
+import io.github.harha.ircd.server.EventLoop;
 import io.github.harha.ircd.server.IRCServer;
+import io.github.harha.ircd.server.LinkCompression;
+import io.github.harha.ircd.server.WelcomeBurst;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 public class IRCServerTests
@@ -15,8 +32,455 @@ public class IRCServerTests
     public void testIRCServerSimpleInit() throws IOException
     {
         IRCServer server = new IRCServer("127.0.0.1", "6667");
-        assertEquals(server.getString("sName"), "mirage-ircd test server");
+        assertEquals(server.getConfig().getName(), "mirage-ircd test server");
         assertTrue(server.getMotd().size() > 1);
     }
 
+    @Test
+    public void testWelcomeBurstSplicesNickAndCounters() throws IOException
+    {
+        IRCServer server = new IRCServer("127.0.0.1", "6668");
+        Counters counters = new Counters();
+
+        for (int i = 0; i < 12; i++)
+        {
+            counters.connectionAdded();
+        }
+
+        for (int i = 0; i < 10; i++)
+        {
+            counters.userRegistered();
+        }
+
+        counters.userRemoved();
+        counters.channelAdded();
+        counters.channelAdded();
+        counters.channelAdded();
+
+        ByteBuffer buffer = new WelcomeBurst(server, server.getConfig()).render("n\u00e4ck", counters);
+        String burst = new String(buffer.array(), 0, buffer.remaining(), StandardCharsets.UTF_8);
+        String[] lines = burst.split("\r\n");
+        String prefix = ":" + server.getHostName() + " ";
+
+        assertEquals(lines[0], prefix + "001 n\u00e4ck :Welcome to the mirage-ircd test server IRC network, n\u00e4ck");
+        assertEquals(lines[4], prefix + "251 n\u00e4ck :There are 9 users and 0 invisible on 1 servers.");
+        assertEquals(lines[6], prefix + "253 n\u00e4ck 2 :Unknown connections.");
+        assertEquals(lines[7], prefix + "254 n\u00e4ck 3 :Channels formed.");
+        assertEquals(lines[8], prefix + "255 n\u00e4ck :I have 9 clients and 0 servers.");
+        assertEquals(lines[9], prefix + "265 n\u00e4ck 9 10 :Current local users 9, max 10");
+        assertEquals(lines.length, 13 + server.getMotd().size());
+        assertEquals(lines[lines.length - 1], prefix + "376 n\u00e4ck :End of /MOTD command.");
+        assertTrue(burst.endsWith("\r\n"));
+    }
+
+    @Test
+    public void testKillFromAnotherLoopRunsOnTheOwnerLoop() throws Exception
+    {
+        IRCServer server = start("6670");
+
+        try (Socket socket = register(6670, "victim"))
+        {
+            Client client = server.getClient("victim");
+            Connection c = client.getConnection();
+            EventLoop owner = c.getEventLoop();
+            EventLoop other = server.getEventLoops()[(owner.getId() + 1) % server.getEventLoops().length];
+            CountDownLatch hold = new CountDownLatch(1);
+            CompletableFuture<ConnState> state = new CompletableFuture<ConnState>();
+
+            /* The owner loop is held, a kill that touched the connection from the other loop would show at once */
+            owner.execute(() -> await(hold));
+            other.execute(() ->
+            {
+                server.killClient(client, "Nick collision");
+                state.complete(c.getState());
+            });
+
+            assertTrue(owner != other);
+            assertEquals(state.get(5, TimeUnit.SECONDS), ConnState.CONNECTED_AS_CLIENT);
+            assertNull(server.getClient("victim"));
+            hold.countDown();
+
+            String rest = readUntilClosed(socket);
+            assertTrue(rest.contains("ERROR :Closing Link") && rest.contains("Killed"), rest);
+        } finally
+        {
+            server.getSocket().close();
+        }
+    }
+
+    @Test
+    public void testChannelOrderIsKeptAcrossLoops() throws Exception
+    {
+        IRCServer server = start("6671");
+        String[] nicks = { "send0", "send1", "recv0", "recv1" };
+        Socket[] sockets = new Socket[nicks.length];
+
+        try
+        {
+            for (int i = 0; i < nicks.length; i++)
+            {
+                sockets[i] = register(6671, nicks[i]);
+                sockets[i].getOutputStream().write("JOIN #order\r\n".getBytes(StandardCharsets.UTF_8));
+                readUntil(sockets[i], " 366 " + nicks[i] + " ");
+            }
+
+            /* A sender and a receiver on each loop, so every delivery crosses loops one way or the other */
+            assertTrue(loopOf(server, "send0") != loopOf(server, "send1"));
+            assertTrue(loopOf(server, "recv0") != loopOf(server, "recv1"));
+
+            Thread[] senders = new Thread[2];
+
+            for (int s = 0; s < senders.length; s++)
+            {
+                Socket socket = sockets[s];
+                String nick = nicks[s];
+                senders[s] = new Thread(() ->
+                {
+                    StringBuilder lines = new StringBuilder();
+
+                    for (int i = 0; i < 2000; i++)
+                    {
+                        lines.append("PRIVMSG #order :").append(nick).append(' ').append(i).append("\r\n");
+                    }
+
+                    try
+                    {
+                        socket.getOutputStream().write(lines.toString().getBytes(StandardCharsets.UTF_8));
+                    } catch (IOException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                });
+                senders[s].start();
+            }
+
+            for (Thread sender : senders)
+            {
+                sender.join();
+            }
+
+            /* The channel runs the messages in one order, both receivers see that same order */
+            String seen0 = messages(readUntil(sockets[2], "send0 1999\r\n", "send1 1999\r\n"));
+            String seen1 = messages(readUntil(sockets[3], "send0 1999\r\n", "send1 1999\r\n"));
+
+            assertEquals(seen0.split("\n").length, 4000);
+            assertEquals(seen0, seen1);
+        } finally
+        {
+            for (Socket socket : sockets)
+            {
+                if (socket != null)
+                {
+                    socket.close();
+                }
+            }
+
+            server.getSocket().close();
+        }
+    }
+
+    @Test
+    public void testLongLinesAreCutBetweenCharacters() throws Exception
+    {
+        IRCServer server = start("6673");
+        Socket sender = null;
+        Socket receiver = null;
+
+        try
+        {
+            sender = register(6673, "long0");
+            receiver = register(6673, "long1");
+            sender.getOutputStream().write("JOIN #utf\r\n".getBytes(StandardCharsets.UTF_8));
+            receiver.getOutputStream().write("JOIN #utf\r\n".getBytes(StandardCharsets.UTF_8));
+            readUntil(sender, " 366 long0 ");
+            readUntil(receiver, " 366 long1 ");
+
+            /* 15 bytes of command and 600 bytes of two byte characters, the limit of 512 falls inside a character */
+            String text = new String(new char[300]).replace('\0', '\u00e9');
+            sender.getOutputStream().write(("PRIVMSG #utf :x" + text + "\r\nPRIVMSG #utf :done\r\n").getBytes(StandardCharsets.UTF_8));
+
+            /* A single word goes out without the colon */
+            String received = readUntil(receiver, "PRIVMSG #utf done\r\n");
+            String line = received.substring(received.indexOf("PRIVMSG #utf x"));
+            line = line.substring("PRIVMSG #utf ".length(), line.indexOf("\r\n"));
+
+            assertEquals(line, "x" + text.substring(0, 248));
+        } finally
+        {
+            for (Socket socket : new Socket[] { sender, receiver })
+            {
+                if (socket != null)
+                {
+                    socket.close();
+                }
+            }
+
+            server.getSocket().close();
+        }
+    }
+
+    @Test
+    public void testLinkInputRunsInTurns() throws Exception
+    {
+        IRCServer server = start("6674");
+        Socket link = new Socket("127.0.0.1", 6674);
+        Socket[] watchers = new Socket[4];
+
+        try
+        {
+            link.setSoTimeout(5000);
+            link.getOutputStream().write("PASS fakepw TS 6 :9ZZ\r\nCAPAB ZIP\r\nSERVER fake.test.net 1 :fake\r\n".getBytes(StandardCharsets.UTF_8));
+            readUntil(link, "SERVER " + server.getHostName() + " ");
+
+            /* A watcher on the loop of the link sees where its own command runs between the lines of the link */
+            EventLoop loop = null;
+            Socket watch = null;
+            String nick = null;
+
+            for (int i = 0; i < watchers.length && watch == null; i++)
+            {
+                watchers[i] = register(6674, "watch" + i);
+
+                if (loop == null)
+                {
+                    loop = server.getServer("fake.test.net").getConnection().getEventLoop();
+                }
+
+                if (server.getClient("watch" + i).getConnection().getEventLoop() == loop)
+                {
+                    watch = watchers[i];
+                    nick = "watch" + i;
+                }
+            }
+
+            assertTrue(watch != null);
+            watch.getOutputStream().write("JOIN #burst\r\n".getBytes(StandardCharsets.UTF_8));
+            readUntil(watch, " 366 " + nick + " ");
+
+            /* Every user of the burst joins the channel, a few kilobytes deflate to hundreds of lines */
+            LinkCompression zip = new LinkCompression("9ZZ", "fake.test.net", server.getSid(), server.getHostName());
+            long ts = System.currentTimeMillis() / 1000 - 1000;
+
+            for (int i = 0; i < 3000; i++)
+            {
+                String uid = String.format("9ZZA%05d", i);
+                String lines = ":9ZZ UID u" + i + " 1 " + ts + " + user host.example.net 10.0.0.1 " + uid + " :Real name\r\n:9ZZ SJOIN " + ts + " #burst + :" + uid + "\r\n";
+                zip.add(ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8)));
+            }
+
+            ByteBuffer batch = zip.deflate();
+            byte[] data = new byte[batch.remaining()];
+            batch.get(data);
+
+            /* Both arrive while the loop is held, the next pass reads them together */
+            CountDownLatch held = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            loop.execute(() ->
+            {
+                held.countDown();
+                await(release);
+            });
+            await(held);
+
+            link.getOutputStream().write(data);
+            watch.getOutputStream().write("LUSERS\r\n".getBytes(StandardCharsets.UTF_8));
+            Thread.sleep(200);
+            release.countDown();
+
+            String seen = readUntil(watch, " 251 " + nick + " ", ":u2999!");
+            int joins = 0;
+
+            for (String line : seen.substring(0, seen.indexOf(" 251 " + nick + " ")).split("\r\n"))
+            {
+                if (line.contains(" JOIN #burst"))
+                {
+                    joins++;
+                }
+            }
+
+            /* At most a quantum of the link runs before the LUSERS, not all that one read inflated to */
+            assertTrue(joins <= server.getConfig().getLinkQuantum() / 100, "joins before the reply: " + joins);
+        } finally
+        {
+            link.close();
+
+            for (Socket socket : watchers)
+            {
+                if (socket != null)
+                {
+                    socket.close();
+                }
+            }
+
+            server.getSocket().close();
+        }
+    }
+
+    @Test
+    public void testRemoteCaseOnlyRenameIsNoCollision() throws Exception
+    {
+        IRCServer server = start("6675");
+        Socket link = new Socket("127.0.0.1", 6675);
+
+        try
+        {
+            link.setSoTimeout(5000);
+            link.getOutputStream().write("PASS fakepw TS 6 :9ZZ\r\nSERVER fake.test.net 1 :fake\r\n".getBytes(StandardCharsets.UTF_8));
+            readUntil(link, "SERVER " + server.getHostName() + " ");
+
+            /* Under rfc1459 [ and { are the same letter, the user only changes the case of its nick */
+            long ts = System.currentTimeMillis() / 1000 - 1000;
+            String lines = ":9ZZ UID Foo[ 1 " + ts + " + user host.example.net 10.0.0.1 9ZZAAAAAA :Real name\r\n" + ":9ZZAAAAAA NICK foo{ " + (ts + 1) + "\r\nPING :done\r\n";
+            link.getOutputStream().write(lines.getBytes(StandardCharsets.UTF_8));
+
+            String seen = readUntil(link, "PONG ");
+            assertTrue(!seen.contains("KILL"), seen);
+
+            Client client = server.getClient("foo{");
+            assertTrue(client != null);
+            assertEquals(client.getUid(), "9ZZAAAAAA");
+            assertEquals(client.getConnection().getNick(), "foo{");
+        } finally
+        {
+            link.close();
+            server.getSocket().close();
+        }
+    }
+
+    @Test
+    public void testShutdownClosesConnectionsOnTheirLoops() throws Exception
+    {
+        IRCServer server = start("6676");
+        Socket[] sockets = new Socket[2];
+
+        try
+        {
+            sockets[0] = register(6676, "down0");
+            sockets[1] = register(6676, "down1");
+            assertTrue(loopOf(server, "down0") != loopOf(server, "down1"));
+
+            /* Closing the listening socket stops the server, each loop says goodbye to its own connections */
+            server.getSocket().close();
+
+            for (Socket socket : sockets)
+            {
+                assertTrue(readUntilClosed(socket).contains("ERROR :Closing Link: localhost (Server shutting down)"));
+            }
+        } finally
+        {
+            for (Socket socket : sockets)
+            {
+                if (socket != null)
+                {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private static int loopOf(IRCServer server, String nick)
+    {
+        return server.getClient(nick).getConnection().getEventLoop().getId();
+    }
+
+    private static String messages(String text)
+    {
+        StringBuilder result = new StringBuilder();
+
+        for (String line : text.split("\r\n"))
+        {
+            if (line.contains(" PRIVMSG #order :"))
+            {
+                result.append(line.substring(line.indexOf(" :") + 2)).append('\n');
+            }
+        }
+
+        return result.toString();
+    }
+
+    static IRCServer start(String port) throws IOException
+    {
+        IRCServer server = new IRCServer("127.0.0.1", port);
+        Thread thread = new Thread(server, "mirage-test-" + port);
+        thread.setDaemon(true);
+        thread.start();
+
+        return server;
+    }
+
+    /* Connects and registers a user, returns once the welcome has arrived */
+    static Socket register(int port, String nick) throws IOException
+    {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write(("NICK " + nick + "\r\nUSER " + nick + " 0 * :" + nick + "\r\n").getBytes(StandardCharsets.UTF_8));
+        readUntil(socket, " 376 " + nick + " ");
+
+        return socket;
+    }
+
+    /* Reads until every one of the texts has arrived */
+    static String readUntil(Socket socket, String... texts) throws IOException
+    {
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int found = 0;
+
+        while (found < texts.length)
+        {
+            int b = in.read();
+
+            if (b < 0)
+            {
+                throw new IOException("Closed before " + texts[found].trim() + ": " + out);
+            }
+
+            out.write(b);
+
+            /* Only a finished line can complete a text, so the whole buffer is searched once per line */
+            if (b == '\n')
+            {
+                String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+                found = 0;
+
+                while (found < texts.length && text.contains(texts[found]))
+                {
+                    found++;
+                }
+            }
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    static String readUntilClosed(Socket socket) throws IOException
+    {
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try
+        {
+            for (int b; (b = in.read()) >= 0;)
+            {
+                out.write(b);
+            }
+        } catch (SocketTimeoutException e)
+        {
+            throw new IOException("Not closed: " + out);
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
 }
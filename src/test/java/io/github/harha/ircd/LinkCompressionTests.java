@@ -0,0 +1,92 @@
+package io.github.harha.ircd;
+
+import io.github.harha.ircd.server.LinkCompression;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class LinkCompressionTests
+{
+
+    @Test
+    public void testBatchesInflateOnThePeer() throws DataFormatException
+    {
+        LinkCompression hub = new LinkCompression("001", "hub.example.net", "002", "leaf.example.net");
+        LinkCompression leaf = new LinkCompression("002", "leaf.example.net", "001", "hub.example.net");
+        StringBuilder burst = new StringBuilder();
+
+        for (int i = 0; i < 2000; i++)
+        {
+            String line = ":001 UID user" + i + " 1 1700000000 + user" + i + " host.example.net 10.0.0.1 001AAA" + (100 + i % 900) + " :Real name\r\n";
+            burst.append(line);
+            hub.add(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /* Each batch ends with a sync flush, the peer gets every line of it without waiting for more */
+        ByteBuffer batch = hub.deflate();
+        assertFalse(hub.hasPending());
+        assertEquals(inflate(leaf, batch), burst.toString());
+
+        hub.add(ByteBuffer.wrap(":001AAA100 PRIVMSG #chan :hello\r\n".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer());
+        assertEquals(inflate(leaf, hub.deflate()), ":001AAA100 PRIVMSG #chan :hello\r\n");
+
+        assertEquals(hub.getRawOut(), leaf.getRawIn());
+        assertEquals(hub.getZipOut(), leaf.getZipIn());
+        assertTrue(hub.getRawOut() > hub.getZipOut() * 5);
+    }
+
+    @Test
+    public void testInflationStopsAtTheLimit() throws DataFormatException
+    {
+        LinkCompression hub = new LinkCompression("001", "hub.example.net", "002", "leaf.example.net");
+        LinkCompression leaf = new LinkCompression("002", "leaf.example.net", "001", "hub.example.net");
+        byte[] line = (":001 PING :" + new String(new char[500]).replace('\0', 'x') + "\r\n").getBytes(StandardCharsets.UTF_8);
+
+        for (int i = 0; i < 20000; i++)
+        {
+            hub.add(ByteBuffer.wrap(line));
+        }
+
+        /* About ten megabytes that deflate to a few kilobytes, only as much as the limit allows comes out at once */
+        ByteBuffer batch = hub.deflate();
+        byte[] data = new byte[batch.remaining()];
+        batch.get(data);
+        assertTrue(data.length < 65536);
+
+        int length = leaf.inflate(data, 0, data.length, 8192);
+        assertTrue(length <= 8192 && length > 0);
+        assertTrue(leaf.hasBacklog());
+        assertTrue(leaf.getInput().length <= 16384);
+
+        /* The rest follows from the backlog without more input */
+        long total = length;
+
+        while (leaf.hasBacklog())
+        {
+            length = leaf.inflate(data, 0, 0, 8192);
+            assertTrue(length <= 8192);
+            total += length;
+        }
+
+        assertEquals(leaf.getBacklog(), 0);
+
+        assertEquals(total, (long) line.length * 20000);
+        assertEquals(leaf.getRawIn(), hub.getRawOut());
+    }
+
+    private static String inflate(LinkCompression zip, ByteBuffer batch) throws DataFormatException
+    {
+        byte[] data = new byte[batch.remaining()];
+        batch.get(data);
+        int length = zip.inflate(data, 0, data.length, Integer.MAX_VALUE);
+
+        return new String(zip.getInput(), 0, length, StandardCharsets.UTF_8);
+    }
+
+}
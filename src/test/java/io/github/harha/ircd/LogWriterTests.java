@@ -0,0 +1,112 @@
+package io.github.harha.ircd;
+
+import io.github.harha.ircd.util.LogLevel;
+import io.github.harha.ircd.util.LogWriter;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class LogWriterTests
+{
+
+    @Test
+    public void testFormatsAndRotatesFiles() throws IOException
+    {
+        File dir = Files.createTempDirectory("mirage-log").toFile();
+        File file = new File(dir, "test.log");
+        LogWriter writer = new LogWriter(64, true, false, file.getPath(), 400, 2);
+
+        for (int i = 0; i < 50; i++)
+        {
+            writer.append(LogLevel.INFO, "test", "record %d of %s", new Object[] { i, "fifty" });
+        }
+
+        writer.close();
+
+        assertTrue(file.exists());
+        assertTrue(new File(dir, "test.log.1").exists());
+        assertTrue(new File(dir, "test.log.2").exists());
+        assertFalse(new File(dir, "test.log.3").exists());
+        assertTrue(file.length() <= 400);
+
+        /* The newest records are in the current file, formatted on the writer thread */
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertTrue(lines.get(lines.size() - 1).endsWith("INFO  [test] record 49 of fifty"));
+        assertEquals(writer.getDropped(), 0);
+    }
+
+    @Test
+    public void testCountsDroppedRecords()
+    {
+        LogWriter writer = new LogWriter(4, false, false, null, 0, 0);
+        writer.close();
+
+        /* A closed writer takes no records, each one is counted as dropped */
+        for (int i = 0; i < 10; i++)
+        {
+            writer.append(LogLevel.DEBUG, "test", "record", null);
+        }
+
+        assertEquals(writer.getDropped(), 10);
+    }
+
+    @Test
+    public void testArgumentsAreCapturedWhenPublished() throws IOException
+    {
+        File file = Files.createTempFile("mirage-log", ".log").toFile();
+        LogWriter writer = new LogWriter(64, true, false, file.getPath(), 0, 0);
+        StringBuilder state = new StringBuilder("before");
+
+        /* Changed right after it is logged, the record shows it as it was */
+        writer.append(LogLevel.INFO, "test", "state %s of %d", new Object[] { state, 1 });
+        state.setLength(0);
+        state.append("after");
+        writer.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertTrue(lines.get(0).endsWith("[test] state before of 1"));
+    }
+
+    @Test
+    public void testStopDoesNotWaitAndLosesNothingClaimed() throws Exception
+    {
+        File file = Files.createTempFile("mirage-log", ".log").toFile();
+        LogWriter writer = new LogWriter(1024, true, false, file.getPath(), 0, 0);
+        Thread[] producers = new Thread[4];
+
+        for (int t = 0; t < producers.length; t++)
+        {
+            producers[t] = new Thread(() ->
+            {
+                for (int i = 0; i < 5000; i++)
+                {
+                    writer.append(LogLevel.INFO, "test", "record", null);
+                }
+            });
+            producers[t].start();
+        }
+
+        Thread.sleep(1);
+        writer.stop();
+
+        for (Thread producer : producers)
+        {
+            producer.join();
+        }
+
+        writer.close();
+
+        /* Every record was either written or counted, none went missing around the stop */
+        long written = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).stream().filter(l -> l.endsWith("[test] record")).count();
+        assertEquals(written + writer.getDropped(), 20000);
+    }
+
+}
@@ -0,0 +1,140 @@
+package io.github.harha.ircd;
+
+import io.github.harha.ircd.server.Members;
+import io.github.harha.ircd.util.IdTable;
+import io.github.harha.ircd.util.RefCounts;
+import io.github.harha.ircd.util.VisitMarks;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class MembersTests
+{
+
+    @Test
+    public void testMembersStaySorted()
+    {
+        Members members = Members.EMPTY;
+        members = members.with(7, Members.MODE_OP);
+        members = members.with(3, (byte) 0);
+        members = members.with(11, Members.MODE_VOICE);
+
+        assertEquals(members.size(), 3);
+        assertEquals(members.getId(0), 3);
+        assertEquals(members.getId(1), 7);
+        assertEquals(members.getId(2), 11);
+        assertEquals(members.getModeOf(7), Members.MODE_OP);
+        assertEquals(Members.getPrefix(members.getMode(2)), "+");
+
+        /* Snapshots are immutable, a change returns a new one */
+        Members removed = members.without(7);
+        assertTrue(members.contains(7));
+        assertFalse(removed.contains(7));
+        assertEquals(removed.getId(1), 11);
+        assertEquals(removed.getMode(1), Members.MODE_VOICE);
+        assertSame(removed.without(42), removed);
+        assertSame(removed.without(3).without(11), Members.EMPTY);
+    }
+
+    @Test
+    public void testBurstMergeAndModeReset()
+    {
+        Members members = Members.EMPTY.with(4, Members.MODE_OP).with(9, (byte) 0);
+        Members merged = members.withAll(new int[] { 12, 1, 6 }, new byte[] { 0, Members.MODE_VOICE, Members.MODE_OP });
+
+        assertEquals(merged.size(), 5);
+
+        for (int i = 1; i < merged.size(); i++)
+        {
+            assertTrue(merged.getId(i - 1) < merged.getId(i));
+        }
+
+        assertEquals(merged.getModeOf(1), Members.MODE_VOICE);
+        assertEquals(merged.getModeOf(4), Members.MODE_OP);
+        assertEquals(merged.getModeOf(6), Members.MODE_OP);
+        assertSame(members.withAll(new int[0], new byte[0]), members);
+
+        Members reset = merged.withoutModes(Members.MODE_OP);
+        assertEquals(reset.getModeOf(4), 0);
+        assertEquals(reset.getModeOf(1), Members.MODE_VOICE);
+        assertEquals(merged.getModeOf(4), Members.MODE_OP);
+    }
+
+    @Test
+    public void testIdTableReusesOldestIds()
+    {
+        IdTable<String> table = new IdTable<String>(2);
+        int a = table.add("a");
+        int b = table.add("b");
+        int c = table.add("c");
+
+        assertEquals(c, 2);
+        assertEquals(table.get(b), "b");
+
+        assertTrue(table.remove(b, "b"));
+        assertFalse(table.remove(b, "b"));
+        assertTrue(table.remove(a, "a"));
+        assertNull(table.get(a));
+
+        assertEquals(table.add("d"), b);
+        assertEquals(table.add("e"), a);
+        assertEquals(table.add("f"), 3);
+        assertEquals(table.size(), 4);
+    }
+
+    @Test
+    public void testRefCountsPruneLastReference()
+    {
+        String a = "a";
+        String b = "b";
+        RefCounts<String> routes = RefCounts.<String>empty().with(a, 2).with(b, 1).with(a, 0);
+
+        assertEquals(routes.size(), 2);
+        assertEquals(routes.getCount(a), 2);
+
+        /* An item stays while it has references and is dropped with the last one */
+        RefCounts<String> pruned = routes.without(a).without(b);
+        assertEquals(pruned.size(), 1);
+        assertSame(pruned.get(0), a);
+        assertEquals(pruned.getCount(b), 0);
+        assertEquals(routes.getCount(b), 1);
+
+        assertSame(pruned.without(b), pruned);
+        assertTrue(pruned.without(a).isEmpty());
+    }
+
+    @Test
+    public void testVisitMarksUnionOfMembers()
+    {
+        Members a = Members.EMPTY.with(1, (byte) 0).with(2, (byte) 0).with(3, (byte) 0);
+        Members b = Members.EMPTY.with(3, (byte) 0).with(4, (byte) 0).with(200, (byte) 0);
+        VisitMarks marks = new VisitMarks(4);
+        int unique = 0;
+
+        /* Every id shared by both channels is only visited once */
+        for (Members members : new Members[] { a, b, a })
+        {
+            for (int i = 0; i < members.size(); i++)
+            {
+                if (marks.visit(members.getId(i)))
+                {
+                    unique++;
+                }
+            }
+        }
+
+        assertEquals(unique, 5);
+        assertTrue(marks.isVisited(200));
+
+        /* A new pass starts with nothing visited */
+        marks.clear();
+        assertFalse(marks.isVisited(3));
+        assertTrue(marks.visit(3));
+        assertFalse(marks.visit(3));
+    }
+
+}
@@ -0,0 +1,117 @@
+package io.github.harha.ircd;
+
+import io.github.harha.ircd.server.NameList;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class NameListTests
+{
+
+    @Test
+    public void testChunksFitTheBudget()
+    {
+        NameList names = new NameList(50);
+        names.reset();
+
+        for (int i = 0; i < 100; i++)
+        {
+            names.add(i, "nick" + i);
+        }
+
+        StringBuilder all = new StringBuilder();
+
+        for (String chunk : names.getChunks())
+        {
+            assertTrue(chunk.length() <= 50);
+            assertTrue(!chunk.startsWith(" ") && !chunk.endsWith(" "));
+            all.append(all.length() > 0 ? " " : "").append(chunk);
+        }
+
+        assertEquals(all.toString().split(" ").length, 100);
+        assertTrue(all.toString().startsWith("nick0 nick1 nick2"));
+        assertTrue(all.toString().endsWith("nick98 nick99"));
+    }
+
+    @Test
+    public void testInvalidate()
+    {
+        NameList names = new NameList(50);
+        names.add(0, "ignored");
+        assertFalse(names.isRendered());
+        assertTrue(names.getChunks().isEmpty());
+
+        names.reset();
+        names.add(1, "@op");
+        names.add(2, "nick");
+        assertEquals(names.getChunks().get(0), "@op nick");
+
+        names.invalidate();
+        assertFalse(names.isRendered());
+    }
+
+    @Test
+    public void testPartsAndRenamesOnlyRewriteTheirChunk()
+    {
+        NameList names = new NameList(50);
+        names.reset();
+
+        for (int i = 0; i < 100; i++)
+        {
+            names.add(i, "nick" + i);
+        }
+
+        List<String> before = new ArrayList<String>(names.getChunks());
+
+        /* The first name of a chunk, one in the middle and a rename, the other chunks are the same strings */
+        names.remove(0);
+        names.remove(50);
+        names.rename(99, "@renamed");
+        List<String> after = names.getChunks();
+
+        assertEquals(after.size(), before.size());
+        assertEquals(after.get(0), before.get(0).substring("nick0 ".length()));
+        assertFalse(after.get(0).startsWith(" "));
+        assertEquals(join(after).split(" ").length, 98);
+        assertTrue(join(after).contains("nick49 nick51"));
+        assertTrue(join(after).endsWith("nick98 @renamed"));
+
+        for (int i = 1; i < after.size() - 1; i++)
+        {
+            if (!before.get(i).contains("nick50"))
+            {
+                assertSame(after.get(i), before.get(i));
+            }
+        }
+
+        /* A chunk that is left empty goes away, a later join still fills the last chunk */
+        String last = after.get(after.size() - 1);
+
+        for (String name : last.split(" "))
+        {
+            names.remove(name.equals("@renamed") ? 99 : Integer.parseInt(name.substring(4)));
+        }
+
+        assertEquals(names.getChunks().size(), before.size() - 1);
+        names.add(100, "nick100");
+        assertTrue(join(names.getChunks()).endsWith(" nick100"));
+        assertTrue(names.isRendered());
+
+        for (String chunk : names.getChunks())
+        {
+            assertTrue(chunk.length() <= 50 && !chunk.isEmpty());
+        }
+    }
+
+    private static String join(List<String> chunks)
+    {
+        return String.join(" ", chunks);
+    }
+
+}
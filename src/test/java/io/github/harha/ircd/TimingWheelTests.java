@@ -0,0 +1,97 @@
+package io.github.harha.ircd;
+
+import io.github.harha.ircd.util.TimingWheel;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TimingWheelTests
+{
+
+    @Test
+    public void testExpiresOnDeadline()
+    {
+        TimingWheel wheel = new TimingWheel(1000);
+        List<Long> fired = new ArrayList<Long>();
+
+        TimingWheel.Timer a = new TimingWheel.Timer(() -> fired.add(wheel.getTime()));
+        TimingWheel.Timer b = new TimingWheel.Timer(() -> fired.add(wheel.getTime()));
+        wheel.schedule(a, 5);
+        wheel.schedule(b, 70000);
+
+        assertEquals(wheel.timeUntilNext(), 5);
+        wheel.advance(1004);
+        assertTrue(fired.isEmpty());
+        wheel.advance(1005);
+        assertEquals(fired.size(), 1);
+        assertEquals(fired.get(0).longValue(), 1005);
+
+        wheel.advance(70999);
+        assertEquals(fired.size(), 1);
+        wheel.advance(200000);
+        assertEquals(fired.size(), 2);
+        assertEquals(fired.get(1).longValue(), 71000);
+        assertEquals(wheel.size(), 0);
+        assertEquals(wheel.timeUntilNext(), -1);
+    }
+
+    @Test
+    public void testCancelAndReschedule()
+    {
+        TimingWheel wheel = new TimingWheel(0);
+        List<String> fired = new ArrayList<String>();
+
+        TimingWheel.Timer a = new TimingWheel.Timer(() -> fired.add("a"));
+        TimingWheel.Timer b = new TimingWheel.Timer(() -> fired.add("b"));
+        wheel.schedule(a, 100);
+        wheel.schedule(b, 100);
+        wheel.cancel(a);
+        assertFalse(a.isScheduled());
+
+        /* Rescheduling replaces the previous deadline */
+        wheel.schedule(b, 300);
+        wheel.advance(299);
+        assertTrue(fired.isEmpty());
+        wheel.advance(300);
+        assertEquals(fired.size(), 1);
+        assertEquals(fired.get(0), "b");
+    }
+
+    @Test
+    public void testRandomDeadlines()
+    {
+        TimingWheel wheel = new TimingWheel(12345);
+        Random random = new Random(42);
+        long[] fired = new long[2000];
+        long[] deadlines = new long[fired.length];
+
+        for (int i = 0; i < fired.length; i++)
+        {
+            int id = i;
+            long delay = 1 + random.nextInt(i % 2 == 0 ? 5000 : 30000000);
+            deadlines[i] = 12345 + delay;
+            wheel.schedule(new TimingWheel.Timer(() -> fired[id] = wheel.getTime()), delay);
+        }
+
+        /* Advance in uneven steps, every timer must fire exactly on its deadline */
+        long time = 12345;
+
+        while (wheel.size() > 0)
+        {
+            time += 1 + random.nextInt(100000);
+            wheel.advance(time);
+        }
+
+        for (int i = 0; i < fired.length; i++)
+        {
+            assertEquals(fired[i], deadlines[i]);
+        }
+    }
+
+}